@@ -0,0 +1,184 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.*;
+import Parlo.Compression.DeflateCodec;
+import Parlo.Compression.DeflateStream;
+import Parlo.Compression.LZCodec;
+
+/**
+ * Measures compressed packets per second. gzip() compresses and decompresses
+ * a packet the way NetworkClient used to, with new GZIP streams for every packet.
+ * deflate() does the same with a pooled DeflateCodec. The size of a compressed
+ * packet is printed for both, to show how many bytes the GZIP wrapper costs.
+ * stream() sends the packet through a connection's DeflateStream. Sending the same
+ * packet over and over flatters its size, so the setup instead prints how large
+ * a stream of small, similar packets gets with each codec.
+ * lz() does the same as deflate() with an LZCodec. deflateDecompress() and
+ * lzDecompress() only decompress, so the payload size times their score is
+ * the rate a receiver can decompress at.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark
+{
+	@Param({ "128", "1000", "16384" })
+	public int payloadSize;
+
+	private byte[] payload;
+	private DeflateCodec codec;
+	private DeflateStream sender, receiver;
+	private LZCodec lzCodec;
+	private byte[] deflated, lzCompressed;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		//Text compresses about as well as the serialized data most packets contain.
+		byte[] text = ("{\"id\":42,\"name\":\"Parlo\",\"position\":[12.5,3.25,-7.0],\"flags\":[true,false]} ")
+				.repeat(payloadSize / 40 + 1).getBytes(StandardCharsets.US_ASCII);
+		payload = new byte[payloadSize];
+		System.arraycopy(text, 0, payload, 0, payloadSize);
+
+		codec = new DeflateCodec();
+		lzCodec = new LZCodec();
+		deflated = compressed(codec.compressPacket((byte)10, payload, 0, payloadSize));
+		lzCompressed = compressed(lzCodec.compressPacket((byte)10, payload, 0, payloadSize));
+
+		System.out.println();
+		System.out.println("Uncompressed: " + payloadSize + " bytes, GZIP: " + gzipCompress(payload).length
+				+ " bytes, deflate: " + deflated.length + " bytes, LZ: " + lzCompressed.length + " bytes");
+		
+		//A game-state style stream, where every packet looks a lot like the last one.
+		DeflateStream stream = new DeflateStream();
+		int rawBytes = 0, gzipBytes = 0, deflateBytes = 0, streamBytes = 0;
+		for(int i = 0; i < 1000; i++)
+		{
+			byte[] message = ("{\"id\":" + (i % 8) + ",\"position\":[" + (i * 0.25) + "," + (i % 13) 
+					+ ",-7.0],\"flags\":[true,false]}").getBytes(StandardCharsets.US_ASCII);
+			ByteBuffer single = codec.compressPacket((byte)10, message, 0, message.length);
+			
+			rawBytes += message.length;
+			gzipBytes += Math.min(message.length, gzipCompress(message).length);
+			deflateBytes += single != null ? single.remaining() - 4 : message.length;
+			streamBytes += stream.compressPacket((byte)10, message, 0, message.length).remaining() - 4;
+		}
+		stream.close();
+		
+		System.out.println("1000 small packets: " + rawBytes + " bytes, GZIP: " + gzipBytes + " bytes, deflate: " 
+				+ deflateBytes + " bytes, stream: " + streamBytes + " bytes");
+		
+		sender = new DeflateStream();
+		receiver = new DeflateStream();
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		sender.close();
+		receiver.close();
+	}
+
+	@Benchmark
+	public byte[] gzip() throws IOException
+	{
+		return gzipDecompress(gzipCompress(payload));
+	}
+
+	@Benchmark
+	public byte[] deflate() throws Exception
+	{
+		ByteBuffer packet = codec.compressPacket((byte)10, payload, 0, payload.length);
+		byte[] compressed = new byte[packet.remaining() - 4];
+		System.arraycopy(packet.array(), 4, compressed, 0, compressed.length);
+
+		return codec.decompress(compressed, payload.length);
+	}
+
+	@Benchmark
+	public byte[] lz() throws Exception
+	{
+		return lzCodec.decompress(compressed(lzCodec.compressPacket((byte)10, payload, 0, payload.length)), 
+				payload.length);
+	}
+
+	@Benchmark
+	public byte[] deflateDecompress() throws Exception
+	{
+		return codec.decompress(deflated, payload.length);
+	}
+
+	@Benchmark
+	public byte[] lzDecompress() throws Exception
+	{
+		return lzCodec.decompress(lzCompressed, payload.length);
+	}
+
+	@Benchmark
+	public byte[] stream() throws Exception
+	{
+		ByteBuffer packet = sender.compressPacket((byte)10, payload, 0, payload.length);
+		byte[] compressed = new byte[packet.remaining() - 4];
+		System.arraycopy(packet.array(), 4, compressed, 0, compressed.length);
+
+		return receiver.decompress(compressed, payload.length);
+	}
+
+	private static byte[] compressed(ByteBuffer packet)
+	{
+		byte[] compressed = new byte[packet.remaining() - 4];
+		System.arraycopy(packet.array(), 4, compressed, 0, compressed.length);
+
+		return compressed;
+	}
+
+	private static byte[] gzipCompress(byte[] data) throws IOException
+	{
+		try (ByteArrayOutputStream compressedStream = new ByteArrayOutputStream())
+		{
+			try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressedStream))
+			{
+				gzipStream.write(data, 0, data.length);
+			}
+
+			return compressedStream.toByteArray();
+		}
+	}
+
+	private static byte[] gzipDecompress(byte[] data) throws IOException
+	{
+		try (GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(data));
+				ByteArrayOutputStream decompressedStream = new ByteArrayOutputStream())
+		{
+			byte[] buffer = new byte[1024];
+			int len;
+			while ((len = gzipStream.read(buffer)) > 0)
+				decompressedStream.write(buffer, 0, len);
+
+			return decompressedStream.toByteArray();
+		}
+	}
+}
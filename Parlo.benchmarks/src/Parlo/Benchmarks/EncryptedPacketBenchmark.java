@@ -0,0 +1,127 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import Parlo.Encryption.AES;
+import Parlo.Encryption.AEADSession;
+import Parlo.Encryption.EncryptionArgs;
+import Parlo.Encryption.EncryptionMode;
+import Parlo.Packets.EncryptedPacket;
+
+/**
+ * Measures encrypted packets per second. cachedKey() builds and decrypts
+ * EncryptedPackets, which reuse the key derived by their EncryptionArgs and
+ * a Cipher per thread. derivedPerPacket() does what EncryptedPacket used to
+ * do, which is to derive the key and create new Ciphers for every packet.
+ * gcmSession() does the same with an AES-GCM session, which also authenticates
+ * every packet, and chachaSession() with a ChaCha20-Poly1305 session. twofish()
+ * uses the same derived key as cachedKey(), with Twofish instead of AES.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptedPacketBenchmark
+{
+	private static final String KEY = "ParloBenchmarkKey";
+	private static final String SALT = "0123456789abcdef0123456789abcdef";
+
+	@Param({ "128", "1000" })
+	public int payloadSize;
+
+	private EncryptionArgs args;
+	private byte[] payload;
+	private byte[] salt;
+	private AEADSession sender, receiver;
+	private AEADSession chachaSender, chachaReceiver;
+	private EncryptionArgs twofishArgs;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		args = new EncryptionArgs();
+		args.Mode = EncryptionMode.AES;
+		args.Key = KEY;
+		args.Salt = SALT;
+
+		payload = new byte[payloadSize];
+		salt = new byte[SALT.length() / 2];
+
+		for(int i = 0; i < salt.length; i++)
+			salt[i] = (byte)Integer.parseInt(SALT.substring(i * 2, i * 2 + 2), 16);
+		
+		byte[] sessionSalt = AEADSession.newSessionSalt();
+		byte[] sessionKey = AEADSession.deriveSessionKey(args, sessionSalt, EncryptionMode.AESGCM);
+		sender = new AEADSession(sessionKey, true);
+		receiver = new AEADSession(sessionKey, false);
+		byte[] chachaKey = AEADSession.deriveSessionKey(args, sessionSalt, EncryptionMode.ChaCha20Poly1305);
+		chachaSender = new AEADSession(chachaKey, true, EncryptionMode.ChaCha20Poly1305);
+		chachaReceiver = new AEADSession(chachaKey, false, EncryptionMode.ChaCha20Poly1305);
+		
+		twofishArgs = new EncryptionArgs();
+		twofishArgs.Mode = EncryptionMode.Twofish;
+		twofishArgs.Key = KEY;
+		twofishArgs.Salt = SALT;
+	}
+
+	@Benchmark
+	public byte[] cachedKey() throws Exception
+	{
+		byte[] packet = new EncryptedPacket(args, (byte)10, payload).BuildPacket();
+		byte[] encryptedData = new byte[packet.length - 4];
+		System.arraycopy(packet, 4, encryptedData, 0, encryptedData.length);
+
+		return new EncryptedPacket(args, (byte)10, encryptedData).decryptPacket();
+	}
+
+	@Benchmark
+	public byte[] derivedPerPacket() throws Exception
+	{
+		byte[] encryptedData = new AES(KEY, salt).Encrypt(payload);
+		return new AES(KEY, salt).Decrypt(encryptedData);
+	}
+
+	@Benchmark
+	public byte[] gcmSession() throws Exception
+	{
+		byte[] packet = new EncryptedPacket(sender, (byte)10, payload).BuildPacket();
+		byte[] encryptedData = new byte[packet.length - 4];
+		System.arraycopy(packet, 4, encryptedData, 0, encryptedData.length);
+
+		return new EncryptedPacket(receiver, (byte)10, encryptedData).decryptPacket();
+	}
+
+	@Benchmark
+	public byte[] chachaSession() throws Exception
+	{
+		byte[] packet = new EncryptedPacket(chachaSender, (byte)10, payload).BuildPacket();
+		byte[] encryptedData = new byte[packet.length - 4];
+		System.arraycopy(packet, 4, encryptedData, 0, encryptedData.length);
+
+		return new EncryptedPacket(chachaReceiver, (byte)10, encryptedData).decryptPacket();
+	}
+
+	@Benchmark
+	public byte[] twofish() throws Exception
+	{
+		byte[] packet = new EncryptedPacket(twofishArgs, (byte)10, payload).BuildPacket();
+		byte[] encryptedData = new byte[packet.length - 4];
+		System.arraycopy(packet, 4, encryptedData, 0, encryptedData.length);
+
+		return new EncryptedPacket(twofishArgs, (byte)10, encryptedData).decryptPacket();
+	}
+}
@@ -0,0 +1,57 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import Parlo.Encryption.AEADSession;
+import Parlo.Encryption.KeyExchange;
+
+/**
+ * Measures the CPU cost of the X25519 handshake. serverSide() is the work a
+ * Listener's client does for every key exchange it accepts, which is what
+ * limits accept throughput under encrypted load. bothSides() is a complete
+ * handshake, as done by a client and a server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyExchangeBenchmark
+{
+	private byte[] clientPublicKey;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		clientPublicKey = new KeyExchange().getPublicKey();
+	}
+
+	@Benchmark
+	public AEADSession serverSide() throws Exception
+	{
+		return new KeyExchange().createSession(clientPublicKey, false);
+	}
+
+	@Benchmark
+	public AEADSession bothSides() throws Exception
+	{
+		KeyExchange client = new KeyExchange();
+		KeyExchange server = new KeyExchange();
+
+		server.createSession(client.getPublicKey(), false);
+		return client.createSession(server.getPublicKey(), true);
+	}
+}
@@ -0,0 +1,89 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import Parlo.ProcessedPacketDelegate;
+import Parlo.Packets.*;
+
+/**
+ * The framing logic of the original ProcessingBuffer, which stored every byte as a boxed
+ * Byte in a BlockingQueue. Kept around so that it can be benchmarked against the
+ * current ProcessingBuffer. The polling loop has been replaced by processBufferedPackets().
+ */
+public class LegacyProcessingBuffer 
+{
+    private BlockingQueue<Byte> internalBuffer;
+
+    private boolean m_HasReadHeader = false;
+    private byte m_CurrentID;
+    private byte m_IsCompressed;
+    private short m_CurrentLength;
+    
+    private ProcessedPacketDelegate onProcessedPacketDelegate;
+    
+    public LegacyProcessingBuffer(int capacity, ProcessedPacketDelegate delegate)
+    {
+    	internalBuffer = new ArrayBlockingQueue<>(capacity);
+    	onProcessedPacketDelegate = delegate;
+    }
+    
+    public void addData(byte[] Data)
+    {
+        for (int i = 0; i < Data.length; i++)
+            internalBuffer.add(Data[i]);
+    }
+    
+    public int processBufferedPackets() throws InterruptedException
+    {
+    	int numProcessed = 0;
+    	
+    	while (true)
+    	{
+            if (internalBuffer.size() >= (int)PacketHeaders.STANDARD) 
+            {
+                if (!m_HasReadHeader) 
+                {
+                    m_CurrentID = internalBuffer.take();
+                    m_IsCompressed = internalBuffer.take();
+
+                    byte[] LengthBuf = new byte[2];
+
+                    for (int i = 0; i < LengthBuf.length; i++)
+                        LengthBuf[i] = internalBuffer.take();
+
+                    m_CurrentLength = ByteBuffer.wrap(LengthBuf).order(ByteOrder.LITTLE_ENDIAN).getShort();
+
+                    m_HasReadHeader = true;
+                }
+            }
+
+            if (m_HasReadHeader && internalBuffer.size() >= (m_CurrentLength - PacketHeaders.STANDARD)) 
+            {
+                byte[] PacketData = new byte[m_CurrentLength - PacketHeaders.STANDARD];
+
+                for (int i = 0; i < PacketData.length; i++)
+                    PacketData[i] = internalBuffer.take();
+
+                m_HasReadHeader = false;
+                onProcessedPacketDelegate.onProcessedPacket(new Packet(m_CurrentID, PacketData, m_IsCompressed == 1));
+                numProcessed++;
+            }
+            else
+            	return numProcessed;
+    	}
+    }
+}
@@ -0,0 +1,77 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import Parlo.BufferPool;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketReader;
+import Parlo.Packets.PacketWriter;
+
+/**
+ * Measures writing a packet with a few fields, and reading them back. buildPacket()
+ * serializes the fields to an array and builds a Packet from it, the way packets
+ * were built before PacketWriter. packetWriter() writes the same fields with a
+ * PacketWriter, and reads them with a PacketReader. Run with -prof gc to see
+ * how much each of them allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketWriterBenchmark
+{
+	private static final String NAME = "Afr0";
+
+	private final BufferPool pool = new BufferPool(true, BufferPool.DEFAULT_THREAD_CACHE_SIZE,
+			BufferPool.DEFAULT_SHARED_SIZE);
+	private final PacketWriter writer = new PacketWriter(pool);
+	private final PacketReader reader = new PacketReader();
+	private int counter;
+
+	@Benchmark
+	public long buildPacket()
+	{
+		byte[] name = NAME.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer data = ByteBuffer.allocate(4 + 8 + 1 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+		data.putInt(counter++).putLong(42L).put((byte)name.length).put(name);
+
+		byte[] packet = new Packet((byte)10, data.array(), false).buildPacket();
+
+		ByteBuffer received = ByteBuffer.wrap(packet, 4, packet.length - 4).order(ByteOrder.LITTLE_ENDIAN);
+		int id = received.getInt();
+		long value = received.getLong();
+		byte[] receivedName = new byte[received.get()];
+		received.get(receivedName);
+
+		return id + value + new String(receivedName, StandardCharsets.UTF_8).length();
+	}
+
+	@Benchmark
+	public long packetWriter() throws Exception
+	{
+		ByteBuffer packet = writer.begin((byte)10).writeInt(counter++).writeLong(42L).writeString(NAME).finish();
+
+		reader.reset(packet.position(4));
+		long result = reader.readInt() + reader.readLong() + reader.readString().length();
+
+		pool.release(packet);
+		return result;
+	}
+}
@@ -0,0 +1,81 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import Parlo.ProcessingBuffer;
+import Parlo.Packets.Packet;
+
+/**
+ * Compares the primitive ring buffer in ProcessingBuffer with the original
+ * BlockingQueue of boxed Bytes. Every operation adds one chunk of up to 
+ * ProcessingBuffer.MAX_PACKET_SIZE bytes and frames all the packets in it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessingBufferBenchmark 
+{
+	@Param({ "16", "128", "1000" })
+	public int payloadSize;
+	
+	private byte[] chunk;
+	private ProcessingBuffer ringBuffer;
+	private LegacyProcessingBuffer legacyBuffer;
+	private Blackhole blackhole;
+	
+	@Setup(Level.Trial)
+	public void setup(Blackhole blackhole)
+	{
+		this.blackhole = blackhole;
+		
+		byte[] packet = new Packet((byte)1, new byte[payloadSize], false).buildPacket();
+		ByteArrayOutputStream chunkStream = new ByteArrayOutputStream();
+		
+		do
+			chunkStream.write(packet, 0, packet.length);
+		while(chunkStream.size() + packet.length <= ProcessingBuffer.MAX_PACKET_SIZE);
+		
+		chunk = chunkStream.toByteArray();
+		
+		ringBuffer = new ProcessingBuffer(packetReceived -> this.blackhole.consume(packetReceived));
+		legacyBuffer = new LegacyProcessingBuffer(ProcessingBuffer.MAX_PACKET_SIZE, 
+				packetReceived -> this.blackhole.consume(packetReceived));
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		ringBuffer.close();
+	}
+	
+	@Benchmark
+	public void ringBuffer() throws Exception
+	{
+		//Packets are framed and dispatched by addData() itself.
+		ringBuffer.addData(chunk);
+	}
+	
+	@Benchmark
+	public int blockingQueue() throws Exception
+	{
+		legacyBuffer.addData(chunk);
+		return legacyBuffer.processBufferedPackets();
+	}
+}
@@ -0,0 +1,113 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import Parlo.*;
+import Parlo.Exceptions.BufferOverflowException;
+import Parlo.Packets.Packet;
+
+/**
+ * Compares the transports by echoing packets over loopback. Run it on Java 21
+ * or later to benchmark virtual threads, on Java 17 VirtualThreads falls back 
+ * to platform threads.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark 
+{
+	@Param({ "AsynchronousIO", "EventLoop", "VirtualThreads" })
+	public Transport transport;
+	
+	private CancellationTokenSource acceptCTS;
+	private Listener listener;
+	private NetworkClient client;
+	private final Semaphore echoes = new Semaphore(0);
+	private byte[] packet;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		ParloRuntime runtime = ParloRuntime.getDefault();
+		
+		IAsyncSocketChannel listenerSock = runtime.openChannel(transport, true, true);
+		acceptCTS = new CancellationTokenSource();
+		listener = new Listener(listenerSock);
+		listener.setClientDisconnectedCallback(client -> { });
+		CountDownLatch accepted = new CountDownLatch(1);
+		listener.setConnectedCallback(client -> 
+		{
+			client.setReceivedDataCallback(TransportBenchmark::echo);
+			accepted.countDown();
+		});
+		listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+		
+		CountDownLatch connected = new CountDownLatch(1);
+		client = new NetworkClient(runtime.openChannel(transport, false, true));
+		client.setConnectedCallback(sender -> connected.countDown());
+		client.setReceivedDataCallback((sender, received) ->
+		{
+			echoes.release();
+			return CompletableFuture.completedFuture(null);
+		});
+		
+		LoginArgsContainer args = new LoginArgsContainer();
+		args.Address = "127.0.0.1";
+		args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+		client.connectAsync(args);
+		
+		//The accepted client starts receiving before the listener's connected
+		//callback has installed the echo handler, so wait for both sides.
+		if(!connected.await(10, TimeUnit.SECONDS) || !accepted.await(10, TimeUnit.SECONDS))
+			throw new IllegalStateException("Couldn't connect to the listener!");
+		
+		packet = new Packet((byte)10, new byte[64], false).buildPacket();
+	}
+	
+	private static CompletableFuture<Void> echo(NetworkClient sender, Packet received)
+	{
+		try
+		{
+			sender.sendAsync(received.buildPacket());
+		}
+		catch(BufferOverflowException exception)
+		{
+			throw new IllegalStateException(exception);
+		}
+		
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		acceptCTS.cancel();
+		listener.close();
+	}
+	
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	public void roundTrip() throws Exception
+	{
+		client.sendAsync(packet);
+		echoes.acquire();
+	}
+}
@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import Parlo.BufferPool;
+import Parlo.Packets.Packet;
+
+public class BufferPoolTests
+{
+    @Test
+    public void testBuffersAreRoundedUpAndReused()
+    {
+        BufferPool pool = new BufferPool(true, 4, 4);
+
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(128, buffer.capacity());
+        assertEquals(100, buffer.limit());
+        assertEquals(0, buffer.position());
+
+        buffer.putInt(42);
+        pool.release(buffer);
+
+        //The same thread gets its buffer back, cleared.
+        ByteBuffer reused = pool.acquire(120);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(120, reused.limit());
+
+        //Buffers larger than the largest size class aren't pooled.
+        ByteBuffer large = pool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, large.capacity());
+        pool.release(large);
+        assertNotSame(large, pool.acquire(BufferPool.MAX_SIZE + 1));
+    }
+
+    @Test
+    public void testBuffersReleasedOnAnotherThreadAreShared() throws Exception
+    {
+        //Without thread caches, every buffer goes through the shared lists.
+        BufferPool pool = new BufferPool(false, 0, 4);
+        ByteBuffer buffer = CompletableFuture.supplyAsync(() -> pool.acquire(1000)).get();
+
+        pool.release(buffer);
+        assertSame(buffer, CompletableFuture.supplyAsync(() -> pool.acquire(1000)).get());
+    }
+
+    @Test
+    public void testPacketIsBuiltIntoPooledBuffer()
+    {
+        BufferPool pool = new BufferPool(true, 4, 4);
+        byte[] data = new byte[] { 1, 2, 3 };
+        byte[] expected = new Packet((byte) 7, data, false).buildPacket();
+
+        ByteBuffer packet = new Packet((byte) 7, data, false).buildPacket(pool);
+        byte[] built = new byte[packet.remaining()];
+        packet.get(built);
+
+        assertArrayEquals(expected, built);
+        pool.release(packet);
+    }
+
+    @Test
+    public void testLeakedBuffersAreDetected() throws InterruptedException
+    {
+        BufferPool pool = new BufferPool(true, 4, 4);
+        pool.setLeakDetection(true);
+
+        pool.release(pool.acquire(64));
+        pool.acquire(64); //Never released.
+
+        for (int i = 0; i < 50 && pool.checkForLeaks() == 0; i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        assertEquals(1, pool.checkForLeaks());
+    }
+
+    @Test
+    public void testDoubleReleaseIsDetected()
+    {
+        BufferPool pool = new BufferPool(true, 4, 4);
+        ByteBuffer acquiredBefore = pool.acquire(64);
+        pool.setLeakDetection(true);
+
+        ByteBuffer buffer = pool.acquire(64);
+        pool.release(buffer);
+        assertThrows(IllegalStateException.class, () -> pool.release(buffer));
+
+        //Acquiring it again makes it releasable again.
+        assertSame(buffer, pool.acquire(64));
+        pool.release(buffer);
+
+        //Buffers acquired before leak detection was turned on can still be released, once.
+        pool.release(acquiredBefore);
+        assertThrows(IllegalStateException.class, () -> pool.release(acquiredBefore));
+    }
+}
@@ -0,0 +1,430 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+
+import Parlo.BufferPool;
+import Parlo.CancellationTokenSource;
+import Parlo.IAsyncSocketChannel;
+import Parlo.Listener;
+import Parlo.LoginArgsContainer;
+import Parlo.NetworkClient;
+import Parlo.ParloRuntime;
+import Parlo.Transport;
+import Parlo.Compression.CompressionCodecs;
+import Parlo.Compression.CompressionDictionary;
+import Parlo.Compression.CompressionPolicy;
+import Parlo.Compression.DeflateCodec;
+import Parlo.Compression.DeflateStream;
+import Parlo.Compression.DictionaryTrainer;
+import Parlo.Compression.ICompressionCodec;
+import Parlo.Compression.LZCodec;
+import Parlo.Packets.Packet;
+
+public class CompressionTests
+{
+    private static final byte[] TEXT = ("Parlo compresses packets that are larger than the compression threshold, "
+            + "but only when the round trip time is high enough to make it worth it. ")
+            .repeat(6).getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception
+    {
+        DeflateCodec codec = new DeflateCodec();
+        ByteBuffer packet = codec.compressPacket((byte) 10, TEXT, 0, TEXT.length);
+
+        assertNotNull(packet);
+        assertEquals(10, packet.get(0));
+        assertEquals(1, packet.get(1));
+        assertEquals(packet.remaining(), (packet.get(2) & 0xFF) | (packet.get(3) & 0xFF) << 8);
+        assertTrue(packet.remaining() < TEXT.length / 4);
+
+        byte[] compressed = new byte[packet.remaining() - 4];
+        packet.position(4);
+        packet.get(compressed);
+
+        assertArrayEquals(TEXT, codec.decompress(compressed, TEXT.length));
+    }
+
+    @Test
+    public void testCompressingIntoPooledBuffers() throws Exception
+    {
+        BufferPool pool = new BufferPool(true, 0, 0);
+        DeflateStream sender = new DeflateStream();
+        DeflateStream receiver = new DeflateStream();
+
+        for (ICompressionCodec codec : List.of(new DeflateCodec(), new LZCodec()))
+        {
+            ByteBuffer packet = codec.compressPacket((byte) 10, TEXT, 0, TEXT.length, pool);
+            assertTrue(packet.isDirect());
+            assertEquals(packet.remaining(), (packet.get(2) & 0xFF) | (packet.get(3) & 0xFF) << 8);
+            assertArrayEquals(TEXT, codec.decompress(dataOf(packet), TEXT.length));
+        }
+
+        //Data that doesn't compress gets a few bytes larger.
+        byte[] random = new byte[5000];
+        new Random(7).nextBytes(random);
+        for (byte[] message : List.of(TEXT, random))
+        {
+            ByteBuffer packet = sender.compressPacket((byte) 10, ByteBuffer.wrap(message), null, pool);
+            assertTrue(packet.isDirect());
+            assertArrayEquals(message, receiver.decompress(dataOf(packet), message.length));
+        }
+
+        sender.close();
+        receiver.close();
+    }
+
+    private static byte[] dataOf(ByteBuffer packet)
+    {
+        byte[] data = new byte[packet.remaining() - 4];
+        packet.position(4);
+        packet.get(data);
+        return data;
+    }
+
+    @Test
+    public void testDecompressedSizeIsCapped() throws Exception
+    {
+        DeflateCodec codec = new DeflateCodec();
+        byte[] zeroes = new byte[100000];
+        byte[] compressed = new byte[1000];
+        int length = codec.compress(zeroes, 0, zeroes.length, compressed, 0, compressed.length);
+        assertTrue(length > 0);
+
+        byte[] bomb = Arrays.copyOf(compressed, length);
+        assertThrows(DataFormatException.class, () -> codec.decompress(bomb, 1024));
+        assertEquals(zeroes.length, codec.decompress(bomb, zeroes.length).length);
+
+        //Truncated data can't be decompressed either.
+        byte[] truncated = Arrays.copyOf(bomb, length / 2);
+        assertThrows(DataFormatException.class, () -> codec.decompress(truncated, zeroes.length));
+    }
+
+    @Test
+    public void testLZRoundTrip() throws Exception
+    {
+        LZCodec codec = new LZCodec();
+        ByteBuffer packet = codec.compressPacket((byte) 10, TEXT, 0, TEXT.length);
+
+        assertNotNull(packet);
+        assertEquals(LZCodec.ID, packet.get(1));
+        assertTrue(packet.remaining() < TEXT.length / 2);
+
+        byte[] compressed = new byte[packet.remaining() - 4];
+        packet.position(4);
+        packet.get(compressed);
+        assertArrayEquals(TEXT, codec.decompress(compressed, TEXT.length));
+
+        //Runs, which are copied from overlapping matches, and data of every size.
+        Random random = new Random(42);
+        for (int length = 0; length < 2000; length += 1 + length / 8)
+        {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++)
+                data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : i / 50);
+
+            byte[] buffer = new byte[length + 16];
+            int compressedLength = codec.compress(data, 0, length, buffer, 0, buffer.length);
+            assertTrue(compressedLength > 0);
+            assertArrayEquals(data, codec.decompress(Arrays.copyOf(buffer, compressedLength), length));
+        }
+    }
+
+    @Test
+    public void testLZRejectsCorruptData() throws Exception
+    {
+        LZCodec codec = new LZCodec();
+        byte[] zeroes = new byte[100000];
+        byte[] compressed = new byte[1000];
+        int length = codec.compress(zeroes, 0, zeroes.length, compressed, 0, compressed.length);
+        assertTrue(length > 0);
+
+        byte[] bomb = Arrays.copyOf(compressed, length);
+        assertThrows(DataFormatException.class, () -> codec.decompress(bomb, 1024));
+        assertEquals(zeroes.length, codec.decompress(bomb, zeroes.length).length);
+
+        byte[] truncated = Arrays.copyOf(bomb, length / 2);
+        assertThrows(DataFormatException.class, () -> codec.decompress(truncated, zeroes.length));
+
+        //A match that refers to data before the start of the output.
+        byte[] badOffset = { 8, 0x04, 'a', 0x05, 0x00 };
+        assertThrows(DataFormatException.class, () -> codec.decompress(badOffset, 100));
+    }
+
+    /**
+     * Feeds a policy packets, as if every codec compressed them at the given ratio
+     * and cost, and counts how many of the last 100 packets it compressed.
+     */
+    private static int compressedByPolicy(CompressionPolicy policy, byte id, double ratio, long nanosPerByte)
+    {
+        int compressed = 0;
+
+        for (int i = 0; i < 1000; i++)
+        {
+            ICompressionCodec codec = policy.choose(id, 1000);
+            if (codec == null)
+                continue;
+
+            policy.recordCompression(id, codec, 1000, (int) (1000 * ratio), 1000 * nanosPerByte);
+            if (i >= 900)
+                compressed++;
+        }
+
+        return compressed;
+    }
+
+    @Test
+    public void testPolicyOnlyCompressesWhenItSavesTime()
+    {
+        //10 MB/s: sending a byte takes 100 ns, far longer than compressing it.
+        CompressionPolicy slowLink = new CompressionPolicy(10_000_000, new LZCodec(), new DeflateCodec());
+        assertEquals(100, compressedByPolicy(slowLink, (byte) 10, 0.2, 2));
+
+        //Packets that don't compress are skipped, and only tried now and then.
+        assertTrue(compressedByPolicy(slowLink, (byte) 11, 1.0, 2) <= 1);
+
+        //10 GB/s: sending a byte takes 0.1 ns, so compressing it never pays off.
+        CompressionPolicy fastLink = new CompressionPolicy(10_000_000_000.0, new LZCodec(), new DeflateCodec());
+        assertTrue(compressedByPolicy(fastLink, (byte) 10, 0.2, 2) <= 10);
+
+        //The measured throughput replaces the assumed one.
+        for (int i = 0; i < 100; i++)
+            fastLink.recordWrite(100_000, 10_000_000);
+        assertEquals(10_000_000, fastLink.getThroughput(), 100_000);
+        assertEquals(100, compressedByPolicy(fastLink, (byte) 10, 0.2, 2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = { Integer.MAX_VALUE - 100L, Long.MAX_VALUE - 100L })
+    public void testPolicySurvivesPacketCounterWrap(long start) throws Exception
+    {
+        CompressionPolicy policy = new CompressionPolicy(10_000_000, new LZCodec(), new DeflateCodec());
+        assertEquals(100, compressedByPolicy(policy, (byte) 10, 0.2, 2));
+
+        //Skips ahead to just before the counter wraps, rather than sending billions of packets.
+        Field statisticsField = CompressionPolicy.class.getDeclaredField("statistics");
+        statisticsField.setAccessible(true);
+        Object statistics = ((AtomicReferenceArray<?>) statisticsField.get(policy)).get(10);
+        Field packets = statistics.getClass().getDeclaredField("packets");
+        packets.setAccessible(true);
+        packets.setLong(statistics, start);
+
+        assertEquals(100, compressedByPolicy(policy, (byte) 10, 0.2, 2));
+    }
+
+    @Test
+    public void testIncompressibleDataIsNotCompressed()
+    {
+        byte[] random = new byte[600];
+        new Random(42).nextBytes(random);
+
+        assertNull(new DeflateCodec().compressPacket((byte) 10, random, 0, random.length));
+    }
+
+    @Test
+    public void testDeflateStreamCompressesAcrossPackets() throws Exception
+    {
+        DeflateStream sender = new DeflateStream();
+        DeflateStream receiver = new DeflateStream();
+        DeflateCodec codec = new DeflateCodec();
+        int streamedBytes = 0, codecBytes = 0;
+
+        for (int i = 0; i < 100; i++)
+        {
+            byte[] message = ("{\"player\":\"Afr0\",\"x\":" + i + ",\"y\":" + (i * 3) + "}")
+                    .getBytes(StandardCharsets.US_ASCII);
+
+            ByteBuffer packet = sender.compressPacket((byte) 10, message, 0, message.length);
+            assertEquals(DeflateStream.ID, packet.get(1));
+            streamedBytes += packet.remaining();
+
+            ByteBuffer single = codec.compressPacket((byte) 10, message, 0, message.length);
+            codecBytes += single != null ? single.remaining() : 4 + message.length;
+
+            byte[] compressed = Arrays.copyOfRange(packet.array(), 4, packet.remaining());
+            assertArrayEquals(message, receiver.decompress(compressed, 1024));
+        }
+
+        //Every packet after the first mostly refers back to the ones before it.
+        assertTrue(streamedBytes * 2 < codecBytes, streamedBytes + " vs " + codecBytes);
+
+        sender.close();
+        receiver.close();
+    }
+
+    private static byte[] chatMessage(int i)
+    {
+        return ("{\"type\":\"chat\",\"channel\":\"general\",\"from\":\"player" + (i % 17)
+                + "\",\"text\":\"message number " + i + "\"}").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testTrainedDictionaryCompressesSmallPackets() throws Exception
+    {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            samples.add(chatMessage(i));
+
+        CompressionDictionary dictionary = DictionaryTrainer.train(samples, 1024);
+        assertNotNull(dictionary);
+        assertTrue(dictionary.getSize() <= 1024);
+
+        DeflateCodec codec = new DeflateCodec();
+        byte[] message = chatMessage(1000);
+
+        ByteBuffer plain = codec.compressPacket((byte) 10, message, 0, message.length);
+        ByteBuffer withDictionary = codec.compressPacket((byte) 10, message, 0, message.length, dictionary);
+        int plainLength = plain != null ? plain.remaining() : 4 + message.length;
+
+        assertEquals(DeflateCodec.DICTIONARY_ID, withDictionary.get(1));
+        assertTrue(withDictionary.remaining() * 2 < plainLength, withDictionary.remaining() + " vs " + plainLength);
+
+        byte[] compressed = Arrays.copyOfRange(withDictionary.array(), 4, withDictionary.remaining());
+        assertArrayEquals(message, codec.decompress(compressed, 1024, dictionary));
+        assertThrows(DataFormatException.class, () -> codec.decompress(compressed, 1024));
+
+        //Same samples, same dictionary.
+        assertEquals(dictionary.getID(), DictionaryTrainer.train(samples, 1024).getID());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    public void testDictionaryNegotiatedOverLoopback(boolean sameDictionary) throws Exception
+    {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            samples.add(chatMessage(i));
+
+        ParloRuntime runtime = ParloRuntime.getDefault();
+        ConcurrentLinkedQueue<Packet> echoedPackets = new ConcurrentLinkedQueue<>();
+        CountDownLatch echoedLatch = new CountDownLatch(20);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        CancellationTokenSource acceptCTS = new CancellationTokenSource();
+
+        IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+        Listener listener = new Listener(listenerSock);
+        listener.streamCompression = true;
+        listener.compressionDictionary = sameDictionary ? DictionaryTrainer.train(samples, 1024) 
+                : new CompressionDictionary(new byte[] { 1, 2, 3 });
+        listener.setClientDisconnectedCallback(client -> { });
+        listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) ->
+        {
+            try
+            {
+                sender.sendAsync(packet.buildPacket());
+            }
+            catch (Exception exception)
+            {
+                fail(exception);
+            }
+            return CompletableFuture.completedFuture(null);
+        }));
+        listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+
+        //Small packets are only compressed because of the dictionary.
+        NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+        client.applyCompression = true;
+        client.compressionDictionary = DictionaryTrainer.train(samples, 1024);
+        client.setConnectedCallback(sender -> connectedLatch.countDown());
+        client.setReceivedDataCallback((sender, packet) ->
+        {
+            echoedPackets.add(packet);
+            echoedLatch.countDown();
+            return CompletableFuture.completedFuture(null);
+        });
+
+        LoginArgsContainer args = new LoginArgsContainer();
+        args.Address = "127.0.0.1";
+        args.Port = ((InetSocketAddress) listenerSock.getLocalAddress()).getPort();
+        client.connectAsync(args);
+
+        assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Dictionary wasn't negotiated");
+
+        for (int i = 0; i < 20; i++)
+            client.sendAsync(new Packet((byte) (10 + i), chatMessage(i), false).buildPacket());
+
+        assertTrue(echoedLatch.await(10, TimeUnit.SECONDS), "Not all packets were echoed");
+
+        int i = 0;
+        for (Packet packet : echoedPackets)
+        {
+            assertEquals((byte) (10 + i), packet.getID());
+            assertArrayEquals(chatMessage(i), packet.getData());
+            i++;
+        }
+
+        acceptCTS.cancel();
+        listener.close();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "deflate", "stream", "lz", "adaptive" })
+    public void testCompressedPacketsOverLoopback(String compression) throws Exception
+    {
+        ParloRuntime runtime = ParloRuntime.getDefault();
+        ConcurrentLinkedQueue<Packet> receivedPackets = new ConcurrentLinkedQueue<>();
+        CountDownLatch receivedLatch = new CountDownLatch(10);
+        CountDownLatch connectedLatch = new CountDownLatch(1);
+        CancellationTokenSource acceptCTS = new CancellationTokenSource();
+
+        IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+        Listener listener = new Listener(listenerSock);
+        listener.setClientDisconnectedCallback(client -> { });
+        listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) ->
+        {
+            receivedPackets.add(packet);
+            receivedLatch.countDown();
+            return CompletableFuture.completedFuture(null);
+        }));
+        listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+
+        //Compresses every packet, no matter how low the RTT is.
+        NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+        client.applyCompression = true;
+        client.RTTcompressionThreshold = -1;
+        client.streamCompression = compression.equals("stream");
+        if (compression.equals("lz"))
+            client.compressionCodec = CompressionCodecs.get(LZCodec.ID);
+        client.adaptiveCompression = compression.equals("adaptive");
+        client.setConnectedCallback(sender -> connectedLatch.countDown());
+
+        LoginArgsContainer args = new LoginArgsContainer();
+        args.Address = "127.0.0.1";
+        args.Port = ((InetSocketAddress) listenerSock.getLocalAddress()).getPort();
+        client.connectAsync(args);
+
+        assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+
+        for (int i = 0; i < 10; i++)
+            client.sendAsync(new Packet((byte) (10 + i), TEXT, false).buildPacket());
+
+        assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+
+        int i = 0;
+        for (Packet packet : receivedPackets)
+        {
+            assertEquals((byte) (10 + i), packet.getID());
+            assertArrayEquals(TEXT, packet.getData());
+            i++;
+        }
+
+        acceptCTS.cancel();
+        listener.close();
+    }
+}
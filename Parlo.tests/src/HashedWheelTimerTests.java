@@ -0,0 +1,60 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import Parlo.HashedWheelTimer;
+
+public class HashedWheelTimerTests
+{
+    @Test
+    public void testTimeoutsExpire() throws InterruptedException
+    {
+        HashedWheelTimer timer = new HashedWheelTimer(Thread::new, 10, TimeUnit.MILLISECONDS, 8);
+        CountDownLatch latch = new CountDownLatch(3);
+
+        try
+        {
+        	//The last one is more than a full rotation of the wheel away.
+        	timer.schedule(latch::countDown, 0, TimeUnit.MILLISECONDS);
+        	timer.schedule(latch::countDown, 30, TimeUnit.MILLISECONDS);
+        	HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown,
+        			200, TimeUnit.MILLISECONDS);
+
+        	assertTrue(latch.await(5, TimeUnit.SECONDS));
+        	assertTrue(timeout.isExpired());
+        	assertFalse(timeout.cancel());
+        }
+        finally
+        {
+        	timer.close();
+        }
+    }
+
+    @Test
+    public void testCancelledTimeoutDoesntExpire() throws InterruptedException
+    {
+        HashedWheelTimer timer = new HashedWheelTimer(Thread::new, 10, TimeUnit.MILLISECONDS, 8);
+        AtomicBoolean expired = new AtomicBoolean(false);
+        CountDownLatch latch = new CountDownLatch(1);
+
+        try
+        {
+        	HashedWheelTimer.Timeout timeout = timer.schedule(() -> expired.set(true),
+        			50, TimeUnit.MILLISECONDS);
+        	assertTrue(timeout.cancel());
+        	assertTrue(timeout.isCancelled());
+
+        	timer.schedule(latch::countDown, 100, TimeUnit.MILLISECONDS);
+
+        	assertTrue(latch.await(5, TimeUnit.SECONDS));
+        	assertFalse(expired.get());
+        }
+        finally
+        {
+        	timer.close();
+        }
+    }
+}
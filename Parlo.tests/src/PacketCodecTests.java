@@ -0,0 +1,210 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.File;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import Parlo.BufferPool;
+import Parlo.Packets.IPacket;
+import Parlo.Packets.IPacketCodec;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketCodecs;
+import Parlo.Packets.PacketReader;
+import Parlo.Packets.PacketWriter;
+import Parlo.Processor.PacketCodecProcessor;
+
+public class PacketCodecTests
+{
+    private static final String LOGIN = String.join("\n",
+            "package game;",
+            "import Parlo.Packets.*;",
+            "@ParloPacket(id = 20)",
+            "public class Login implements IPacket",
+            "{",
+            "    public enum Platform { Windows, Linux }",
+            "    public String name;",
+            "    int level;",
+            "    public long sessionID;",
+            "    public char initial;",
+            "    public boolean admin;",
+            "    public double x;",
+            "    public byte[] avatar;",
+            "    public byte[] icon;",
+            "    public Platform platform;",
+            "    public transient int skipped;",
+            "    public static int alsoSkipped;",
+            "}");
+
+    private static final String MOVE = String.join("\n",
+            "package game;",
+            "import Parlo.Packets.*;",
+            "public class Outer",
+            "{",
+            "    @ParloPacket(id = 21)",
+            "    public record Move(short x, short y, float speed, String target) implements IPacket { }",
+            "}");
+
+    @Test
+    public void testGeneratedCodecsRoundTrip(@TempDir Path output) throws Exception
+    {
+        String errors = compile(output, source("game/Login", LOGIN), source("game/Outer", MOVE));
+        assertEquals("", errors);
+
+        //The codecs are listed, so PacketCodecs can find them.
+        List<String> services = Files.readAllLines(output.resolve("META-INF/services/Parlo.Packets.IPacketCodec"));
+        assertEquals(List.of("game.LoginCodec", "game.Outer_MoveCodec"), services);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { output.toUri().toURL() }, getClass().getClassLoader()))
+        {
+            IPacketCodec<IPacket> loginCodec = newCodec(loader, "game.LoginCodec");
+            assertEquals(20, loginCodec.getID());
+
+            Class<?> loginClass = loginCodec.getPacketClass();
+            IPacket login = (IPacket) loginClass.getConstructor().newInstance();
+            loginClass.getField("name").set(login, "Afr0");
+            loginClass.getField("sessionID").setLong(login, 1234567890123L);
+            loginClass.getField("initial").setChar(login, '\u00C6');
+            loginClass.getField("admin").setBoolean(login, true);
+            loginClass.getField("x").setDouble(login, -1.5);
+            loginClass.getField("avatar").set(login, null);
+            loginClass.getField("icon").set(login, new byte[] { 1, 2, 3 });
+            loginClass.getField("platform").set(login, loginClass.getField("platform").getType().getEnumConstants()[1]);
+            loginClass.getField("skipped").setInt(login, 99);
+
+            //Registered by ID, and found by ID when decoding.
+            PacketCodecs.register(loginCodec);
+            Packet received = toPacket(PacketCodecs.write(login, new PacketWriter(new BufferPool(true, 0, 0))));
+            assertEquals((byte) 20, received.getID());
+
+            IPacket decoded = PacketCodecs.decode(received, new PacketReader());
+            assertSame(loginClass, decoded.getClass());
+            assertEquals("Afr0", loginClass.getField("name").get(decoded));
+            assertEquals(1234567890123L, loginClass.getField("sessionID").getLong(decoded));
+            assertEquals('\u00C6', loginClass.getField("initial").getChar(decoded));
+            assertTrue(loginClass.getField("admin").getBoolean(decoded));
+            assertEquals(-1.5, loginClass.getField("x").getDouble(decoded));
+            assertArrayEquals(new byte[0], (byte[]) loginClass.getField("avatar").get(decoded));
+            assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) loginClass.getField("icon").get(decoded));
+            assertEquals("Linux", loginClass.getField("platform").get(decoded).toString());
+            assertEquals(0, loginClass.getField("skipped").getInt(decoded));
+
+            IPacketCodec<IPacket> moveCodec = newCodec(loader, "game.Outer_MoveCodec");
+            Class<?> moveClass = moveCodec.getPacketClass();
+            IPacket move = (IPacket) moveClass.getConstructors()[0].newInstance((short) 3, (short) -4, 2.5f, "Orc");
+
+            PacketWriter writer = moveCodec.write(move, new PacketWriter(new BufferPool(false, 0, 0)));
+            assertEquals(move, moveCodec.decode(new PacketReader(toPacket(writer))));
+
+            //A peer can't make the decoder allocate more than the packet holds, or pick an enum that doesn't exist.
+            Packet oversized = toPacket(writeLoginFields(new PacketWriter(new BufferPool(false, 0, 0)))
+                    .writeVarInt(Integer.MAX_VALUE));
+            assertThrows(BufferUnderflowException.class, () -> loginCodec.decode(new PacketReader(oversized)));
+
+            Packet badEnum = toPacket(writeLoginFields(new PacketWriter(new BufferPool(false, 0, 0)))
+                    .writeVarInt(0).writeVarInt(0).writeVarInt(7));
+            assertThrows(IllegalStateException.class, () -> loginCodec.decode(new PacketReader(badEnum)));
+        }
+    }
+
+    @Test
+    public void testServiceFileIsMergedAcrossCompilations(@TempDir Path output) throws Exception
+    {
+        //An incremental build only recompiles some packets, so the codecs from earlier builds have to stay listed.
+        assertEquals("", compile(output, source("game/Login", LOGIN)));
+        assertEquals("", compile(output, source("game/Outer", MOVE)));
+
+        List<String> services = Files.readAllLines(output.resolve("META-INF/services/Parlo.Packets.IPacketCodec"));
+        assertEquals(List.of("game.LoginCodec", "game.Outer_MoveCodec"), services);
+    }
+
+    //Writes the fields of a Login up to, but not including, avatar.
+    private static PacketWriter writeLoginFields(PacketWriter writer)
+    {
+        return writer.begin((byte) 20).writeString("Afr0").writeInt(1).writeLong(2L).writeShort((short) 'A')
+                .writeBoolean(false).writeDouble(0.0);
+    }
+
+    @Test
+    public void testUnsupportedPacketsAreRejected(@TempDir Path output) throws Exception
+    {
+        String errors = compile(output, source("game/Bad", String.join("\n",
+                "package game;",
+                "import Parlo.Packets.*;",
+                "@ParloPacket(id = 0xFD)",
+                "class Reserved implements IPacket { }",
+                "@ParloPacket(id = 30)",
+                "class Bad implements IPacket",
+                "{",
+                "    private int hidden;",
+                "    public Object anything;",
+                "}")));
+
+        assertTrue(errors.contains("reserved"), errors);
+        assertTrue(errors.contains("can't be private"), errors);
+        assertTrue(errors.contains("must be booleans, numbers"), errors);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static IPacketCodec<IPacket> newCodec(ClassLoader loader, String name) throws Exception
+    {
+        return (IPacketCodec<IPacket>) loader.loadClass(name).getConstructor().newInstance();
+    }
+
+    //Turns a finished writer into a Packet, the way ProcessingBuffer would.
+    private static Packet toPacket(PacketWriter writer) throws Exception
+    {
+        ByteBuffer built = writer.finish();
+        byte[] data = new byte[built.remaining() - 4];
+        byte id = built.get();
+
+        built.position(4);
+        built.get(data);
+        writer.getPool().release(built);
+
+        return new Packet(id, data, false);
+    }
+
+    private static JavaFileObject source(String name, String code)
+    {
+        return new SimpleJavaFileObject(new File(name + ".java").toURI(), JavaFileObject.Kind.SOURCE)
+        {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors)
+            {
+                return code;
+            }
+        };
+    }
+
+    //Compiles sources with the processor, and returns the errors it reported.
+    private static String compile(Path output, JavaFileObject... sources)
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StringWriter errors = new StringWriter();
+        List<String> options = List.of("-d", output.toString(), "-classpath",
+                System.getProperty("java.class.path") + File.pathSeparator + output);
+
+        JavaCompiler.CompilationTask task = compiler.getTask(errors, null, diagnostic ->
+        {
+            if (diagnostic.getKind() == javax.tools.Diagnostic.Kind.ERROR)
+                errors.write(diagnostic.getMessage(null) + "\n");
+        }, options, null, List.of(sources));
+
+        task.setProcessors(List.of(new PacketCodecProcessor()));
+        task.call();
+
+        return errors.toString();
+    }
+}
@@ -0,0 +1,67 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import Parlo.PacketDispatcher;
+import Parlo.PacketMailbox;
+import Parlo.Packets.Packet;
+
+public class PacketMailboxTests
+{
+    @Test
+    public void testPacketsAreHandledInOrderInBatches()
+    {
+        //Runs nothing until the test says so, so every run can be checked.
+        ArrayDeque<Runnable> scheduled = new ArrayDeque<>();
+        List<Integer> handled = new ArrayList<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        PacketDispatcher dispatcher = new PacketDispatcher();
+        dispatcher.setHandler((byte) 10, (client, packet) ->
+        {
+            handled.add((int) packet.getData()[0]);
+            return CompletableFuture.completedFuture(null);
+        });
+        //Packets with ID 11 finish being handled later.
+        dispatcher.setHandler((byte) 11, (client, packet) ->
+        {
+            handled.add((int) packet.getData()[0]);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pending.add(future);
+            return future;
+        });
+
+        PacketMailbox mailbox = new PacketMailbox(null, dispatcher, scheduled::add, 4);
+        for (int i = 0; i < 10; i++)
+            mailbox.post(new Packet((byte) (i == 6 ? 11 : 10), new byte[] { (byte) i }, false));
+
+        //The mailbox is only scheduled once, no matter how many packets are posted.
+        assertEquals(1, scheduled.size());
+
+        scheduled.poll().run();
+        assertEquals(List.of(0, 1, 2, 3), handled);
+        assertEquals(1, scheduled.size());
+
+        //Stops at 6, as it hasn't been handled yet.
+        scheduled.poll().run();
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6), handled);
+        assertEquals(0, scheduled.size());
+        assertEquals(3, mailbox.size());
+
+        pending.get(0).complete(null);
+        assertEquals(1, scheduled.size());
+
+        scheduled.poll().run();
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), handled);
+        assertEquals(0, scheduled.size());
+        assertEquals(0, mailbox.size());
+
+        //Once empty, posting schedules it again.
+        mailbox.post(new Packet((byte) 10, new byte[] { 10 }, false));
+        assertEquals(1, scheduled.size());
+    }
+}
@@ -0,0 +1,253 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.time.Duration;
+
+import Parlo.BufferPool;
+import Parlo.ProcessingBuffer;
+import Parlo.Encryption.AEADSession;
+import Parlo.Encryption.CipherProbe;
+import Parlo.Encryption.EncryptionArgs;
+import Parlo.Encryption.EncryptionMode;
+import Parlo.Exceptions.DecryptionException;
+import Parlo.Packets.EncryptedPacket;
+import Parlo.Packets.GoodbyePacket;
+import Parlo.Packets.HeartbeatPacket;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketReader;
+import Parlo.Packets.PacketWriter;
+
+public class PacketTests
+{
+    @Test
+    public void testHeartbeatRoundTrip()
+    {
+        HeartbeatPacket heartbeat = new HeartbeatPacket(Duration.ofMillis(30001));
+        byte[] data = heartbeat.toByteArray();
+
+        assertEquals(HeartbeatPacket.SIZE, data.length);
+
+        HeartbeatPacket decoded = HeartbeatPacket.byteArrayToObject(data);
+        assertEquals(heartbeat.getSentTimestamp(), decoded.getSentTimestamp());
+        assertEquals(heartbeat.getTimeSinceLast(), decoded.getTimeSinceLast());
+
+        //Too short to be a heartbeat.
+        assertNull(HeartbeatPacket.byteArrayToObject(new byte[] { 1, 2, 3 }));
+
+        //Times that are out of range are malformed, not exceptions.
+        byte[] garbage = new byte[HeartbeatPacket.SIZE];
+        Arrays.fill(garbage, (byte) 0x7F);
+        assertNull(HeartbeatPacket.byteArrayToObject(garbage));
+        assertNull(GoodbyePacket.byteArrayToObject(Arrays.copyOf(garbage, GoodbyePacket.SIZE)));
+    }
+
+    @Test
+    public void testGoodbyeWrittenAfterHeader()
+    {
+        GoodbyePacket goodbye = new GoodbyePacket(5);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + GoodbyePacket.SIZE);
+
+        buffer.position(4);
+        goodbye.writeTo(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        buffer.position(4);
+        GoodbyePacket decoded = GoodbyePacket.readFrom(buffer);
+        assertEquals(Duration.ofSeconds(5), decoded.getTimeOut());
+        assertEquals(goodbye.getSentTime(), decoded.getSentTime());
+    }
+
+    @Test
+    public void testCompressionCodeSurvivesBuildPacket() throws Exception
+    {
+        byte[] data = { 1, 2, 3, 4 };
+        byte[] built = new Packet((byte) 20, data, (byte) 3).buildPacket();
+        assertEquals(3, built[1]);
+
+        AtomicReference<Packet> received = new AtomicReference<>();
+        try (ProcessingBuffer buffer = new ProcessingBuffer(received::set))
+        {
+            buffer.addData(built);
+        }
+
+        assertEquals((byte) 20, received.get().getID());
+        assertEquals(3, received.get().getIsCompressed());
+        assertArrayEquals(data, received.get().getData());
+    }
+
+    @Test
+    public void testEncryptedPacketRoundTrip() throws Exception
+    {
+        EncryptionArgs args = new EncryptionArgs();
+        args.Mode = EncryptionMode.AES;
+        args.Key = "Password";
+        args.Salt = "0123456789abcdef";
+
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+
+        byte[] packet = new EncryptedPacket(args, (byte) 10, data).BuildPacket();
+        assertEquals(10, packet[0]);
+        assertEquals(packet.length, (packet[2] & 0xFF) | (packet[3] & 0xFF) << 8);
+
+        byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+        assertArrayEquals(data, new EncryptedPacket(args, (byte) 10, encryptedData).decryptPacket());
+
+        //Every packet gets its own IV, so the same data never encrypts to the same bytes.
+        byte[] again = new EncryptedPacket(args, (byte) 10, data).BuildPacket();
+        assertFalse(Arrays.equals(packet, again));
+        assertArrayEquals(data, new EncryptedPacket(args, (byte) 10, 
+                Arrays.copyOfRange(again, 4, again.length)).decryptPacket());
+
+        //The legacy mode doesn't send an IV, and is deterministic.
+        args.LegacyZeroIV = true;
+        packet = new EncryptedPacket(args, (byte) 10, data).BuildPacket();
+        assertEquals(4 + 112, packet.length);
+        assertArrayEquals(packet, new EncryptedPacket(args, (byte) 10, data).BuildPacket());
+        encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+        assertArrayEquals(data, new EncryptedPacket(args, (byte) 10, encryptedData).decryptPacket());
+    }
+
+    @Test
+    public void testAESGCMSession() throws Exception
+    {
+        EncryptionArgs args = new EncryptionArgs();
+        args.Mode = EncryptionMode.AESGCM;
+        args.Key = "Password";
+        args.Salt = "0123456789abcdef";
+
+        byte[] sessionKey = AEADSession.deriveSessionKey(args, AEADSession.newSessionSalt());
+        AEADSession client = new AEADSession(sessionKey, true);
+        AEADSession server = new AEADSession(sessionKey, false);
+
+        byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] packet = new EncryptedPacket(client, (byte) 10, data).BuildPacket();
+            assertEquals(4 + data.length + AEADSession.TAG_SIZE, packet.length);
+
+            byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+            assertArrayEquals(data, new EncryptedPacket(server, (byte) 10, encryptedData).decryptPacket());
+        }
+
+        //A replayed packet uses the wrong nonce, and so does a tampered one.
+        byte[] packet = new EncryptedPacket(client, (byte) 10, data).BuildPacket();
+        byte[] tampered = Arrays.copyOfRange(packet, 4, packet.length);
+        tampered[0] ^= 1;
+        assertThrows(DecryptionException.class, () -> server.decrypt((byte) 10, (byte) 0, tampered));
+
+        //The header is authenticated too, so changing the ID or isCompressed byte is caught.
+        byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+        assertThrows(DecryptionException.class, () -> server.decrypt((byte) 11, (byte) 0, encryptedData));
+        assertThrows(DecryptionException.class, () -> server.decrypt((byte) 10, (byte) 3, encryptedData));
+        assertArrayEquals(data, server.decrypt((byte) 10, (byte) 0, encryptedData));
+    }
+
+    @Test
+    public void testChaCha20Poly1305Session() throws Exception
+    {
+        byte[] sessionKey = AEADSession.newSessionKey();
+        AEADSession client = new AEADSession(sessionKey, true, EncryptionMode.ChaCha20Poly1305);
+        AEADSession server = new AEADSession(sessionKey, false, EncryptionMode.ChaCha20Poly1305);
+
+        byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+
+        for (int i = 0; i < 3; i++)
+        {
+            byte[] packet = new EncryptedPacket(client, (byte) 10, data).BuildPacket();
+            assertEquals(4 + data.length + AEADSession.TAG_SIZE, packet.length);
+
+            byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+            assertArrayEquals(data, new EncryptedPacket(server, (byte) 10, encryptedData).decryptPacket());
+        }
+
+        //Sessions using different ciphers can't read each other's packets.
+        AEADSession gcm = new AEADSession(sessionKey, false);
+        byte[] packet = new EncryptedPacket(client, (byte) 10, data).BuildPacket();
+        byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+        assertThrows(DecryptionException.class, () -> gcm.decrypt((byte) 10, (byte) 0, encryptedData));
+
+        //Each cipher gets its own key from the same arguments.
+        EncryptionArgs args = new EncryptionArgs();
+        args.Key = "Password";
+        args.Salt = "0123456789abcdef";
+        byte[] salt = AEADSession.newSessionSalt();
+        assertFalse(Arrays.equals(AEADSession.deriveSessionKey(args, salt, EncryptionMode.AESGCM), 
+                AEADSession.deriveSessionKey(args, salt, EncryptionMode.ChaCha20Poly1305)));
+    }
+
+    @Test
+    public void testTwofishRoundTrip() throws Exception
+    {
+        EncryptionArgs args = new EncryptionArgs();
+        args.Mode = EncryptionMode.Twofish;
+        args.Key = "Any length password";
+        args.Salt = "0123456789abcdef";
+
+        for (int length : new int[] { 0, 15, 16, 100 })
+        {
+            byte[] data = new byte[length];
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) i;
+
+            byte[] packet = new EncryptedPacket(args, (byte) 10, data).BuildPacket();
+            assertEquals(0, (packet.length - 4) % 16);
+            assertFalse(Arrays.equals(packet, new EncryptedPacket(args, (byte) 10, data).BuildPacket()));
+
+            byte[] encryptedData = Arrays.copyOfRange(packet, 4, packet.length);
+            assertArrayEquals(data, new EncryptedPacket(args, (byte) 10, encryptedData).decryptPacket());
+        }
+    }
+
+    @Test
+    public void testCipherProbeRanksAEADModes()
+    {
+        List<EncryptionMode> modes = CipherProbe.getRankedModes();
+
+        assertTrue(modes.contains(EncryptionMode.AESGCM));
+        assertTrue(modes.contains(EncryptionMode.ChaCha20Poly1305));
+        assertTrue(modes.stream().allMatch(EncryptionMode::isAEAD));
+        assertSame(modes, CipherProbe.getRankedModes());
+    }
+
+    @Test
+    public void testPacketWriterRoundTrip() throws Exception
+    {
+        BufferPool pool = new BufferPool(true, 4, 4);
+        PacketWriter writer = new PacketWriter(pool);
+        String text = "Hei, verden! \u00e6\u00f8\u00e5 \u20ac \ud83d\ude00";
+        byte[] bytes = new byte[1000]; //Makes the writer grow its buffer.
+        bytes[999] = 42;
+
+        ByteBuffer built = writer.begin((byte) 12).writeInt(-5).writeVarInt(300).writeVarLong(-1L)
+                .writeString(text).writeDouble(0.5).writeBoolean(true).writeBytes(bytes).finish();
+        byte[] packet = new byte[built.remaining()];
+        built.get(packet);
+        pool.release(built);
+
+        //The header is the same as one built by Packet.
+        byte[] data = Arrays.copyOfRange(packet, 4, packet.length);
+        assertArrayEquals(new Packet((byte) 12, data, false).buildPacket(), packet);
+
+        PacketReader reader = new PacketReader(new Packet((byte) 12, data, false));
+        assertEquals(-5, reader.readInt());
+        assertEquals(300, reader.readVarInt());
+        assertEquals(-1L, reader.readVarLong());
+        assertEquals(text, reader.readString());
+        assertEquals(0.5, reader.readDouble());
+        assertTrue(reader.readBoolean());
+
+        byte[] read = new byte[1000];
+        reader.readBytes(read, 0, read.length);
+        assertArrayEquals(bytes, read);
+        assertFalse(reader.hasRemaining());
+        assertThrows(BufferUnderflowException.class, reader::readByte);
+    }
+}
@@ -6,8 +6,13 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import Parlo.BufferPool;
 import Parlo.ProcessedPacketDelegate;
 import Parlo.ProcessingBuffer;
+import Parlo.RefCountedBuffer;
 import Parlo.Exceptions.BufferOverflowException;
 import Parlo.Packets.Packet;
 
@@ -25,16 +30,16 @@ public class ProcessingBufferTests
         	}
         });
         
-        byte[] data = new byte[] { 1, 2, 3, 4 };
+        //Less than a header, so the data will stay in the buffer.
+        byte[] data = new byte[] { 1, 2, 3 };
         
         try 
         {
         	processingBuffer.addData(data);
-            assertEquals(4, processingBuffer.getInternalBuffer().size());
-            byte peekedValue = processingBuffer.getInternalBuffer().poll(1, TimeUnit.SECONDS);
+            assertEquals(3, processingBuffer.getBufferedByteCount());
+            byte peekedValue = processingBuffer.peek(0);
 
             assertEquals(data[0], peekedValue);
-            processingBuffer.getInternalBuffer().add(peekedValue);
         } 
         catch (Exception e)
         {
@@ -82,10 +87,13 @@ public class ProcessingBufferTests
 
         try 
         {
-            processingBuffer.addData(/*data*/packet.buildPacket());
+            byte[] packetData = packet.buildPacket();
+            
+            //The packet shouldn't be processed until its last byte has arrived.
+            processingBuffer.addData(java.util.Arrays.copyOfRange(packetData, 0, packetData.length - 1));
             assertFalse(eventFired[0]);
             
-            processingBuffer.addData(new byte[] { 8, 9, 10 });
+            processingBuffer.addData(java.util.Arrays.copyOfRange(packetData, packetData.length - 1, packetData.length));
             boolean wasCalled = latch.await(5, TimeUnit.SECONDS);
             assertTrue("Callback was not invoked within the timeout", wasCalled);
             assertTrue(eventFired[0]);
@@ -96,4 +104,111 @@ public class ProcessingBufferTests
             processingBuffer.close();
         }
     }
+
+    @Test
+    public void testProcessingPacketsAcrossWrapAround() throws Exception
+    {
+        int[] packetsProcessed = new int[] { 0 };
+        
+        ProcessingBuffer processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
+        {
+        	public void onProcessedPacket(Packet packet)
+        	{
+        		assertEquals(packetsProcessed[0] % 128, packet.getID());
+        		assertEquals(600, packet.getData().length);
+        		assertEquals((byte)packetsProcessed[0], packet.getData()[599]);
+        		packetsProcessed[0]++;
+        	}
+        });
+        
+        //Every packet is larger than half the buffer, so the data has to wrap around.
+        for (int i = 0; i < 10; i++)
+        {
+        	byte[] data = new byte[600];
+        	data[599] = (byte)i;
+        	byte[] packetData = new Packet((byte)(i % 128), data, false).buildPacket();
+        	
+        	processingBuffer.addData(java.util.Arrays.copyOfRange(packetData, 0, 300));
+        	processingBuffer.addData(java.util.Arrays.copyOfRange(packetData, 300, packetData.length));
+        }
+        
+        assertEquals(10, packetsProcessed[0]);
+        assertEquals(0, processingBuffer.getBufferedByteCount());
+        processingBuffer.close();
+    }
+
+    @Test
+    public void testPacketsAreViewsOfTheReceiveBuffer() throws Exception
+    {
+        List<Packet> retained = new ArrayList<>();
+        
+        ProcessingBuffer processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
+        {
+        	public void onProcessedPacket(Packet packet)
+        	{
+        		assertTrue(packet.isView() || packet.getID() == 3);
+        		retained.add(packet.retain());
+        	}
+        });
+        
+        byte[] first = new Packet((byte)1, new byte[] { 1, 2, 3 }, false).buildPacket();
+        byte[] second = new Packet((byte)2, new byte[] { 4, 5 }, false).buildPacket();
+        byte[] third = new Packet((byte)3, new byte[] { 6, 7, 8, 9 }, false).buildPacket();
+        
+        BufferPool pool = new BufferPool(false, 0, 0);
+        RefCountedBuffer received = new RefCountedBuffer(pool, pool.acquire(64));
+        //The third packet is split across two reads, so it's put together in the ring.
+        received.getBuffer().put(first).put(second).put(third, 0, 5).flip();
+        processingBuffer.addData(received);
+        
+        assertEquals(2, retained.size());
+        assertEquals(3, received.refCount());
+        assertArrayEquals(new byte[] { 4, 5 }, retained.get(1).getData());
+        
+        processingBuffer.addData(java.nio.ByteBuffer.wrap(third, 5, third.length - 5));
+        assertEquals(3, retained.size());
+        assertFalse(retained.get(2).isView());
+        assertArrayEquals(new byte[] { 6, 7, 8, 9 }, retained.get(2).getData());
+        
+        for (Packet packet : retained)
+        	packet.release();
+        
+        assertEquals(1, received.refCount());
+        assertTrue(received.release());
+        processingBuffer.close();
+    }
+
+    @Test
+    public void testPacketsSplitAcrossReceiveBuffers() throws Exception
+    {
+        List<byte[]> received = new ArrayList<>();
+        
+        ProcessingBuffer processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
+        {
+        	public void onProcessedPacket(Packet packet)
+        	{
+        		received.add(packet.getData());
+        	}
+        });
+        
+        java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++)
+        	stream.writeBytes(new Packet((byte)i, new byte[] { (byte)i, 1, 2, 3, 4, 5, 6 }, false).buildPacket());
+        byte[] data = stream.toByteArray();
+        
+        //Every split lands in a different place in a packet, including inside and right after its header.
+        BufferPool pool = new BufferPool(false, 0, 0);
+        for (int position = 0, length = 1; position < data.length; position += length, length = length % 13 + 1)
+        {
+        	RefCountedBuffer buffer = new RefCountedBuffer(pool, pool.acquire(64));
+        	buffer.getBuffer().put(data, position, Math.min(length, data.length - position)).flip();
+        	processingBuffer.addData(buffer);
+        	buffer.release();
+        }
+        
+        assertEquals(20, received.size());
+        for (int i = 0; i < 20; i++)
+        	assertArrayEquals(new byte[] { (byte)i, 1, 2, 3, 4, 5, 6 }, received.get(i));
+        processingBuffer.close();
+    }
 }
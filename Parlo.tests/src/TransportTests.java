@@ -0,0 +1,568 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import Parlo.CancellationTokenSource;
+import Parlo.IAsyncSocketChannel;
+import Parlo.Listener;
+import Parlo.LoginArgsContainer;
+import Parlo.NetworkClient;
+import Parlo.PacketDispatcher;
+import Parlo.ParloRuntime;
+import Parlo.Transport;
+import Parlo.Exceptions.BufferOverflowException;
+import Parlo.Packets.IPacket;
+import Parlo.Packets.IPacketCodec;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketReader;
+import Parlo.Packets.PacketWriter;
+
+public class TransportTests 
+{
+	private static final int NUM_PACKETS = 1000;
+	
+    @ParameterizedTest
+    @EnumSource(Transport.class)
+    public void testSendingPacketsOverLoopback(Transport transport) throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<Packet> receivedPackets = new ConcurrentLinkedQueue<>();
+    	CountDownLatch receivedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(transport, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		receivedPackets.add(packet);
+    		receivedLatch.countDown();
+    		return CompletableFuture.completedFuture(null);
+    	}));
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(transport, false, true));
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    		client.sendAsync(new Packet((byte)(10 + (i % 100)), new byte[] { (byte)i, 1, 2, 3 }, false).buildPacket());
+    	
+    	assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+    	
+    	int i = 0;
+    	for (Packet packet : receivedPackets)
+    	{
+    		assertEquals((byte)(10 + (i % 100)), packet.getID());
+    		assertEquals((byte)i, packet.getData()[0]);
+    		i++;
+    	}
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    @ParameterizedTest
+    @EnumSource(Transport.class)
+    public void testAcceptedChannelsShareTheirRuntime(Transport transport) throws Exception
+    {
+    	//NetworkClients take their timer and pools from their channel's runtime.
+    	try (ParloRuntime runtime = new ParloRuntime(1))
+    	{
+	    	IAsyncSocketChannel server = runtime.openChannel(transport, true, true);
+	    	server.bind(new InetSocketAddress("127.0.0.1", 0));
+	    	Future<IAsyncSocketChannel> accepted = server.accept();
+	    	
+	    	IAsyncSocketChannel client = runtime.openChannel(transport, false, true);
+	    	client.connect(server.getLocalAddress(), null, new CompletionHandler<Void, Void>()
+	    	{
+	    		public void completed(Void result, Void attachment) { }
+	    		public void failed(Throwable t, Void attachment) { }
+	    	});
+	    	IAsyncSocketChannel peer = accepted.get(5, TimeUnit.SECONDS);
+	    	
+	    	assertSame(runtime, server.getRuntime());
+	    	assertSame(runtime, client.getRuntime());
+	    	assertSame(runtime, peer.getRuntime());
+	    	
+	    	client.close();
+	    	peer.close();
+	    	server.close();
+    	}
+    }
+    
+    @ParameterizedTest
+    @EnumSource(value = Transport.class, names = { "EventLoop", "VirtualThreads" })
+    public void testThrowingCompletionHandlerIsntFailed(Transport transport) throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	IAsyncSocketChannel server = runtime.openChannel(transport, true, true);
+    	server.bind(new InetSocketAddress("127.0.0.1", 0));
+    	Future<IAsyncSocketChannel> accepted = server.accept();
+    	
+    	IAsyncSocketChannel client = runtime.openChannel(transport, false, true);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	client.connect(server.getLocalAddress(), null, new CompletionHandler<Void, Void>()
+    	{
+    		public void completed(Void result, Void attachment) { connectedLatch.countDown(); }
+    		public void failed(Throwable t, Void attachment) { }
+    	});
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	IAsyncSocketChannel peer = accepted.get(5, TimeUnit.SECONDS);
+    	
+    	AtomicInteger failures = new AtomicInteger(0);
+    	CountDownLatch readLatch = new CountDownLatch(2);
+    	CompletionHandler<Integer, Void> throwingHandler = new CompletionHandler<Integer, Void>()
+    	{
+    		public void completed(Integer bytesRead, Void attachment)
+    		{
+    			readLatch.countDown();
+    			throw new IllegalStateException("Handler failed");
+    		}
+    		
+    		public void failed(Throwable t, Void attachment)
+    		{
+    			failures.incrementAndGet();
+    		}
+    	};
+    	
+    	//The second read shows the channel still works after the handler threw.
+    	for (int i = 0; i < 2; i++)
+    	{
+    		peer.write(ByteBuffer.wrap(new byte[] { (byte)i }), null, new CompletionHandler<Integer, Void>()
+    		{
+    			public void completed(Integer bytesWritten, Void attachment) { }
+    			public void failed(Throwable t, Void attachment) { }
+    		});
+    		client.read(ByteBuffer.allocate(16), null, throwingHandler);
+    		Thread.sleep(100);
+    	}
+    	
+    	assertTrue(readLatch.await(5, TimeUnit.SECONDS), "Reads didn't complete");
+    	assertEquals(0, failures.get());
+    	
+    	client.close();
+    	peer.close();
+    	server.close();
+    }
+    
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    public void testKeyExchangeOverLoopback(boolean offloadTransforms) throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<Packet> echoedPackets = new ConcurrentLinkedQueue<>();
+    	CountDownLatch echoedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	AtomicReference<Exception> echoError = new AtomicReference<>();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.offloadTransforms = offloadTransforms;
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		try
+    		{
+    			sender.sendAsync(packet.buildPacket());
+    		}
+    		catch(BufferOverflowException exception)
+    		{
+    			echoError.set(exception);
+    		}
+    		
+    		return CompletableFuture.completedFuture(null);
+    	}));
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.useKeyExchange = true;
+    	client.offloadTransforms = offloadTransforms;
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		echoedPackets.add(packet);
+    		echoedLatch.countDown();
+    		return CompletableFuture.completedFuture(null);
+    	});
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Key exchange didn't complete");
+    	
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    		client.sendAsync(new Packet((byte)(10 + (i % 100)), new byte[] { (byte)i, 1, 2, 3 }, false).buildPacket());
+    	
+    	assertTrue(echoedLatch.await(10, TimeUnit.SECONDS), "Not all packets were echoed");
+    	assertNull(echoError.get());
+    	
+    	int i = 0;
+    	for (Packet packet : echoedPackets)
+    	{
+    		assertEquals((byte)(10 + (i % 100)), packet.getID());
+    		assertArrayEquals(new byte[] { (byte)i, 1, 2, 3 }, packet.getData());
+    		i++;
+    	}
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    @Test
+    public void testZeroCopyReceiveOverLoopback() throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<Packet> retainedPackets = new ConcurrentLinkedQueue<>();
+    	AtomicInteger received = new AtomicInteger(0);
+    	AtomicInteger views = new AtomicInteger(0);
+    	AtomicReference<String> error = new AtomicReference<>();
+    	CountDownLatch receivedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.zeroCopyReceive = true;
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		//Handlers run in order, so the packet can be checked without keeping it.
+    		//Packets split across two reads are put back together in a copy.
+    		int i = received.getAndIncrement();
+    		if (packet.getBuffer().get(0) != (byte)i)
+    			error.compareAndSet(null, "Packet " + i + " didn't have the right data");
+    		if (packet.isView())
+    			views.incrementAndGet();
+    		
+    		if (i % 10 == 0)
+    			retainedPackets.add(packet.retain());
+    		
+    		receivedLatch.countDown();
+    		return CompletableFuture.completedFuture(null);
+    	}));
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    		client.sendAsync(new Packet((byte)(10 + (i % 100)), new byte[] { (byte)i, 1, 2, 3 }, false).buildPacket());
+    	
+    	assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+    	assertNull(error.get());
+    	assertTrue(views.get() > 0, "No packets were views of the receive buffer");
+    	
+    	//Retained packets keep their data, even though their buffers have been read into since.
+    	int i = 0;
+    	for (Packet packet : retainedPackets)
+    	{
+    		assertArrayEquals(new byte[] { (byte)i, 1, 2, 3 }, packet.getData());
+    		packet.release();
+    		i += 10;
+    	}
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    @Test
+    public void testPacketWriterOverEncryptedLoopback() throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<String> receivedStrings = new ConcurrentLinkedQueue<>();
+    	CountDownLatch receivedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.zeroCopyReceive = true;
+    	listener.setClientDisconnectedCallback(client -> { });
+    	PacketReader reader = new PacketReader();
+    	listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		reader.reset(packet);
+    		receivedStrings.add(reader.readVarInt() + ":" + reader.readString());
+    		receivedLatch.countDown();
+    		return CompletableFuture.completedFuture(null);
+    	}));
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.useKeyExchange = true;
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Key exchange didn't complete");
+    	
+    	PacketWriter writer = new PacketWriter();
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    		client.sendAsync(writer.begin((byte)(10 + (i % 100))).writeVarInt(i).writeString("Packet"));
+    	
+    	assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+    	
+    	int i = 0;
+    	for (String received : receivedStrings)
+    		assertEquals(i++ + ":Packet", received);
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    static class CountPacket implements IPacket
+    {
+    	int count;
+    }
+    
+    static class CountCodec implements IPacketCodec<CountPacket>
+    {
+    	public byte getID() { return 11; }
+    	public Class<CountPacket> getPacketClass() { return CountPacket.class; }
+    	public void encode(CountPacket packet, PacketWriter writer) { writer.writeVarInt(packet.count); }
+    	
+    	public CountPacket decode(PacketReader reader)
+    	{
+    		CountPacket packet = new CountPacket();
+    		packet.count = reader.readVarInt();
+    		return packet;
+    	}
+    }
+    
+    @Test
+    public void testDispatchingPacketsOverLoopback() throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<Integer> typedCounts = new ConcurrentLinkedQueue<>();
+    	AtomicInteger rawPackets = new AtomicInteger(0);
+    	AtomicInteger otherPackets = new AtomicInteger(0);
+    	CountDownLatch receivedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> 
+    	{
+    		PacketDispatcher dispatcher = client.getPacketDispatcher();
+    		
+    		//0 used to be mistaken for a heartbeat.
+    		dispatcher.setHandler((byte)0, (sender, packet) -> 
+    		{
+    			rawPackets.incrementAndGet();
+    			receivedLatch.countDown();
+    			return CompletableFuture.completedFuture(null);
+    		});
+    		dispatcher.setHandler(new CountCodec(), (sender, packet) -> 
+    		{
+    			typedCounts.add(packet.count);
+    			receivedLatch.countDown();
+    			return CompletableFuture.completedFuture(null);
+    		});
+    		client.setReceivedDataCallback((sender, packet) -> 
+    		{
+    			otherPackets.incrementAndGet();
+    			receivedLatch.countDown();
+    			return CompletableFuture.completedFuture(null);
+    		});
+    		
+    		assertThrows(IllegalArgumentException.class, () -> dispatcher.setHandler((byte)0xFD, null));
+    	});
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	
+    	PacketWriter writer = new PacketWriter();
+    	CountCodec codec = new CountCodec();
+    	CountPacket count = new CountPacket();
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    	{
+    		if (i % 3 == 0)
+    			client.sendAsync(writer.begin((byte)0).writeInt(i));
+    		else if (i % 3 == 1)
+    		{
+    			count.count = i;
+    			client.sendAsync(codec.write(count, writer));
+    		}
+    		else
+    			client.sendAsync(writer.begin((byte)12).writeInt(i));
+    	}
+    	
+    	assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+    	assertEquals((NUM_PACKETS + 2) / 3, rawPackets.get());
+    	assertEquals(NUM_PACKETS / 3, otherPackets.get());
+    	
+    	int i = 1;
+    	for (int received : typedCounts)
+    	{
+    		assertEquals(i, received);
+    		i += 3;
+    	}
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    @Test
+    public void testMalformedPacketsAreDropped() throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	ConcurrentLinkedQueue<Integer> counts = new ConcurrentLinkedQueue<>();
+    	CountDownLatch receivedLatch = new CountDownLatch(1);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	//Reads an int, so a packet with a single byte is too short.
+    	CountCodec intCodec = new CountCodec()
+    	{
+    		@Override
+    		public CountPacket decode(PacketReader reader)
+    		{
+    			CountPacket packet = new CountPacket();
+    			packet.count = reader.readInt();
+    			return packet;
+    		}
+    	};
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> 
+    	{
+    		client.getPacketDispatcher().setHandler(intCodec, (sender, packet) -> 
+    		{
+    			counts.add(packet.count);
+    			receivedLatch.countDown();
+    			return CompletableFuture.completedFuture(null);
+    		});
+    		client.getPacketDispatcher().setHandler((byte)12, (sender, packet) -> 
+    		{
+    			throw new IllegalStateException("Handler failed");
+    		});
+    	});
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	
+    	PacketWriter writer = new PacketWriter();
+    	client.sendAsync(writer.begin((byte)11).writeByte((byte)1));
+    	client.sendAsync(writer.begin((byte)12).writeInt(0));
+    	client.sendAsync(writer.begin((byte)11).writeInt(42));
+    	
+    	//Neither the malformed packet nor the failed handler stopped the connection from receiving.
+    	assertTrue(receivedLatch.await(5, TimeUnit.SECONDS), "The packet after the malformed ones wasn't received");
+    	assertEquals(List.of(42), List.copyOf(counts));
+    	assertTrue(client.isConnected());
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+    
+    @Test
+    public void testMailboxesOverLoopback() throws Exception
+    {
+    	ParloRuntime runtime = ParloRuntime.getDefault();
+    	AtomicInteger received = new AtomicInteger(0);
+    	AtomicReference<String> error = new AtomicReference<>();
+    	CountDownLatch receivedLatch = new CountDownLatch(NUM_PACKETS);
+    	CountDownLatch connectedLatch = new CountDownLatch(1);
+    	CancellationTokenSource acceptCTS = new CancellationTokenSource();
+    	
+    	IAsyncSocketChannel listenerSock = runtime.openChannel(Transport.AsynchronousIO, true, true);
+    	Listener listener = new Listener(listenerSock);
+    	listener.useMailbox = true;
+    	listener.mailboxBatchSize = 16;
+    	listener.zeroCopyReceive = true;
+    	listener.setClientDisconnectedCallback(client -> { });
+    	listener.setConnectedCallback(client -> client.setReceivedDataCallback((sender, packet) -> 
+    	{
+    		int i = received.getAndIncrement();
+    		if (!Thread.currentThread().getName().startsWith("Parlo-Handler-"))
+    			error.compareAndSet(null, "Packet " + i + " was handled on " + Thread.currentThread().getName());
+    		
+    		//Views stay valid while they wait in the mailbox, after the receive buffer has been read into again.
+    		if (packet.getBuffer().get(0) != (byte)i)
+    			error.compareAndSet(null, "Packet " + i + " didn't have the right data");
+    		
+    		receivedLatch.countDown();
+    		
+    		//Handlers that finish later hold back the next packet, without blocking the pool.
+    		if (i % 100 == 0)
+    			return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS));
+    		
+    		return CompletableFuture.completedFuture(null);
+    	}));
+    	listener.initializeAsync(new InetSocketAddress("127.0.0.1", 0), 1024, acceptCTS);
+    	
+    	NetworkClient client = new NetworkClient(runtime.openChannel(Transport.AsynchronousIO, false, true));
+    	client.setConnectedCallback(sender -> connectedLatch.countDown());
+    	
+    	LoginArgsContainer args = new LoginArgsContainer();
+    	args.Address = "127.0.0.1";
+    	args.Port = ((InetSocketAddress)listenerSock.getLocalAddress()).getPort();
+    	client.connectAsync(args);
+    	
+    	assertTrue(connectedLatch.await(5, TimeUnit.SECONDS), "Client didn't connect");
+    	
+    	for (int i = 0; i < NUM_PACKETS; i++)
+    		client.sendAsync(new Packet((byte)(10 + (i % 100)), new byte[] { (byte)i, 1, 2, 3 }, false).buildPacket());
+    	
+    	assertTrue(receivedLatch.await(10, TimeUnit.SECONDS), "Not all packets were received");
+    	assertNull(error.get());
+    	
+    	acceptCTS.cancel();
+    	listener.close();
+    }
+}
@@ -0,0 +1,54 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by VirtualThreadSocketChannel.
+ * This is the Java 21 version, which is loaded from the multi-release jar
+ * instead of the Java 17 version in src.
+ */
+public class VirtualThreads 
+{
+	private VirtualThreads() { }
+	
+	/**
+	 * Are virtual threads supported by this version of Parlo and the JVM?
+	 * @return True if they are, false otherwise.
+	 */
+	public static boolean isSupported()
+	{
+		return true;
+	}
+	
+	/**
+	 * Is a thread a virtual thread?
+	 * @param thread The thread.
+	 * @return True if it is, false otherwise.
+	 */
+	public static boolean isVirtual(Thread thread)
+	{
+		return thread.isVirtual();
+	}
+	
+	/**
+	 * Creates a factory for threads to run blocking I/O on.
+	 * @param prefix The prefix of the thread names.
+	 * @return A factory for virtual threads.
+	 */
+	public static ThreadFactory newThreadFactory(String prefix)
+	{
+		return Thread.ofVirtual().name(prefix, 1).factory();
+	}
+}
@@ -0,0 +1,383 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of ByteBuffers, in power-of-two size classes from MIN_SIZE to MAX_SIZE.
+ * Buffers are direct by default, so sockets can read and write them without
+ * the JDK first copying them to a temporary direct buffer of its own.
+ * Every thread caches a few buffers of each size, so acquiring and releasing
+ * a buffer on the same thread doesn't touch any shared state. Buffers released
+ * by a thread with a full cache go back to the pool's shared lists.
+ * A buffer must be released exactly once, and must not be used after it
+ * has been released. With leak detection on, releasing a buffer twice throws
+ * an IllegalStateException. Instances are thread safe.
+ */
+public class BufferPool
+{
+	/**
+	 * The size of the smallest size class.
+	 */
+	public static final int MIN_SIZE = 64;
+
+	/**
+	 * The size of the largest size class. Larger buffers are allocated,
+	 * and garbage collected, like any other buffer.
+	 */
+	public static final int MAX_SIZE = 65536;
+
+	/**
+	 * The default number of buffers of each size kept by every thread.
+	 */
+	public static final int DEFAULT_THREAD_CACHE_SIZE = 8;
+
+	/**
+	 * The default number of buffers of each size kept in the shared lists.
+	 */
+	public static final int DEFAULT_SHARED_SIZE = Runtime.getRuntime().availableProcessors() * 16;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+	private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	private static final BufferPool defaultPool = new BufferPool(true, DEFAULT_THREAD_CACHE_SIZE,
+			DEFAULT_SHARED_SIZE);
+	private static final BufferPool heapPool = new BufferPool(false, DEFAULT_THREAD_CACHE_SIZE,
+			DEFAULT_SHARED_SIZE);
+
+	private final boolean direct;
+	private final int threadCacheSize;
+	private final int sharedSize;
+
+	private final SharedList[] shared;
+	private final ThreadLocal<ThreadCache> threadCaches;
+
+	private volatile LeakDetector leakDetector;
+
+	//A thread's cached buffers, as one stack per size class.
+	private static class ThreadCache
+	{
+		final ByteBuffer[][] buffers;
+		final int[] counts;
+
+		ThreadCache(int sizeClasses, int size)
+		{
+			buffers = new ByteBuffer[sizeClasses][size];
+			counts = new int[sizeClasses];
+		}
+	}
+
+	//The buffers of one size class shared by every thread, and how many there are.
+	private static class SharedList
+	{
+		final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+		final AtomicInteger count = new AtomicInteger(0);
+	}
+
+	/**
+	 * Creates a pool.
+	 * @param direct Should the pool allocate direct buffers?
+	 * @param threadCacheSize The number of buffers of each size kept by every thread. 0 disables the caches.
+	 * @param sharedSize The number of buffers of each size kept in the shared lists.
+	 */
+	public BufferPool(boolean direct, int threadCacheSize, int sharedSize)
+	{
+		if(threadCacheSize < 0 || sharedSize < 0)
+			throw new IllegalArgumentException("Cache sizes must not be negative!");
+
+		this.direct = direct;
+		this.threadCacheSize = threadCacheSize;
+		this.sharedSize = sharedSize;
+
+		shared = new SharedList[SIZE_CLASSES];
+		for(int i = 0; i < SIZE_CLASSES; i++)
+			shared[i] = new SharedList();
+
+		threadCaches = ThreadLocal.withInitial(() -> new ThreadCache(SIZE_CLASSES, threadCacheSize));
+	}
+
+	/**
+	 * Gets the pool shared by everything in Parlo, which allocates direct buffers.
+	 * @return The default pool.
+	 */
+	public static BufferPool getDefault()
+	{
+		return defaultPool;
+	}
+
+	/**
+	 * Gets the pool of heap buffers shared by everything in Parlo. Heap buffers
+	 * are faster to access byte by byte, but slower to read into and write from.
+	 * Their arrays always start at offset 0.
+	 * @return The heap pool.
+	 */
+	public static BufferPool getHeap()
+	{
+		return heapPool;
+	}
+
+	/**
+	 * Acquires a buffer.
+	 * @param capacity The number of bytes the buffer must be able to hold.
+	 * @return A cleared buffer, whose limit is capacity. Its real capacity
+	 * is capacity rounded up to the next size class.
+	 */
+	public ByteBuffer acquire(int capacity)
+	{
+		if(capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative!");
+
+		LeakDetector detector = leakDetector;
+		if(detector != null)
+			detector.reportLeaks();
+
+		int sizeClass = sizeClassOf(capacity);
+		ByteBuffer buffer = null;
+
+		if(sizeClass >= 0)
+		{
+			ThreadCache cache = getThreadCache();
+
+			if(cache != null && cache.counts[sizeClass] > 0)
+			{
+				int count = --cache.counts[sizeClass];
+				buffer = cache.buffers[sizeClass][count];
+				cache.buffers[sizeClass][count] = null;
+			}
+			else if((buffer = shared[sizeClass].buffers.poll()) != null)
+				shared[sizeClass].count.decrementAndGet();
+			else
+				buffer = allocate(MIN_SIZE << sizeClass);
+		}
+		else
+			buffer = allocate(capacity);
+
+		buffer.clear().limit(capacity);
+
+		if(detector != null)
+			detector.track(buffer);
+
+		return buffer;
+	}
+
+	/**
+	 * Releases a buffer, so that it can be acquired again.
+	 * @param buffer A buffer acquired from this pool. Null is ignored.
+	 * @throws IllegalStateException If leak detection is on, and the buffer has already been released.
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		if(buffer == null)
+			return;
+
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClassOf(capacity);
+
+		LeakDetector detector = leakDetector;
+		if(detector != null && !detector.untrack(buffer))
+			throw new IllegalStateException("Tried releasing a buffer that was already released!");
+
+		//Buffers outside the size classes aren't pooled.
+		if(sizeClass < 0 || (MIN_SIZE << sizeClass) != capacity || buffer.isDirect() != direct)
+			return;
+
+		ThreadCache cache = getThreadCache();
+
+		if(cache != null && cache.counts[sizeClass] < threadCacheSize)
+		{
+			cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+			return;
+		}
+
+		SharedList list = shared[sizeClass];
+
+		if(list.count.incrementAndGet() <= sharedSize)
+			list.buffers.offer(buffer);
+		else
+			list.count.decrementAndGet();
+	}
+
+	/**
+	 * Turns leak detection on or off. While it's on, every acquired buffer remembers
+	 * where it was acquired, and buffers that are garbage collected without being
+	 * released are logged. Buffers released while it's on are remembered until they're
+	 * acquired again, so that releasing one twice throws. Costs a stack trace per buffer,
+	 * so it's meant for debugging.
+	 * @param enabled Should leaks be detected?
+	 */
+	public void setLeakDetection(boolean enabled)
+	{
+		leakDetector = enabled ? new LeakDetector() : null;
+	}
+
+	/**
+	 * Logs every leak found since the last check. Leaks are also checked for
+	 * whenever a buffer is acquired.
+	 * @return The number of buffers leaked since leak detection was turned on,
+	 * or 0 if it's off.
+	 */
+	public int checkForLeaks()
+	{
+		LeakDetector detector = leakDetector;
+		if(detector == null)
+			return 0;
+
+		detector.reportLeaks();
+		return detector.leaks.get();
+	}
+
+	private ThreadCache getThreadCache()
+	{
+		if(threadCacheSize == 0 || VirtualThreads.isVirtual(Thread.currentThread()))
+			return null;
+
+		return threadCaches.get();
+	}
+
+	private ByteBuffer allocate(int capacity)
+	{
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static int sizeClassOf(int capacity)
+	{
+		if(capacity > MAX_SIZE)
+			return -1;
+		if(capacity <= MIN_SIZE)
+			return 0;
+
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * Tracks every acquired buffer with a phantom reference, which is queued
+	 * once the buffer has been garbage collected. Releasing a buffer clears its
+	 * reference, so a reference that reaches the queue belongs to a leaked buffer.
+	 * Released buffers are tracked with weak references until they're acquired
+	 * again, so releasing one of them again is caught.
+	 * Buffers acquired before leak detection was turned on are in neither, so
+	 * they're never mistaken for released ones.
+	 */
+	private static class LeakDetector
+	{
+		private final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<>();
+		//By identity hash code, as ByteBuffer's hashCode() depends on its contents.
+		private final Map<Integer, List<LeakReference>> tracked = new HashMap<>();
+		private final Map<Integer, List<WeakReference<ByteBuffer>>> released = new HashMap<>();
+		final AtomicInteger leaks = new AtomicInteger(0);
+
+		private static class LeakReference extends PhantomReference<ByteBuffer>
+		{
+			final int hash;
+			final Throwable acquiredAt = new Throwable("Buffer acquired here");
+
+			LeakReference(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue)
+			{
+				super(buffer, queue);
+				hash = System.identityHashCode(buffer);
+			}
+		}
+
+		synchronized void track(ByteBuffer buffer)
+		{
+			remove(released, buffer);
+
+			LeakReference reference = new LeakReference(buffer, queue);
+			tracked.computeIfAbsent(reference.hash, hash -> new ArrayList<>(1)).add(reference);
+		}
+
+		/**
+		 * Stops tracking a buffer that is being released, and remembers that it was.
+		 * @param buffer The buffer.
+		 * @return False if the buffer had already been released.
+		 */
+		synchronized boolean untrack(ByteBuffer buffer)
+		{
+			boolean alreadyReleased = !remove(tracked, buffer) && remove(released, buffer);
+
+			released.computeIfAbsent(System.identityHashCode(buffer), hash -> new ArrayList<>(1))
+				.add(new WeakReference<>(buffer));
+			return !alreadyReleased;
+		}
+
+		//Removes the reference to a buffer, along with any references to buffers that have been collected.
+		private static <R extends Reference<ByteBuffer>> boolean remove(Map<Integer, List<R>> references, 
+				ByteBuffer buffer)
+		{
+			int hash = System.identityHashCode(buffer);
+			List<R> list = references.get(hash);
+			if(list == null)
+				return false;
+
+			boolean found = false;
+
+			for(int i = list.size() - 1; i >= 0; i--)
+			{
+				R reference = list.get(i);
+
+				if(reference.refersTo(buffer))
+				{
+					reference.clear();
+					list.remove(i);
+					found = true;
+				}
+				else if(reference instanceof WeakReference && reference.refersTo(null))
+					list.remove(i);
+			}
+
+			if(list.isEmpty())
+				references.remove(hash);
+
+			return found;
+		}
+
+		void reportLeaks()
+		{
+			Reference<? extends ByteBuffer> reference;
+
+			while((reference = queue.poll()) != null)
+			{
+				LeakReference leak = (LeakReference)reference;
+
+				synchronized(this)
+				{
+					List<LeakReference> references = tracked.get(leak.hash);
+					if(references == null || !references.remove(leak))
+						continue;
+					if(references.isEmpty())
+						tracked.remove(leak.hash);
+				}
+
+				leaks.incrementAndGet();
+
+				StringBuilder trace = new StringBuilder();
+				for(StackTraceElement element : leak.acquiredAt.getStackTrace())
+					trace.append("\n\tat ").append(element);
+
+				Logger.log("LEAK: A pooled buffer was garbage collected without being released." + trace,
+						LogLevel.warn);
+			}
+		}
+	}
+}
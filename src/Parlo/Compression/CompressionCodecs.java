@@ -0,0 +1,59 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The codecs a NetworkClient can decompress packets with, by the ID in
+ * their isCompressed byte. DeflateCodec and LZCodec are always registered.
+ * IDs 2 to 4 are used by deflate streams and dictionaries, and can't be registered.
+ */
+public class CompressionCodecs
+{
+	private static final AtomicReferenceArray<ICompressionCodec> codecs = new AtomicReferenceArray<>(256);
+
+	static
+	{
+		register(new DeflateCodec());
+		register(new LZCodec());
+	}
+
+	/**
+	 * Registers a codec, replacing any codec registered with the same ID.
+	 * Both ends of a connection must register the same codecs.
+	 * @param codec The codec to register.
+	 */
+	public static void register(ICompressionCodec codec)
+	{
+		if(codec == null)
+			throw new IllegalArgumentException("codec");
+
+		byte id = codec.getID();
+		if(id == 0 || id == DeflateStream.ID || id == DeflateCodec.DICTIONARY_ID ||
+				id == DeflateStream.DICTIONARY_ID)
+			throw new IllegalArgumentException("Codec ID " + id + " is reserved!");
+
+		codecs.set(id & 0xFF, codec);
+	}
+
+	/**
+	 * Gets the codec registered with an ID.
+	 * @param id The codec's ID.
+	 * @return The codec, or null if none is registered with the ID.
+	 */
+	public static ICompressionCodec get(byte id)
+	{
+		return codecs.get(id & 0xFF);
+	}
+}
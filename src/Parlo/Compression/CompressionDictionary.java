@@ -0,0 +1,111 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Adler32;
+
+/**
+ * A preset dictionary for deflate, which holds the kind of data packets usually
+ * contain. Compressing with a dictionary lets even the first, small packets of a
+ * connection refer back to it, the way later packets refer back to earlier ones.
+ * Both ends must use the exact same dictionary, so it's identified by the Adler-32
+ * checksum of its contents, which is also how zlib identifies dictionaries.
+ * Dictionaries are usually created with DictionaryTrainer.
+ */
+public class CompressionDictionary
+{
+	/**
+	 * The largest useful dictionary. Deflate can't refer further back than this.
+	 */
+	public static final int MAX_SIZE = 32768;
+
+	private final byte[] data;
+	private final int id;
+
+	/**
+	 * Creates a dictionary.
+	 * @param data The dictionary's contents. The most common data should be at the end,
+	 * where it's cheapest to refer to. At most MAX_SIZE bytes are used.
+	 */
+	public CompressionDictionary(byte[] data)
+	{
+		if(data == null || data.length == 0)
+			throw new IllegalArgumentException("data must not be empty!");
+
+		if(data.length > MAX_SIZE)
+		{
+			byte[] end = new byte[MAX_SIZE];
+			System.arraycopy(data, data.length - MAX_SIZE, end, 0, MAX_SIZE);
+			data = end;
+		}
+		else
+			data = data.clone();
+
+		this.data = data;
+
+		Adler32 checksum = new Adler32();
+		checksum.update(data);
+		id = (int)checksum.getValue();
+	}
+
+	/**
+	 * Gets the ID both ends use to agree on this dictionary.
+	 * @return The Adler-32 checksum of the dictionary.
+	 */
+	public int getID()
+	{
+		return id;
+	}
+
+	/**
+	 * Gets the dictionary's contents. Must not be modified.
+	 * @return The contents.
+	 */
+	byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * Gets the dictionary's size.
+	 * @return The size, in bytes.
+	 */
+	public int getSize()
+	{
+		return data.length;
+	}
+
+	/**
+	 * Loads a dictionary saved by save().
+	 * @param path The file to load.
+	 * @return The dictionary.
+	 * @throws IOException If the file couldn't be read.
+	 */
+	public static CompressionDictionary load(Path path) throws IOException
+	{
+		return new CompressionDictionary(Files.readAllBytes(path));
+	}
+
+	/**
+	 * Saves the dictionary to a file.
+	 * @param path The file to save to.
+	 * @throws IOException If the file couldn't be written.
+	 */
+	public void save(Path path) throws IOException
+	{
+		Files.write(path, data);
+	}
+}
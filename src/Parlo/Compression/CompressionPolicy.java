@@ -0,0 +1,242 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Decides whether one connection's packets are worth compressing, and which codec
+ * to compress them with. For every packet ID, it keeps track of how well each codec
+ * compresses that kind of packet, and how long it takes. It also keeps track of how
+ * fast the connection sends data. A packet is compressed with the codec that saves
+ * the most time, if sending the bytes saved would take longer than compressing
+ * them. Codecs that aren't being used are still tried now and then, so the
+ * policy notices when packets or the link change. Packet IDs that never compress
+ * well are tried far less often. Instances are thread safe.
+ */
+public class CompressionPolicy
+{
+	/**
+	 * The throughput assumed until the connection has sent enough data to measure it,
+	 * in bytes per second. 100 Mbit/s.
+	 */
+	public static final double DEFAULT_THROUGHPUT = 12_500_000;
+
+	//Codecs are tried this often, in packets, to keep their statistics fresh.
+	private static final int EXPLORE_INTERVAL = 16;
+	//And this often, for packet IDs that never compress better than SKIP_RATIO.
+	private static final int SKIPPED_EXPLORE_INTERVAL = 256;
+	private static final double SKIP_RATIO = 0.95;
+	//Every codec needs this many samples before a packet ID can be skipped.
+	private static final int MIN_SAMPLES = 4;
+
+	//Writes smaller than this mostly measure the cost of a system call, not the link.
+	private static final long MIN_WRITE_SAMPLE = 4096;
+
+	//Decompressing is assumed to cost the other end this fraction of the compression time.
+	private static final double DECOMPRESSION_COST = 0.25;
+
+	//How much each new sample moves the averages.
+	private static final double WEIGHT = 0.125;
+
+	//zlib's default level, which compresses better than BEST_SPEED at a few times the cost.
+	private static final int DEFLATE_DEFAULT_LEVEL = 6;
+
+	private static final ICompressionCodec[] DEFAULT_CODECS = { CompressionCodecs.get(LZCodec.ID),
+			CompressionCodecs.get(DeflateCodec.ID), new DeflateCodec(DEFLATE_DEFAULT_LEVEL) };
+
+	private final ICompressionCodec[] codecs;
+	private final AtomicReferenceArray<PacketStatistics> statistics = new AtomicReferenceArray<>(256);
+	private volatile double throughput;
+
+	//What each codec achieved for one packet ID.
+	private static class PacketStatistics
+	{
+		final double[] ratio;
+		final double[] nanosPerByte;
+		final int[] samples;
+		//A long, so it doesn't wrap on long-lived connections. floorMod keeps choose() safe even if it does.
+		long packets;
+
+		PacketStatistics(int codecs)
+		{
+			ratio = new double[codecs];
+			nanosPerByte = new double[codecs];
+			samples = new int[codecs];
+		}
+	}
+
+	/**
+	 * Creates a policy that picks between LZCodec, and DeflateCodec at its fastest
+	 * and default levels.
+	 */
+	public CompressionPolicy()
+	{
+		this(DEFAULT_THROUGHPUT, DEFAULT_CODECS);
+	}
+
+	/**
+	 * Creates a policy.
+	 * @param throughput The throughput to assume until it has been measured, in bytes per second.
+	 * @param codecs The codecs to pick between, which must be registered in CompressionCodecs.
+	 */
+	public CompressionPolicy(double throughput, ICompressionCodec... codecs)
+	{
+		if(throughput <= 0)
+			throw new IllegalArgumentException("throughput must be positive!");
+		if(codecs == null || codecs.length == 0)
+			throw new IllegalArgumentException("codecs must not be empty!");
+
+		this.throughput = throughput;
+		this.codecs = codecs.clone();
+	}
+
+	/**
+	 * Picks the codec to compress a packet with.
+	 * @param id The ID of the packet.
+	 * @param length The length of the packet's data.
+	 * @return The codec, or null if the packet shouldn't be compressed.
+	 */
+	public ICompressionCodec choose(byte id, int length)
+	{
+		PacketStatistics packetStatistics = getStatistics(id);
+
+		synchronized(packetStatistics)
+		{
+			long packet = packetStatistics.packets++;
+			int leastSampled = 0;
+			boolean compressible = false;
+
+			for(int i = 0; i < codecs.length; i++)
+			{
+				if(packetStatistics.samples[i] < packetStatistics.samples[leastSampled])
+					leastSampled = i;
+				if(packetStatistics.samples[i] < MIN_SAMPLES || packetStatistics.ratio[i] < SKIP_RATIO)
+					compressible = true;
+			}
+
+			//Tries every codec until it has enough samples, then takes turns trying them every now and then.
+			if(packetStatistics.samples[leastSampled] < MIN_SAMPLES)
+				return codecs[leastSampled];
+
+			int exploreInterval = compressible ? EXPLORE_INTERVAL : SKIPPED_EXPLORE_INTERVAL;
+			if(packet % exploreInterval == 0)
+				return codecs[Math.floorMod(packet / exploreInterval, codecs.length)];
+
+			if(!compressible)
+				return null;
+
+			double nanosPerByteSent = 1_000_000_000 / throughput;
+			double bestSaving = 0;
+			ICompressionCodec best = null;
+
+			for(int i = 0; i < codecs.length; i++)
+			{
+				double saving = length * ((1 - packetStatistics.ratio[i]) * nanosPerByteSent -
+						(1 + DECOMPRESSION_COST) * packetStatistics.nanosPerByte[i]);
+
+				if(saving > bestSaving)
+				{
+					bestSaving = saving;
+					best = codecs[i];
+				}
+			}
+
+			return best;
+		}
+	}
+
+	/**
+	 * Records how a codec picked by choose() did.
+	 * @param id The ID of the packet.
+	 * @param codec The codec.
+	 * @param length The length of the packet's data.
+	 * @param compressedLength The length of the compressed data, or length if it didn't get any smaller.
+	 * @param nanos How long compressing took, in nanoseconds.
+	 */
+	public void recordCompression(byte id, ICompressionCodec codec, int length, int compressedLength, long nanos)
+	{
+		if(length <= 0)
+			return;
+
+		int index = indexOf(codec);
+		if(index < 0)
+			return;
+
+		PacketStatistics packetStatistics = getStatistics(id);
+		double ratio = Math.min(1, (double)compressedLength / length);
+		double nanosPerByte = (double)nanos / length;
+
+		synchronized(packetStatistics)
+		{
+			if(packetStatistics.samples[index]++ == 0)
+			{
+				packetStatistics.ratio[index] = ratio;
+				packetStatistics.nanosPerByte[index] = nanosPerByte;
+			}
+			else
+			{
+				packetStatistics.ratio[index] += (ratio - packetStatistics.ratio[index]) * WEIGHT;
+				packetStatistics.nanosPerByte[index] += (nanosPerByte - packetStatistics.nanosPerByte[index]) * WEIGHT;
+			}
+		}
+	}
+
+	/**
+	 * Records how long a write took to complete. Writes only take long when the
+	 * link can't keep up, so this measures the link's throughput when it matters.
+	 * @param bytes The number of bytes written.
+	 * @param nanos How long the write took, in nanoseconds.
+	 */
+	public void recordWrite(long bytes, long nanos)
+	{
+		if(bytes < MIN_WRITE_SAMPLE)
+			return;
+
+		double sample = bytes * 1_000_000_000.0 / Math.max(1, nanos);
+		throughput += (sample - throughput) * WEIGHT;
+	}
+
+	/**
+	 * Gets the connection's measured throughput.
+	 * @return The throughput, in bytes per second.
+	 */
+	public double getThroughput()
+	{
+		return throughput;
+	}
+
+	private PacketStatistics getStatistics(byte id)
+	{
+		PacketStatistics packetStatistics = statistics.get(id & 0xFF);
+
+		if(packetStatistics == null)
+		{
+			statistics.compareAndSet(id & 0xFF, null, new PacketStatistics(codecs.length));
+			packetStatistics = statistics.get(id & 0xFF);
+		}
+
+		return packetStatistics;
+	}
+
+	private int indexOf(ICompressionCodec codec)
+	{
+		for(int i = 0; i < codecs.length; i++)
+		{
+			if(codecs[i] == codec)
+				return i;
+		}
+
+		return -1;
+	}
+}
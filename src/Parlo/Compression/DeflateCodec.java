@@ -0,0 +1,387 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import Parlo.BufferPool;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketHeaders;
+
+/**
+ * Compresses packets with raw deflate, which has no GZIP header or trailer.
+ * Creating a Deflater or Inflater allocates a native zlib context, so they're
+ * pooled and reset between packets instead. Compressed data is written straight
+ * after the packet's header, and decompressed data into a pooled buffer that is
+ * only copied once, to the packet's exact size. Instances are thread safe.
+ */
+public class DeflateCodec implements ICompressionCodec
+{
+	/**
+	 * The value of a packet's isCompressed byte when it was compressed by a DeflateCodec.
+	 */
+	public static final byte ID = 1;
+
+	/**
+	 * The value of a packet's isCompressed byte when it was compressed by a DeflateCodec
+	 * with the CompressionDictionary both ends agreed on.
+	 */
+	public static final byte DICTIONARY_ID = 3;
+
+	/**
+	 * The maximum number of idle Deflaters and Inflaters kept by each codec.
+	 */
+	public static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final int level;
+
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledDeflaters = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<PooledInflater> inflaters = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledInflaters = new AtomicInteger(0);
+
+	//An Inflater, and the buffer it decompresses into.
+	private static class PooledInflater
+	{
+		final Inflater inflater = new Inflater(true);
+		byte[] buffer = new byte[0];
+	}
+
+	/**
+	 * Gets the ID written to the isCompressed byte of packets compressed without a dictionary.
+	 * @return ID.
+	 */
+	@Override
+	public byte getID()
+	{
+		return ID;
+	}
+
+	/**
+	 * Creates a codec that favours speed over size.
+	 */
+	public DeflateCodec()
+	{
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Creates a codec.
+	 * @param level The compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+	 */
+	public DeflateCodec(int level)
+	{
+		if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("level must be between 1 and 9!");
+
+		this.level = level;
+	}
+
+	/**
+	 * Compresses a packet's data, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	@Override
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length)
+	{
+		return compressPacket(id, data, offset, length, (CompressionDictionary)null);
+	}
+
+	/**
+	 * Compresses a packet's data with a preset dictionary, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param dictionary The dictionary both ends agreed on, or null to compress without one.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, 
+			CompressionDictionary dictionary)
+	{
+		byte[] packet = new byte[PacketHeaders.STANDARD + length];
+		int compressedLength = compress(data, offset, length, packet, PacketHeaders.STANDARD, length, 
+				dictionary);
+
+		if(compressedLength < 0)
+			return null;
+
+		ByteBuffer buffer = ByteBuffer.wrap(packet, 0, PacketHeaders.STANDARD + compressedLength);
+		Packet.writeHeader(buffer, id, dictionary != null ? DICTIONARY_ID : ID, compressedLength);
+		buffer.position(0);
+
+		return buffer;
+	}
+
+	/**
+	 * Compresses a packet's data straight into a buffer from a pool, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param pool The pool to acquire the buffer from.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	@Override
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, BufferPool pool)
+	{
+		return compressPacket(id, data, offset, length, null, pool);
+	}
+
+	/**
+	 * Compresses a packet's data with a preset dictionary, straight into a buffer from a pool, 
+	 * and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param dictionary The dictionary both ends agreed on, or null to compress without one.
+	 * @param pool The pool to acquire the buffer from.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, 
+			CompressionDictionary dictionary, BufferPool pool)
+	{
+		ByteBuffer packet = pool.acquire(PacketHeaders.STANDARD + length);
+		packet.position(PacketHeaders.STANDARD);
+		int compressedLength = compress(data, offset, length, packet, dictionary);
+
+		if(compressedLength < 0)
+		{
+			pool.release(packet);
+			return null;
+		}
+
+		packet.flip();
+		Packet.writeHeader(packet, id, dictionary != null ? DICTIONARY_ID : ID, compressedLength);
+		packet.position(0);
+
+		return packet;
+	}
+
+	/**
+	 * Compresses data.
+	 * @param src The data to compress.
+	 * @param srcOffset The offset of the data.
+	 * @param srcLength The length of the data.
+	 * @param dst The array to compress into.
+	 * @param dstOffset The offset in dst to start writing at.
+	 * @param maxLength The maximum number of bytes to write.
+	 * @return The number of bytes written, or -1 if the compressed data was longer than maxLength.
+	 */
+	public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength)
+	{
+		return compress(src, srcOffset, srcLength, dst, dstOffset, maxLength, null);
+	}
+
+	/**
+	 * Compresses data with a preset dictionary.
+	 * @param src The data to compress.
+	 * @param srcOffset The offset of the data.
+	 * @param srcLength The length of the data.
+	 * @param dst The array to compress into.
+	 * @param dstOffset The offset in dst to start writing at.
+	 * @param maxLength The maximum number of bytes to write.
+	 * @param dictionary The dictionary, or null to compress without one.
+	 * @return The number of bytes written, or -1 if the compressed data was longer than maxLength.
+	 */
+	public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength, 
+			CompressionDictionary dictionary)
+	{
+		Deflater deflater = acquireDeflater();
+
+		try
+		{
+			//reset() clears the dictionary, so it's set for every packet.
+			if(dictionary != null)
+				deflater.setDictionary(dictionary.getData());
+
+			deflater.setInput(src, srcOffset, srcLength);
+			deflater.finish();
+
+			int written = 0;
+			while(!deflater.finished())
+			{
+				if(written == maxLength)
+					return -1;
+
+				written += deflater.deflate(dst, dstOffset + written, maxLength - written);
+			}
+
+			return written;
+		}
+		finally
+		{
+			release(deflater);
+		}
+	}
+
+	/**
+	 * Decompresses data.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data. Protects against
+	 * packets that decompress to far more data than they contain.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, or decompressed to more than maxLength bytes.
+	 */
+	@Override
+	public byte[] decompress(byte[] data, int maxLength) throws DataFormatException
+	{
+		return decompress(data, maxLength, null);
+	}
+
+	/**
+	 * Decompresses data that was compressed with a preset dictionary.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data.
+	 * @param dictionary The dictionary the data was compressed with, or null if it had none.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, or decompressed to more than maxLength bytes.
+	 */
+	public byte[] decompress(byte[] data, int maxLength, CompressionDictionary dictionary) 
+			throws DataFormatException
+	{
+		if(data == null)
+			throw new IllegalArgumentException("data");
+
+		PooledInflater pooled = inflaters.poll();
+
+		if(pooled == null)
+			pooled = new PooledInflater();
+		else
+			pooledInflaters.decrementAndGet();
+
+		try
+		{
+			//One extra byte tells data that is exactly maxLength long from data that is longer.
+			if(pooled.buffer.length < maxLength + 1)
+				pooled.buffer = new byte[maxLength + 1];
+
+			Inflater inflater = pooled.inflater;
+			if(dictionary != null)
+				inflater.setDictionary(dictionary.getData());
+
+			inflater.setInput(data);
+
+			int read = 0;
+			while(!inflater.finished())
+			{
+				int inflated = inflater.inflate(pooled.buffer, read, maxLength + 1 - read);
+
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Compressed data was truncated!");
+
+				read += inflated;
+
+				if(read > maxLength)
+					throw new DataFormatException("Decompressed data was longer than " + maxLength + " bytes!");
+			}
+
+			byte[] decompressed = new byte[read];
+			System.arraycopy(pooled.buffer, 0, decompressed, 0, read);
+
+			return decompressed;
+		}
+		finally
+		{
+			release(pooled);
+		}
+	}
+
+	/**
+	 * Compresses data with a preset dictionary into a buffer, which may be direct, at its position.
+	 * @param src The data to compress.
+	 * @param srcOffset The offset of the data.
+	 * @param srcLength The length of the data.
+	 * @param dst The buffer to compress into. Its position is moved past the compressed data.
+	 * @param dictionary The dictionary, or null to compress without one.
+	 * @return The number of bytes written, or -1 if the compressed data didn't fit in dst's remaining space.
+	 */
+	public int compress(byte[] src, int srcOffset, int srcLength, ByteBuffer dst, CompressionDictionary dictionary)
+	{
+		Deflater deflater = acquireDeflater();
+
+		try
+		{
+			if(dictionary != null)
+				deflater.setDictionary(dictionary.getData());
+
+			deflater.setInput(src, srcOffset, srcLength);
+			deflater.finish();
+
+			int start = dst.position();
+			while(!deflater.finished())
+			{
+				if(!dst.hasRemaining())
+					return -1;
+
+				deflater.deflate(dst);
+			}
+
+			return dst.position() - start;
+		}
+		finally
+		{
+			release(deflater);
+		}
+	}
+
+	private Deflater acquireDeflater()
+	{
+		Deflater deflater = deflaters.poll();
+
+		if(deflater == null)
+			return new Deflater(level, true);
+
+		pooledDeflaters.decrementAndGet();
+		return deflater;
+	}
+
+	private void release(Deflater deflater)
+	{
+		deflater.reset();
+
+		if(pooledDeflaters.incrementAndGet() <= MAX_POOLED)
+			deflaters.offer(deflater);
+		else
+		{
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	private void release(PooledInflater pooled)
+	{
+		pooled.inflater.reset();
+
+		if(pooledInflaters.incrementAndGet() <= MAX_POOLED)
+			inflaters.offer(pooled);
+		else
+		{
+			pooledInflaters.decrementAndGet();
+			pooled.inflater.end();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import Parlo.BufferPool;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketHeaders;
+
+/**
+ * One connection's raw deflate stream. Unlike DeflateCodec, which compresses
+ * every packet on its own, the Deflater and Inflater live as long as the connection,
+ * and every packet is flushed with SYNC_FLUSH. Every packet can refer back to
+ * the last 32 KB sent, so small packets that look like the ones before them
+ * compress very well. Because of this, packets must be compressed in the order
+ * they're sent, and decompressed in the order they're received, and a packet
+ * that can't be decompressed breaks every packet after it.
+ * The Deflater and Inflater are only created once they're used, as each holds
+ * a few hundred KB of native memory.
+ */
+public class DeflateStream implements AutoCloseable
+{
+	/**
+	 * The value of a packet's isCompressed byte when it was compressed by a DeflateStream.
+	 */
+	public static final byte ID = 2;
+
+	/**
+	 * The value of a packet's isCompressed byte when it was compressed by a DeflateStream
+	 * that started with the CompressionDictionary both ends agreed on.
+	 */
+	public static final byte DICTIONARY_ID = 4;
+
+	//Every SYNC_FLUSH ends with an empty stored block, which is always these four bytes.
+	//They're left out of packets, and put back when decompressing (like RFC 7692 does).
+	private static final byte[] SYNC_TRAILER = { 0, 0, (byte)0xFF, (byte)0xFF };
+
+	//Packets compressed into arrays get buffers that are never pooled.
+	private static final BufferPool UNPOOLED = new BufferPool(false, 0, 0);
+
+	private final int level;
+	private Deflater deflater;
+	private byte deflaterID;
+	private Inflater inflater;
+	private byte inflaterID;
+	private byte[] inflateBuffer = new byte[0];
+
+	/**
+	 * Creates a stream that favours speed over size.
+	 */
+	public DeflateStream()
+	{
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Creates a stream.
+	 * @param level The compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+	 */
+	public DeflateStream(int level)
+	{
+		if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("level must be between 1 and 9!");
+
+		this.level = level;
+	}
+
+	/**
+	 * Compresses a packet's data, and writes it after the packet's header.
+	 * Unlike DeflateCodec, the packet is always compressed, because the other
+	 * end's Inflater has to see every packet this stream's Deflater saw.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @return The compressed packet, ready to be sent.
+	 */
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length)
+	{
+		return compressPacket(id, data, offset, length, null);
+	}
+
+	/**
+	 * Compresses a packet's data, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param dictionary The dictionary both ends agreed on, or null. Only used if this
+	 * is the first packet of the stream, as a dictionary can only be set when a stream starts.
+	 * @return The compressed packet, ready to be sent.
+	 */
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, 
+			CompressionDictionary dictionary)
+	{
+		return compressPacket(id, ByteBuffer.wrap(data, offset, length), dictionary, UNPOOLED);
+	}
+
+	/**
+	 * Compresses a packet's data into a buffer from a pool, and writes it after the packet's header.
+	 * The buffer should be released to the pool once it has been sent.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header, from its position to its limit.
+	 * Its position is moved to its limit.
+	 * @param dictionary The dictionary both ends agreed on, or null. Only used if this
+	 * is the first packet of the stream, as a dictionary can only be set when a stream starts.
+	 * @param pool The pool to acquire the buffer from.
+	 * @return The compressed packet, ready to be sent.
+	 */
+	public synchronized ByteBuffer compressPacket(byte id, ByteBuffer data, CompressionDictionary dictionary, 
+			BufferPool pool)
+	{
+		if(deflater == null)
+		{
+			deflater = new Deflater(level, true);
+			deflaterID = ID;
+
+			if(dictionary != null)
+			{
+				deflater.setDictionary(dictionary.getData());
+				deflaterID = DICTIONARY_ID;
+			}
+		}
+
+		deflater.setInput(data);
+
+		//Data that doesn't compress grows by a few bytes.
+		ByteBuffer packet = pool.acquire(PacketHeaders.STANDARD + data.remaining() + 16);
+		packet.position(PacketHeaders.STANDARD);
+
+		while(true)
+		{
+			deflater.deflate(packet, Deflater.SYNC_FLUSH);
+
+			//The flush is complete once the Deflater stops filling all the space it gets.
+			if(packet.hasRemaining())
+				break;
+
+			ByteBuffer larger = pool.acquire(packet.limit() * 2);
+			larger.put(packet.flip());
+			pool.release(packet);
+			packet = larger;
+		}
+
+		int written = packet.position() - PacketHeaders.STANDARD - SYNC_TRAILER.length;
+
+		packet.limit(PacketHeaders.STANDARD + written).position(0);
+		Packet.writeHeader(packet, id, deflaterID, written);
+		packet.position(0);
+
+		return packet;
+	}
+
+	/**
+	 * Decompresses a packet's data.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, or decompressed to more than
+	 * maxLength bytes. The stream can't be used after this.
+	 */
+	public byte[] decompress(byte[] data, int maxLength) throws DataFormatException
+	{
+		return decompress(data, maxLength, ID, null);
+	}
+
+	/**
+	 * Decompresses a packet's data.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data.
+	 * @param compression The packet's isCompressed byte, ID or DICTIONARY_ID.
+	 * @param dictionary The dictionary both ends agreed on, or null if there isn't one.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, decompressed to more than
+	 * maxLength bytes, or needed a dictionary this end doesn't have.
+	 * The stream can't be used after this.
+	 */
+	public synchronized byte[] decompress(byte[] data, int maxLength, byte compression, 
+			CompressionDictionary dictionary) throws DataFormatException
+	{
+		if(data == null)
+			throw new IllegalArgumentException("data");
+
+		if(inflater == null)
+		{
+			if(compression == DICTIONARY_ID && dictionary == null)
+				throw new DataFormatException("Stream started with a dictionary this end doesn't have!");
+
+			inflater = new Inflater(true);
+			inflaterID = compression;
+
+			if(compression == DICTIONARY_ID)
+				inflater.setDictionary(dictionary.getData());
+		}
+		else if(compression != inflaterID)
+			throw new DataFormatException("Stream can't change dictionaries!");
+
+		//One extra byte tells data that is exactly maxLength long from data that is longer.
+		if(inflateBuffer.length < maxLength + 1)
+			inflateBuffer = new byte[maxLength + 1];
+
+		inflater.setInput(data);
+		int read = inflate(0, maxLength);
+		inflater.setInput(SYNC_TRAILER);
+		read = inflate(read, maxLength);
+
+		return Arrays.copyOf(inflateBuffer, read);
+	}
+
+	private int inflate(int read, int maxLength) throws DataFormatException
+	{
+		while(true)
+		{
+			int inflated = inflater.inflate(inflateBuffer, read, maxLength + 1 - read);
+			read += inflated;
+
+			if(read > maxLength)
+				throw new DataFormatException("Decompressed data was longer than " + maxLength + " bytes!");
+
+			if(inflated == 0)
+			{
+				if(inflater.needsInput())
+					return read;
+
+				//A stream never ends, and a raw stream never asks for a dictionary.
+				throw new DataFormatException("Received a corrupt deflate stream!");
+			}
+		}
+	}
+
+	/**
+	 * Frees the Deflater's and Inflater's native memory.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if(deflater != null)
+			deflater.end();
+		if(inflater != null)
+			inflater.end();
+
+		deflater = null;
+		inflater = null;
+	}
+}
@@ -0,0 +1,221 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Trains a CompressionDictionary from sample packets, such as packets captured
+ * from a ReceivedPacketDelegate. It picks the segments of the samples that
+ * contain the most byte sequences shared by many samples, much like zstd's
+ * COVER algorithm, and puts the best segments at the end of the dictionary,
+ * where they're cheapest to refer to.
+ * Can also be run from the command line:
+ * DictionaryTrainer &lt;directory with one sample per file&gt; &lt;dictionary file&gt; [size]
+ */
+public class DictionaryTrainer
+{
+	/**
+	 * The default size of a trained dictionary. Setting a dictionary costs time
+	 * proportional to its size, and packets that are compressed one by one set it
+	 * every time, so small dictionaries are usually best.
+	 */
+	public static final int DEFAULT_SIZE = 4096;
+
+	//The length of the byte sequences that are counted, and of the segments that are picked.
+	private static final int GRAM_LENGTH = 6;
+	private static final int SEGMENT_LENGTH = 32;
+
+	private static class Segment
+	{
+		final byte[] sample;
+		final int offset, length;
+		int score;
+
+		Segment(byte[] sample, int offset, int length)
+		{
+			this.sample = sample;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Trains a dictionary.
+	 * @param samples The sample packets. The more, the better, but only sequences
+	 * that occur in at least two samples end up in the dictionary.
+	 * @param size The maximum size of the dictionary, at most CompressionDictionary.MAX_SIZE.
+	 * @return The dictionary, or null if the samples had nothing in common.
+	 */
+	public static CompressionDictionary train(List<byte[]> samples, int size)
+	{
+		if(samples == null)
+			throw new IllegalArgumentException("samples");
+		if(size < 1 || size > CompressionDictionary.MAX_SIZE)
+			throw new IllegalArgumentException("size must be between 1 and " + CompressionDictionary.MAX_SIZE + "!");
+
+		//Counts how many samples every sequence occurs in.
+		Map<Long, Integer> frequencies = new HashMap<>();
+		for(byte[] sample : samples)
+		{
+			Set<Long> grams = new HashSet<>();
+			for(int i = 0; i + GRAM_LENGTH <= sample.length; i++)
+				grams.add(gram(sample, i));
+
+			for(Long gram : grams)
+				frequencies.merge(gram, 1, Integer::sum);
+		}
+
+		Set<Long> covered = new HashSet<>();
+		PriorityQueue<Segment> candidates = new PriorityQueue<>((a, b) -> Integer.compare(b.score, a.score));
+
+		for(byte[] sample : samples)
+		{
+			if(sample.length < GRAM_LENGTH)
+				continue;
+
+			//Segments overlap by half, so a good sequence is never split between two segments.
+			for(int offset = 0; ; offset += SEGMENT_LENGTH / 2)
+			{
+				Segment segment = new Segment(sample, offset, Math.min(SEGMENT_LENGTH, sample.length - offset));
+				segment.score = score(segment, frequencies, covered);
+
+				if(segment.score > 0)
+					candidates.add(segment);
+				if(offset + SEGMENT_LENGTH >= sample.length)
+					break;
+			}
+		}
+
+		//Greedily picks the best segment. A segment's score only drops as other segments
+		//are picked, so a stale score is an upper bound, and only the top segment has to be rescored.
+		List<Segment> picked = new ArrayList<>();
+		int dictionarySize = 0;
+
+		while(dictionarySize < size && !candidates.isEmpty())
+		{
+			Segment best = candidates.poll();
+			int score = score(best, frequencies, covered);
+
+			if(score <= 0)
+				continue;
+
+			if(!candidates.isEmpty() && score < candidates.peek().score)
+			{
+				best.score = score;
+				candidates.add(best);
+				continue;
+			}
+
+			for(int i = best.offset; i + GRAM_LENGTH <= best.offset + best.length; i++)
+				covered.add(gram(best.sample, i));
+
+			picked.add(best);
+			dictionarySize += best.length;
+		}
+
+		if(picked.isEmpty())
+			return null;
+
+		//The best segment goes last, closest to the data being compressed.
+		byte[] dictionary = new byte[Math.min(dictionarySize, size)];
+		int position = dictionary.length;
+
+		for(Segment segment : picked)
+		{
+			int length = Math.min(segment.length, position);
+			position -= length;
+			System.arraycopy(segment.sample, segment.offset, dictionary, position, length);
+
+			if(position == 0)
+				break;
+		}
+
+		return new CompressionDictionary(dictionary);
+	}
+
+	private static int score(Segment segment, Map<Long, Integer> frequencies, Set<Long> covered)
+	{
+		Set<Long> seen = new HashSet<>();
+		int score = 0;
+
+		for(int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; i++)
+		{
+			Long gram = gram(segment.sample, i);
+
+			if(covered.contains(gram) || !seen.add(gram))
+				continue;
+
+			int frequency = frequencies.get(gram);
+			if(frequency > 1)
+				score += frequency;
+		}
+
+		return score;
+	}
+
+	private static long gram(byte[] data, int offset)
+	{
+		long gram = 0;
+
+		for(int i = 0; i < GRAM_LENGTH; i++)
+			gram = (gram << 8) | (data[offset + i] & 0xFF);
+
+		return gram;
+	}
+
+	/**
+	 * Trains a dictionary from a directory of samples, and saves it.
+	 * @param args The directory, the file to save the dictionary to, and optionally its size.
+	 * @throws IOException If the samples couldn't be read, or the dictionary couldn't be saved.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 2)
+		{
+			System.out.println("Usage: DictionaryTrainer <directory with one sample per file> <dictionary file> [size]");
+			return;
+		}
+
+		List<byte[]> samples = new ArrayList<>();
+		try(Stream<Path> files = Files.list(Paths.get(args[0])))
+		{
+			for(Path file : (Iterable<Path>)files.filter(Files::isRegularFile)::iterator)
+				samples.add(Files.readAllBytes(file));
+		}
+
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SIZE;
+		CompressionDictionary dictionary = train(samples, size);
+
+		if(dictionary == null)
+		{
+			System.out.println("The " + samples.size() + " samples had nothing in common.");
+			return;
+		}
+
+		dictionary.save(Paths.get(args[1]));
+		System.out.println("Trained a " + dictionary.getSize() + " byte dictionary with ID "
+				+ Integer.toHexString(dictionary.getID()) + " from " + samples.size() + " samples.");
+	}
+}
@@ -0,0 +1,74 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import Parlo.BufferPool;
+
+/**
+ * An interface for an algorithm that compresses packets one by one. A packet's
+ * isCompressed byte holds the ID of the codec that compressed it, so the receiver
+ * can look the codec up in CompressionCodecs. Implementations must be thread safe.
+ */
+public interface ICompressionCodec
+{
+	/**
+	 * Gets the ID written to the isCompressed byte of packets compressed by this codec.
+	 * @return The ID, which must not be 0.
+	 */
+	abstract byte getID();
+
+	/**
+	 * Compresses a packet's data, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	abstract ByteBuffer compressPacket(byte id, byte[] data, int offset, int length);
+
+	/**
+	 * Compresses a packet's data into a buffer from a pool, and writes it after the packet's header.
+	 * The buffer should be released to the pool once it has been sent. By default, the packet 
+	 * compressed by compressPacket() is copied to the buffer, so codecs should override this.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param pool The pool to acquire the buffer from.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	default ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, BufferPool pool)
+	{
+		ByteBuffer packet = compressPacket(id, data, offset, length);
+
+		if(packet == null)
+			return null;
+
+		return pool.acquire(packet.remaining()).put(packet).flip();
+	}
+
+	/**
+	 * Decompresses a packet's data.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data. Protects against
+	 * packets that decompress to far more data than they contain.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, or decompressed to more than maxLength bytes.
+	 */
+	abstract byte[] decompress(byte[] data, int maxLength) throws DataFormatException;
+}
@@ -0,0 +1,460 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Compression;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import Parlo.BufferPool;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketHeaders;
+
+/**
+ * A fast LZ77 compressor in pure Java, which writes LZ4's block format. It finds
+ * matches with a single hash table and doesn't entropy code anything, so it
+ * compresses less than deflate, but compresses several times faster and
+ * decompresses at well over a GB/s. This makes compression worth it on fast links,
+ * where deflate takes longer than sending the uncompressed data would.
+ * Compressed data starts with its uncompressed length as a varint, so the
+ * receiver can check it and allocate the exact output up front. Instances are thread safe.
+ */
+public class LZCodec implements ICompressionCodec
+{
+	/**
+	 * The value of a packet's isCompressed byte when it was compressed by an LZCodec.
+	 */
+	public static final byte ID = 5;
+
+	private static final int MIN_MATCH = 4;
+	//LZ4's format requires the last 5 bytes to be literals, and the last match to start 12 bytes before the end.
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+
+	private static final int HASH_BITS = 12;
+	//After this many misses in a row, the compressor starts skipping ahead faster.
+	private static final int SKIP_TRIGGER = 6;
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	//The hash tables are never cleared. A stale entry is only used if the bytes it points to match.
+	private final ConcurrentLinkedQueue<int[]> tables = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledTables = new AtomicInteger(0);
+
+	/**
+	 * Gets the ID written to the isCompressed byte of packets compressed by this codec.
+	 * @return ID.
+	 */
+	@Override
+	public byte getID()
+	{
+		return ID;
+	}
+
+	/**
+	 * Compresses a packet's data, and writes it after the packet's header.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	@Override
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length)
+	{
+		byte[] packet = new byte[PacketHeaders.STANDARD + length];
+		int compressedLength = compress(data, offset, length, packet, PacketHeaders.STANDARD, length);
+
+		if(compressedLength < 0)
+			return null;
+
+		ByteBuffer buffer = ByteBuffer.wrap(packet, 0, PacketHeaders.STANDARD + compressedLength);
+		Packet.writeHeader(buffer, id, ID, compressedLength);
+		buffer.position(0);
+
+		return buffer;
+	}
+
+	/**
+	 * Compresses a packet's data into a buffer from a pool, and writes it after the packet's header.
+	 * The compressor works on arrays, so data for a direct buffer is compressed into a pooled heap
+	 * buffer first, and copied. That is the copy the JDK would otherwise make when the packet is written.
+	 * @param id The ID of the packet.
+	 * @param data The packet's data, excluding the header.
+	 * @param offset The offset of the data.
+	 * @param length The length of the data.
+	 * @param pool The pool to acquire the buffer from.
+	 * @return The compressed packet, ready to be sent, or null if compressing
+	 * the data didn't make it any smaller.
+	 */
+	@Override
+	public ByteBuffer compressPacket(byte id, byte[] data, int offset, int length, BufferPool pool)
+	{
+		ByteBuffer packet = pool.acquire(PacketHeaders.STANDARD + length);
+		int compressedLength;
+
+		if(packet.hasArray())
+		{
+			compressedLength = compress(data, offset, length, packet.array(), 
+					packet.arrayOffset() + PacketHeaders.STANDARD, length);
+		}
+		else
+		{
+			ByteBuffer scratch = BufferPool.getHeap().acquire(length);
+			compressedLength = compress(data, offset, length, scratch.array(), scratch.arrayOffset(), length);
+
+			if(compressedLength >= 0)
+				packet.position(PacketHeaders.STANDARD).put(scratch.array(), scratch.arrayOffset(), compressedLength);
+
+			BufferPool.getHeap().release(scratch);
+		}
+
+		if(compressedLength < 0)
+		{
+			pool.release(packet);
+			return null;
+		}
+
+		packet.limit(PacketHeaders.STANDARD + compressedLength).position(0);
+		Packet.writeHeader(packet, id, ID, compressedLength);
+		packet.position(0);
+
+		return packet;
+	}
+
+	/**
+	 * Compresses data.
+	 * @param src The data to compress.
+	 * @param srcOffset The offset of the data.
+	 * @param srcLength The length of the data.
+	 * @param dst The array to compress into.
+	 * @param dstOffset The offset in dst to start writing at.
+	 * @param maxLength The maximum number of bytes to write.
+	 * @return The number of bytes written, or -1 if the compressed data was longer than maxLength.
+	 */
+	public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength)
+	{
+		if(src == null || dst == null)
+			throw new IllegalArgumentException("src and dst must not be null!");
+
+		int dstEnd = dstOffset + Math.min(maxLength, dst.length - dstOffset);
+		int op = writeVarint(srcLength, dst, dstOffset, dstEnd);
+
+		if(op < 0)
+			return -1;
+
+		int[] table = tables.poll();
+
+		if(table == null)
+			table = new int[1 << HASH_BITS];
+		else
+			pooledTables.decrementAndGet();
+
+		try
+		{
+			op = compressBlock(src, srcOffset, srcLength, dst, op, dstEnd, table);
+			return op < 0 ? -1 : op - dstOffset;
+		}
+		finally
+		{
+			if(pooledTables.incrementAndGet() <= DeflateCodec.MAX_POOLED)
+				tables.offer(table);
+			else
+				pooledTables.decrementAndGet();
+		}
+	}
+
+	private static int compressBlock(byte[] src, int srcOffset, int srcLength, byte[] dst, int op,
+			int dstEnd, int[] table)
+	{
+		int srcEnd = srcOffset + srcLength;
+		int anchor = srcOffset;
+
+		if(srcLength >= MF_LIMIT + 1)
+		{
+			int matchLimit = srcEnd - LAST_LITERALS;
+			int ip = srcOffset;
+			table[hash((int)INT.get(src, ip))] = ip++;
+
+			while(true)
+			{
+				//Looks for a match, skipping ahead faster the longer it goes without finding one.
+				int ref;
+				int misses = 1 << SKIP_TRIGGER;
+
+				while(true)
+				{
+					if(ip > srcEnd - MF_LIMIT)
+						return writeLastLiterals(src, anchor, srcEnd - anchor, dst, op, dstEnd);
+
+					int sequence = (int)INT.get(src, ip);
+					int h = hash(sequence);
+					ref = table[h];
+					table[h] = ip;
+
+					if(ref >= srcOffset && ref < ip && ip - ref <= MAX_OFFSET && (int)INT.get(src, ref) == sequence)
+						break;
+
+					ip += misses++ >>> SKIP_TRIGGER;
+				}
+
+				//Extends the match backwards, over literals that match too.
+				while(ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1])
+				{
+					ip--;
+					ref--;
+				}
+
+				int matchLength = MIN_MATCH + matchLength(src, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit);
+
+				//Token, literal length, literals, offset and match length.
+				int literalLength = ip - anchor;
+				if(op + 1 + literalLength + literalLength / 255 + 1 + 2 + (matchLength - MIN_MATCH) / 255 + 1 > dstEnd)
+					return -1;
+
+				int token = op++;
+				if(literalLength >= 15)
+				{
+					dst[token] = (byte)(15 << 4);
+					op = writeLength(literalLength - 15, dst, op);
+				}
+				else
+					dst[token] = (byte)(literalLength << 4);
+
+				System.arraycopy(src, anchor, dst, op, literalLength);
+				op += literalLength;
+
+				int offset = ip - ref;
+				dst[op++] = (byte)offset;
+				dst[op++] = (byte)(offset >>> 8);
+
+				int extra = matchLength - MIN_MATCH;
+				if(extra >= 15)
+				{
+					dst[token] |= 15;
+					op = writeLength(extra - 15, dst, op);
+				}
+				else
+					dst[token] |= (byte)extra;
+
+				ip += matchLength;
+				anchor = ip;
+
+				if(ip > srcEnd - MF_LIMIT)
+					break;
+
+				//Remembers a position inside the match, which helps with runs.
+				table[hash((int)INT.get(src, ip - 2))] = ip - 2;
+			}
+		}
+
+		return writeLastLiterals(src, anchor, srcEnd - anchor, dst, op, dstEnd);
+	}
+
+	//Compares 8 bytes at a time, and finds the first byte that differs from the XOR of the two.
+	private static int matchLength(byte[] src, int ip, int ref, int limit)
+	{
+		int start = ip;
+
+		while(ip <= limit - 8)
+		{
+			long difference = (long)LONG.get(src, ip) ^ (long)LONG.get(src, ref);
+			if(difference != 0)
+				return ip - start + (Long.numberOfTrailingZeros(difference) >>> 3);
+
+			ip += 8;
+			ref += 8;
+		}
+
+		while(ip < limit && src[ip] == src[ref])
+		{
+			ip++;
+			ref++;
+		}
+
+		return ip - start;
+	}
+
+	private static int writeLastLiterals(byte[] src, int anchor, int literalLength, byte[] dst, int op, int dstEnd)
+	{
+		if(op + 1 + literalLength + literalLength / 255 + 1 > dstEnd)
+			return -1;
+
+		if(literalLength >= 15)
+		{
+			dst[op++] = (byte)(15 << 4);
+			op = writeLength(literalLength - 15, dst, op);
+		}
+		else
+			dst[op++] = (byte)(literalLength << 4);
+
+		System.arraycopy(src, anchor, dst, op, literalLength);
+		return op + literalLength;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op)
+	{
+		while(length >= 255)
+		{
+			dst[op++] = (byte)255;
+			length -= 255;
+		}
+
+		dst[op++] = (byte)length;
+		return op;
+	}
+
+	private static int writeVarint(int value, byte[] dst, int op, int dstEnd)
+	{
+		do
+		{
+			if(op >= dstEnd)
+				return -1;
+
+			int b = value & 0x7F;
+			value >>>= 7;
+			dst[op++] = (byte)(value != 0 ? b | 0x80 : b);
+		}
+		while(value != 0);
+
+		return op;
+	}
+
+	private static int hash(int sequence)
+	{
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Decompresses a packet's data.
+	 * @param data The compressed data.
+	 * @param maxLength The maximum length of the decompressed data.
+	 * @return The decompressed data.
+	 * @throws DataFormatException If the data was corrupt, or decompressed to more than maxLength bytes.
+	 */
+	@Override
+	public byte[] decompress(byte[] data, int maxLength) throws DataFormatException
+	{
+		if(data == null)
+			throw new IllegalArgumentException("data");
+
+		try
+		{
+			int ip = 0;
+			int length = 0;
+
+			for(int shift = 0; ; shift += 7)
+			{
+				if(shift > 28)
+					throw new DataFormatException("Received a corrupt length!");
+
+				int b = data[ip++];
+				length |= (b & 0x7F) << shift;
+
+				if((b & 0x80) == 0)
+					break;
+			}
+
+			if(length < 0 || length > maxLength)
+				throw new DataFormatException("Decompressed data was longer than " + maxLength + " bytes!");
+
+			byte[] output = new byte[length];
+			int op = 0;
+
+			while(true)
+			{
+				int token = data[ip++] & 0xFF;
+
+				int literalLength = token >>> 4;
+				if(literalLength == 15)
+				{
+					int b;
+					do
+					{
+						b = data[ip++] & 0xFF;
+						literalLength += b;
+					}
+					while(b == 255);
+				}
+
+				//Throws an IndexOutOfBoundsException if either array is too short.
+				System.arraycopy(data, ip, output, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+
+				//The last sequence has no match.
+				if(ip == data.length)
+					break;
+
+				int offset = (data[ip] & 0xFF) | ((data[ip + 1] & 0xFF) << 8);
+				ip += 2;
+
+				if(offset == 0 || offset > op)
+					throw new DataFormatException("Received a match outside of the data!");
+
+				int matchLength = token & 15;
+				if(matchLength == 15)
+				{
+					int b;
+					do
+					{
+						b = data[ip++] & 0xFF;
+						matchLength += b;
+					}
+					while(b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				if(op + matchLength > length)
+					throw new DataFormatException("Decompressed data was longer than it should have been!");
+
+				int ref = op - offset;
+				if(offset >= matchLength)
+				{
+					System.arraycopy(output, ref, output, op, matchLength);
+					op += matchLength;
+				}
+				else
+				{
+					//The match overlaps the bytes it's copying, so it repeats them.
+					//Every copy doubles the length of what can be copied in one go.
+					int end = op + matchLength;
+					int chunk = offset;
+
+					while(op < end)
+					{
+						int copied = Math.min(chunk, end - op);
+						System.arraycopy(output, ref, output, op, copied);
+						op += copied;
+						chunk += copied;
+					}
+				}
+			}
+
+			if(op != length)
+				throw new DataFormatException("Decompressed data was shorter than it should have been!");
+
+			return output;
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new DataFormatException("Received corrupt LZ data!");
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Encryption;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import Parlo.Exceptions.DecryptionException;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketHeaders;
+
+/**
+ * An AEAD session for one connection, using either AES-GCM or ChaCha20-Poly1305.
+ * Both ends of the connection use the same session key, and the nonce of every
+ * packet is made up of the direction it was sent in and a counter. Because the
+ * counters advance in step on both ends, the nonce never has to be sent, and a packet that has been tampered
+ * with, replayed or reordered fails to decrypt. The packet's ID and isCompressed byte are
+ * authenticated along with its data, so they can't be altered either. This means packets must be
+ * encrypted in the order they're sent, and decrypted in the order they're received.
+ * Encrypting and decrypting can happen on different threads at the same time.
+ */
+public class AEADSession
+{
+	/**
+	 * The size of a session key, in bytes.
+	 */
+	public static final int KEY_SIZE = 32;
+
+	/**
+	 * The number of bytes that encryption adds to a packet's data.
+	 */
+	public static final int TAG_SIZE = 16;
+
+	private static final int NONCE_SIZE = 12;
+	private static final SecureRandom random = new SecureRandom();
+
+	private final EncryptionMode mode;
+	private final SecretKey key;
+
+	private final Cipher encipher;
+	private final byte[] sendNonce = new byte[NONCE_SIZE];
+	private final byte[] sendHeader = new byte[2];
+	private long sendCounter = 0;
+
+	private final Cipher decipher;
+	private final byte[] receiveNonce = new byte[NONCE_SIZE];
+	private final byte[] receiveHeader = new byte[2];
+	private long receiveCounter = 0;
+
+	/**
+	 * Creates a new AES-GCM session.
+	 * @param sessionKey The session key, which must be KEY_SIZE bytes long.
+	 * @param isInitiator True for the end that initiated the connection (the client),
+	 * false for the end that accepted it (the server). Makes sure the two directions
+	 * never use the same nonce.
+	 * @throws GeneralSecurityException If AES-GCM isn't available.
+	 */
+	public AEADSession(byte[] sessionKey, boolean isInitiator) throws GeneralSecurityException
+	{
+		this(sessionKey, isInitiator, EncryptionMode.AESGCM);
+	}
+
+	/**
+	 * Creates a new session.
+	 * @param sessionKey The session key, which must be KEY_SIZE bytes long.
+	 * @param isInitiator True for the end that initiated the connection (the client),
+	 * false for the end that accepted it (the server). Makes sure the two directions
+	 * never use the same nonce.
+	 * @param mode The cipher to use. Must be an AEAD mode, see EncryptionMode.isAEAD().
+	 * @throws GeneralSecurityException If the cipher isn't available.
+	 */
+	public AEADSession(byte[] sessionKey, boolean isInitiator, EncryptionMode mode)
+			throws GeneralSecurityException
+	{
+		if(sessionKey == null || sessionKey.length != KEY_SIZE)
+			throw new IllegalArgumentException("sessionKey must be " + KEY_SIZE + " bytes long!");
+		if(mode == null || !mode.isAEAD())
+			throw new IllegalArgumentException("mode must be an AEAD mode!");
+
+		this.mode = mode;
+		key = new SecretKeySpec(sessionKey, mode == EncryptionMode.AESGCM ? "AES" : "ChaCha20");
+		encipher = Cipher.getInstance(transformation(mode));
+		decipher = Cipher.getInstance(transformation(mode));
+
+		sendNonce[0] = (byte)(isInitiator ? 0 : 1);
+		receiveNonce[0] = (byte)(isInitiator ? 1 : 0);
+	}
+
+	/**
+	 * Gets the cipher this session uses.
+	 * @return The EncryptionMode.
+	 */
+	public EncryptionMode getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Gets the name of the JCA Cipher that implements an AEAD mode.
+	 * @param mode The mode.
+	 * @return The Cipher transformation.
+	 */
+	static String transformation(EncryptionMode mode)
+	{
+		return mode == EncryptionMode.AESGCM ? "AES/GCM/NoPadding" : "ChaCha20-Poly1305";
+	}
+
+	/**
+	 * Derives a session key from the key derived by EncryptionArgs, and
+	 * a salt that is unique to the connection, using HKDF-SHA256.
+	 * The key is for args.Mode if it's an AEAD mode, and for AES-GCM otherwise.
+	 * @param args The EncryptionArgs shared by both ends.
+	 * @param sessionSalt The salt, which both ends must agree on. See newSessionSalt().
+	 * @return The session key.
+	 * @throws GeneralSecurityException If the key couldn't be derived.
+	 */
+	public static byte[] deriveSessionKey(EncryptionArgs args, byte[] sessionSalt)
+			throws GeneralSecurityException
+	{
+		if(args == null)
+			throw new IllegalArgumentException("args");
+
+		return deriveSessionKey(args, sessionSalt, 
+				args.Mode != null && args.Mode.isAEAD() ? args.Mode : EncryptionMode.AESGCM);
+	}
+
+	/**
+	 * Derives a session key for a cipher from the key derived by EncryptionArgs, and
+	 * a salt that is unique to the connection, using HKDF-SHA256.
+	 * Each cipher gets a different key from the same arguments.
+	 * @param args The EncryptionArgs shared by both ends.
+	 * @param sessionSalt The salt, which both ends must agree on. See newSessionSalt().
+	 * @param mode The cipher the key will be used with. Must be an AEAD mode.
+	 * @return The session key.
+	 * @throws GeneralSecurityException If the key couldn't be derived.
+	 */
+	public static byte[] deriveSessionKey(EncryptionArgs args, byte[] sessionSalt, EncryptionMode mode)
+			throws GeneralSecurityException
+	{
+		if(args == null)
+			throw new IllegalArgumentException("args");
+		if(sessionSalt == null)
+			throw new IllegalArgumentException("sessionSalt");
+		if(mode == null || !mode.isAEAD())
+			throw new IllegalArgumentException("mode must be an AEAD mode!");
+
+		return deriveKey(args.getAES().getKey().getEncoded(), sessionSalt, sessionKeyInfo("password", mode));
+	}
+
+	/**
+	 * Gets the HKDF info for a session key, which names where the key
+	 * came from and the cipher it's for.
+	 * @param source What the key is derived from, such as "X25519".
+	 * @param mode The cipher the key will be used with.
+	 * @return The info.
+	 */
+	static byte[] sessionKeyInfo(String source, EncryptionMode mode)
+	{
+		String cipher = mode == EncryptionMode.AESGCM ? "AES-GCM" : "ChaCha20-Poly1305";
+		return ("Parlo " + source + " " + cipher + " session key").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Derives a KEY_SIZE bytes long key with HKDF-SHA256 (RFC 5869).
+	 * @param secret The input keying material.
+	 * @param salt The salt.
+	 * @param info The context the key is used in.
+	 * @return The key.
+	 * @throws GeneralSecurityException If HmacSHA256 isn't available.
+	 */
+	static byte[] deriveKey(byte[] secret, byte[] salt, byte[] info) throws GeneralSecurityException
+	{
+		Mac hmac = Mac.getInstance("HmacSHA256");
+
+		//Extract...
+		hmac.init(new SecretKeySpec(salt.length > 0 ? salt : new byte[32], "HmacSHA256"));
+		byte[] pseudoRandomKey = hmac.doFinal(secret);
+
+		//...and expand. HmacSHA256 outputs exactly KEY_SIZE bytes, so one block is enough.
+		hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+		hmac.update(info);
+		hmac.update((byte)1);
+
+		return hmac.doFinal();
+	}
+
+	/**
+	 * Creates a random salt for deriveSessionKey().
+	 * @return The salt.
+	 */
+	public static byte[] newSessionSalt()
+	{
+		byte[] salt = new byte[16];
+		random.nextBytes(salt);
+		return salt;
+	}
+
+	/**
+	 * Creates a random session key.
+	 * @return The key, which is KEY_SIZE bytes long.
+	 */
+	public static byte[] newSessionKey()
+	{
+		byte[] key = new byte[KEY_SIZE];
+		random.nextBytes(key);
+		return key;
+	}
+
+	/**
+	 * Encrypts a packet's data straight into a new buffer that also contains
+	 * the packet's header, so it can be sent as is.
+	 * @param id The ID of the packet.
+	 * @param data The data to encrypt, from its position to its limit.
+	 * @return The packet, ready to be sent.
+	 * @throws GeneralSecurityException If the data couldn't be encrypted.
+	 */
+	public ByteBuffer encryptPacket(byte id, ByteBuffer data) throws GeneralSecurityException
+	{
+		return encryptPacket(id, false, data);
+	}
+
+	/**
+	 * Encrypts a packet's data straight into a new buffer that also contains
+	 * the packet's header, so it can be sent as is.
+	 * @param id The ID of the packet.
+	 * @param isCompressed Was the packet's data compressed before it was encrypted?
+	 * @param data The data to encrypt, from its position to its limit.
+	 * @return The packet, ready to be sent.
+	 * @throws GeneralSecurityException If the data couldn't be encrypted.
+	 */
+	public ByteBuffer encryptPacket(byte id, boolean isCompressed, ByteBuffer data) 
+			throws GeneralSecurityException
+	{
+		return encryptPacket(id, (byte)(isCompressed ? 1 : 0), data);
+	}
+
+	/**
+	 * Encrypts a packet's data straight into a new buffer that also contains
+	 * the packet's header, so it can be sent as is.
+	 * @param id The ID of the packet.
+	 * @param compression The packet's isCompressed byte, which is sent as is.
+	 * @param data The data to encrypt, from its position to its limit.
+	 * @return The packet, ready to be sent.
+	 * @throws GeneralSecurityException If the data couldn't be encrypted.
+	 */
+	public ByteBuffer encryptPacket(byte id, byte compression, ByteBuffer data) 
+			throws GeneralSecurityException
+	{
+		ByteBuffer packet = ByteBuffer.allocate(PacketHeaders.STANDARD + data.remaining() + TAG_SIZE);
+		encryptPacket(id, compression, data, packet);
+		packet.flip();
+
+		return packet;
+	}
+
+	/**
+	 * Encrypts a packet's data into a buffer, after the packet's header, so that 
+	 * packets can be encrypted straight into buffers from a pool.
+	 * @param id The ID of the packet.
+	 * @param compression The packet's isCompressed byte, which is sent as is.
+	 * @param data The data to encrypt, from its position to its limit.
+	 * @param dst The buffer to write the packet to, at its position. Must have
+	 * PacketHeaders.STANDARD + data.remaining() + TAG_SIZE bytes remaining.
+	 * @return The number of bytes written to dst.
+	 * @throws GeneralSecurityException If the data couldn't be encrypted.
+	 */
+	public int encryptPacket(byte id, byte compression, ByteBuffer data, ByteBuffer dst) 
+			throws GeneralSecurityException
+	{
+		int encryptedLength = data.remaining() + TAG_SIZE;
+
+		Packet.writeHeader(dst, id, compression, encryptedLength);
+		return PacketHeaders.STANDARD + encrypt(id, compression, data, dst);
+	}
+
+	/**
+	 * Encrypts data into a buffer, using the next nonce for sending.
+	 * @param id The ID of the packet, which is authenticated but not encrypted.
+	 * @param compression The packet's isCompressed byte, which is authenticated but not encrypted.
+	 * @param src The data to encrypt, from its position to its limit.
+	 * @param dst The buffer to write to. Must have src.remaining() + TAG_SIZE bytes remaining.
+	 * @return The number of bytes written to dst.
+	 * @throws GeneralSecurityException If the data couldn't be encrypted.
+	 */
+	public int encrypt(byte id, byte compression, ByteBuffer src, ByteBuffer dst) 
+			throws GeneralSecurityException
+	{
+		synchronized(encipher)
+		{
+			encipher.init(Cipher.ENCRYPT_MODE, key, nextNonce(mode, sendNonce, sendCounter));
+			sendHeader[0] = id;
+			sendHeader[1] = compression;
+			encipher.updateAAD(sendHeader);
+			int written = encipher.doFinal(src, dst);
+			sendCounter++;
+
+			return written;
+		}
+	}
+
+	/**
+	 * Decrypts data into a buffer, using the next nonce for receiving.
+	 * @param id The ID the packet was received with.
+	 * @param compression The isCompressed byte the packet was received with.
+	 * @param src The data to decrypt, from its position to its limit.
+	 * @param dst The buffer to write to. Must have src.remaining() - TAG_SIZE bytes remaining.
+	 * @return The number of bytes written to dst.
+	 * @throws DecryptionException If the packet had been tampered with, or was received out of order.
+	 */
+	public int decrypt(byte id, byte compression, ByteBuffer src, ByteBuffer dst) throws DecryptionException
+	{
+		synchronized(decipher)
+		{
+			try
+			{
+				decipher.init(Cipher.DECRYPT_MODE, key, nextNonce(mode, receiveNonce, receiveCounter));
+				receiveHeader[0] = id;
+				receiveHeader[1] = compression;
+				decipher.updateAAD(receiveHeader);
+				int written = decipher.doFinal(src, dst);
+				receiveCounter++;
+
+				return written;
+			}
+			catch(GeneralSecurityException exception)
+			{
+				throw new DecryptionException("Couldn't decrypt " + mode + " packet: " + exception.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Decrypts data, using the next nonce for receiving.
+	 * @param id The ID the packet was received with.
+	 * @param compression The isCompressed byte the packet was received with.
+	 * @param data The data to decrypt.
+	 * @return The decrypted data.
+	 * @throws DecryptionException If the packet had been tampered with, or was received out of order.
+	 */
+	public byte[] decrypt(byte id, byte compression, byte[] data) throws DecryptionException
+	{
+		if(data == null)
+			throw new DecryptionException("AEAD packet was too short!");
+
+		return decrypt(id, compression, ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Decrypts data, using the next nonce for receiving.
+	 * @param id The ID the packet was received with.
+	 * @param compression The isCompressed byte the packet was received with.
+	 * @param data The data to decrypt, from its position to its limit.
+	 * @return The decrypted data.
+	 * @throws DecryptionException If the packet had been tampered with, or was received out of order.
+	 */
+	public byte[] decrypt(byte id, byte compression, ByteBuffer data) throws DecryptionException
+	{
+		if(data == null || data.remaining() < TAG_SIZE)
+			throw new DecryptionException("AEAD packet was too short!");
+
+		ByteBuffer decrypted = ByteBuffer.allocate(data.remaining() - TAG_SIZE);
+		decrypt(id, compression, data, decrypted);
+
+		return decrypted.array();
+	}
+
+	private static AlgorithmParameterSpec nextNonce(EncryptionMode mode, byte[] nonce, long counter)
+	{
+		if(counter == -1L)
+			throw new IllegalStateException("AEAD session has run out of nonces!");
+
+		//The first four bytes hold the direction, the last eight the counter.
+		for(int i = NONCE_SIZE - 1; i >= 4; i--)
+		{
+			nonce[i] = (byte)counter;
+			counter >>>= 8;
+		}
+
+		if(mode == EncryptionMode.AESGCM)
+			return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+
+		//ChaCha20-Poly1305 always uses a 16 byte tag.
+		return new IvParameterSpec(nonce);
+	}
+}
@@ -19,48 +19,156 @@ import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.Base64;
 
+/**
+ * AES-256 in CBC mode, with a key derived from a password using PBKDF2.
+ * Every packet is encrypted with a random IV, which is sent in front of the
+ * encrypted data, so the same data never encrypts to the same bytes twice.
+ * Deriving the key is slow, so an instance should be created once and reused.
+ * Instances are thread safe: every thread gets its own pair of Ciphers,
+ * which are reused for every packet.
+ */
 public class AES 
 {
     private static final int ITERATION_COUNT = 10000;
     private static final int KEY_LENGTH = 256;
-    private Cipher encipher;
-    private Cipher decipher;
+    private static final int IV_SIZE = 16;
+    private final SecretKeySpec secret;
+    private final boolean zeroIV;
+    
+    //The IV used by older Parlo implementations, see EncryptionArgs.LegacyZeroIV.
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[IV_SIZE]);
+    private static final SecureRandom random = new SecureRandom();
+    
+    private final ThreadLocal<Cipher> encipher = new ThreadLocal<>();
+    private final ThreadLocal<Cipher> decipher = new ThreadLocal<>();
 
     public AES(String password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException,
             NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException 
     {
+    	this(password, salt, false);
+    }
+    
+    /**
+     * Creates a new AES instance.
+     * @param password The password to derive the key from.
+     * @param salt The salt to derive the key with.
+     * @param zeroIV True to encrypt every packet with an all-zero IV that isn't sent,
+     * like older Parlo implementations do. Identical packets encrypt to identical bytes
+     * in this mode, so it should only be used to talk to those implementations.
+     */
+    public AES(String password, byte[] salt, boolean zeroIV) throws NoSuchAlgorithmException, 
+    		InvalidKeySpecException, NoSuchPaddingException, InvalidKeyException, 
+    		InvalidAlgorithmParameterException 
+    {
+    	this.zeroIV = zeroIV;
+    	
         SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATION_COUNT, KEY_LENGTH);
         SecretKey secretKey = factory.generateSecret(spec);
-        SecretKeySpec secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
-
-        encipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        encipher.init(Cipher.ENCRYPT_MODE, secret);
-        decipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        decipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(new byte[16]));
+        secret = new SecretKeySpec(secretKey.getEncoded(), "AES");
+        spec.clearPassword();
+        
+        //Fail early if the key can't be used.
+        getCipher(encipher, Cipher.ENCRYPT_MODE);
+        getCipher(decipher, Cipher.DECRYPT_MODE);
+    }
+    
+    /**
+     * Gets the key derived from the password, which other ciphers can
+     * use to derive their own keys.
+     * @return The derived key.
+     */
+    SecretKeySpec getKey()
+    {
+    	return secret;
+    }
+    
+    /**
+     * Is every packet encrypted with an all-zero IV that isn't sent?
+     * @return True if this instance is in the legacy zero IV mode.
+     */
+    public boolean usesZeroIV()
+    {
+    	return zeroIV;
+    }
+    
+    /**
+     * Gets the calling thread's Cipher, creating it if it doesn't exist yet.
+     * doFinal() resets a Cipher to the state it was initialized to, so
+     * in the zero IV mode it never has to be initialized again.
+     */
+    private Cipher getCipher(ThreadLocal<Cipher> cipherForThread, int mode) 
+    		throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, 
+    		InvalidAlgorithmParameterException
+    {
+    	Cipher cipher = cipherForThread.get();
+    	
+    	if(cipher == null)
+    	{
+    		cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    		cipher.init(mode, secret, ZERO_IV);
+    		cipherForThread.set(cipher);
+    	}
+    	
+    	return cipher;
     }
 
-    public String Encrypt(String plainText) throws BadPaddingException, IllegalBlockSizeException 
+    public String Encrypt(String plainText) throws GeneralSecurityException 
     {
-        byte[] encrypted = encipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
+        byte[] encrypted = Encrypt(plainText.getBytes(StandardCharsets.UTF_8));
         return Base64.getEncoder().encodeToString(encrypted);
     }
 
-    public byte[] Encrypt(byte[] plainBytes) throws BadPaddingException, IllegalBlockSizeException 
+    /**
+     * Encrypts data.
+     * @param plainBytes The data to encrypt.
+     * @return The random IV, followed by the encrypted data.
+     * Just the encrypted data in the zero IV mode.
+     * @throws GeneralSecurityException If the data couldn't be encrypted.
+     */
+    public byte[] Encrypt(byte[] plainBytes) throws GeneralSecurityException 
     {
-        return encipher.doFinal(plainBytes);
+    	Cipher cipher = getCipher(encipher, Cipher.ENCRYPT_MODE);
+    	if(zeroIV)
+    		return cipher.doFinal(plainBytes);
+    	
+    	byte[] iv = new byte[IV_SIZE];
+    	random.nextBytes(iv);
+    	cipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(iv));
+    	
+    	byte[] encrypted = new byte[IV_SIZE + cipher.getOutputSize(plainBytes.length)];
+    	System.arraycopy(iv, 0, encrypted, 0, IV_SIZE);
+    	int length = IV_SIZE + cipher.doFinal(plainBytes, 0, plainBytes.length, encrypted, IV_SIZE);
+    	
+    	return length == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length);
     }
 
-    public String Decrypt(String secureText) throws BadPaddingException, IllegalBlockSizeException 
+    public String Decrypt(String secureText) throws GeneralSecurityException 
     {
-        byte[] decrypted = decipher.doFinal(Base64.getDecoder().decode(secureText));
+        byte[] decrypted = Decrypt(Base64.getDecoder().decode(secureText));
         return new String(decrypted, StandardCharsets.UTF_8);
     }
 
-    public byte[] Decrypt(byte[] secureBytes) throws BadPaddingException, IllegalBlockSizeException 
+    /**
+     * Decrypts data encrypted by Encrypt().
+     * @param secureBytes The IV, followed by the encrypted data.
+     * Just the encrypted data in the zero IV mode.
+     * @return The decrypted data.
+     * @throws GeneralSecurityException If the data was too short, or had invalid padding.
+     */
+    public byte[] Decrypt(byte[] secureBytes) throws GeneralSecurityException 
     {
-        return decipher.doFinal(secureBytes);
+    	Cipher cipher = getCipher(decipher, Cipher.DECRYPT_MODE);
+    	if(zeroIV)
+    		return cipher.doFinal(secureBytes);
+    	
+    	if(secureBytes.length < IV_SIZE)
+    		throw new IllegalBlockSizeException("AES data must start with a " + IV_SIZE + " byte IV!");
+    	
+    	cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(secureBytes, 0, IV_SIZE));
+    	return cipher.doFinal(secureBytes, IV_SIZE, secureBytes.length - IV_SIZE);
     }
 }
@@ -0,0 +1,117 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Encryption;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.Cipher;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import Parlo.LogLevel;
+import Parlo.Logger;
+
+/**
+ * Ranks the AEAD ciphers this JVM supports from fastest to slowest. Which one is
+ * fastest depends on the CPU: AES-GCM is faster with AES instructions, ChaCha20-Poly1305
+ * is much faster without them. So rather than timing the ciphers, which is slow on a cold
+ * JVM and gives a different answer from run to run, the probe asks the JVM whether it
+ * uses the CPU's AES instructions. The answer is the same every time, and only takes
+ * a moment to get, so the probe can run the first time the ranking is needed.
+ */
+public class CipherProbe
+{
+	private static volatile List<EncryptionMode> rankedModes;
+
+	/**
+	 * Runs the probe, unless it has already run.
+	 */
+	public static void run()
+	{
+		getRankedModes();
+	}
+
+	/**
+	 * Gets the AEAD modes this JVM supports, from fastest to slowest.
+	 * @return The modes. Never empty, as AES-GCM is always supported.
+	 */
+	public static List<EncryptionMode> getRankedModes()
+	{
+		List<EncryptionMode> modes = rankedModes;
+
+		if (modes == null)
+		{
+			synchronized(CipherProbe.class)
+			{
+				modes = rankedModes;
+				if (modes == null)
+				{
+					modes = probe();
+					rankedModes = modes;
+				}
+			}
+		}
+
+		return modes;
+	}
+
+	private static List<EncryptionMode> probe()
+	{
+		boolean hasAES = hasAESInstructions();
+		List<EncryptionMode> modes = new ArrayList<>();
+
+		for (EncryptionMode mode : hasAES 
+				? new EncryptionMode[] { EncryptionMode.AESGCM, EncryptionMode.ChaCha20Poly1305 }
+				: new EncryptionMode[] { EncryptionMode.ChaCha20Poly1305, EncryptionMode.AESGCM })
+		{
+			try
+			{
+				Cipher.getInstance(AEADSession.transformation(mode));
+				modes.add(mode);
+			}
+			catch(GeneralSecurityException exception)
+			{
+				Logger.log(mode + " isn't supported: " + exception.getMessage(), LogLevel.info);
+			}
+		}
+
+		Logger.log("Ciphers ranked by speed" + (hasAES ? " with" : " without") 
+				+ " AES instructions: " + modes, LogLevel.info);
+		return Collections.unmodifiableList(modes);
+	}
+
+	/**
+	 * Does the JVM encrypt AES with the CPU's AES instructions?
+	 * @return The value of HotSpot's UseAESIntrinsics flag, which is only on if the CPU
+	 * has them. On other JVMs, guesses from the architecture, as every x86-64 and
+	 * ARMv8 CPU made in the last decade has them.
+	 */
+	private static boolean hasAESInstructions()
+	{
+		try
+		{
+			HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+			if (hotSpot != null)
+				return Boolean.parseBoolean(hotSpot.getVMOption("UseAESIntrinsics").getValue());
+		}
+		catch(RuntimeException | LinkageError exception)
+		{
+			//Not HotSpot, or the flag doesn't exist.
+		}
+
+		String arch = System.getProperty("os.arch", "").toLowerCase(Locale.ROOT);
+		return arch.equals("amd64") || arch.equals("x86_64") || arch.equals("aarch64");
+	}
+}
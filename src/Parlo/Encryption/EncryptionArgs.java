@@ -1,5 +1,7 @@
 package Parlo.Encryption;
 
+import java.security.GeneralSecurityException;
+
 public class EncryptionArgs 
 {
     /// <summary>
@@ -16,4 +18,77 @@ public class EncryptionArgs
     /// The salt used for encryption.
     /// </summary>
     public String Salt;
+    
+    /// <summary>
+    /// Encrypt AES packets with the all-zero IV used by older Parlo implementations,
+    /// instead of a random IV per packet. Identical packets encrypt to identical bytes
+    /// with it, so only set it to talk to implementations that haven't been updated.
+    /// Defaults to false.
+    /// </summary>
+    public boolean LegacyZeroIV;
+    
+    //Deriving the key is deliberately slow, so it's only done once 
+    //for each Key and Salt.
+    private AES aes;
+    private String aesKey, aesSalt;
+    private Twofish twofish;
+    private AES twofishAES;
+    
+    /**
+     * Gets an AES instance for the Key and Salt of these args.
+     * The key is derived the first time this is called, and again 
+     * only if Key, Salt or LegacyZeroIV has changed since.
+     * @return The AES instance, which can be shared between threads.
+     * @throws GeneralSecurityException If the key couldn't be derived.
+     */
+    public synchronized AES getAES() throws GeneralSecurityException
+    {
+    	if(Key == null || Salt == null)
+    		throw new IllegalArgumentException("Key and Salt must be set!");
+    	
+    	if(aes == null || !Key.equals(aesKey) || !Salt.equals(aesSalt) || aes.usesZeroIV() != LegacyZeroIV)
+    	{
+    		aes = new AES(Key, hexStringToByteArray(Salt), LegacyZeroIV);
+    		aesKey = Key;
+    		aesSalt = Salt;
+    	}
+    	
+    	return aes;
+    }
+    
+    /**
+     * Gets a Twofish instance for the Key and Salt of these args.
+     * It uses the same derived key as getAES(), so the key is only
+     * derived again if Key or Salt has changed.
+     * @return The Twofish instance, which can be shared between threads.
+     * @throws GeneralSecurityException If the key couldn't be derived.
+     */
+    public synchronized Twofish getTwofish() throws GeneralSecurityException
+    {
+    	AES aes = getAES();
+    	
+    	if(twofish == null || twofishAES != aes)
+    	{
+    		twofish = new Twofish(aes.getKey().getEncoded());
+    		twofishAES = aes;
+    	}
+    	
+    	return twofish;
+    }
+    
+    /**
+     * Converts a hex string to a byte array.
+     * @param s The hex string to convert.
+     * @return The converted string as a byte array.
+     */
+    private static byte[] hexStringToByteArray(String s) 
+    {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
 }
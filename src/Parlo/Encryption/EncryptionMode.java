@@ -1,7 +1,62 @@
 package Parlo.Encryption;
 
-public enum EncryptionMode 
+public enum EncryptionMode
 {
-	AES,
-	Twofish;
+	AES((byte)0),
+	/**
+	 * Twofish in CBC mode, see {@link Twofish}.
+	 */
+	Twofish((byte)1),
+	/**
+	 * AES in Galois/Counter Mode, which authenticates every packet.
+	 * Requires a per-connection {@link AEADSession}.
+	 */
+	AESGCM((byte)2),
+	/**
+	 * ChaCha20 with a Poly1305 authenticator, which authenticates every packet.
+	 * Much faster than AES-GCM on CPUs without AES instructions.
+	 * Requires a per-connection {@link AEADSession}.
+	 */
+	ChaCha20Poly1305((byte)3);
+
+	private final byte ID;
+
+	EncryptionMode(byte id)
+	{
+		ID = id;
+	}
+
+	/**
+	 * Gets the ID that identifies this mode during a handshake.
+	 * @return The ID.
+	 */
+	public byte GetID()
+	{
+		return ID;
+	}
+
+	/**
+	 * Is this mode an AEAD cipher, which needs an {@link AEADSession}?
+	 * @return True for AESGCM and ChaCha20Poly1305.
+	 */
+	public boolean isAEAD()
+	{
+		return this == AESGCM || this == ChaCha20Poly1305;
+	}
+
+	/**
+	 * Gets the mode with an ID.
+	 * @param id The ID.
+	 * @return The mode, or null if no mode has the ID.
+	 */
+	public static EncryptionMode fromID(byte id)
+	{
+		for(EncryptionMode mode : values())
+		{
+			if(mode.ID == id)
+				return mode;
+		}
+
+		return null;
+	}
 }
@@ -0,0 +1,101 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Encryption;
+
+import javax.crypto.KeyAgreement;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * One end of an ephemeral X25519 key exchange. Each end creates a KeyExchange,
+ * sends its public key to the other end, and creates an AEADSession from the
+ * other end's public key. Both ends end up with the same session key, which is
+ * never sent, and which is only used for one connection.
+ * The key exchange isn't authenticated, so it protects against eavesdropping,
+ * but not against an attacker who can intercept and alter the connection.
+ */
+public class KeyExchange
+{
+	private final KeyPair keyPair;
+
+	/**
+	 * Generates a new ephemeral key pair.
+	 * @throws GeneralSecurityException If X25519 isn't available.
+	 */
+	public KeyExchange() throws GeneralSecurityException
+	{
+		keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+	}
+
+	/**
+	 * Gets the public key to send to the other end.
+	 * @return The X.509 encoded public key.
+	 */
+	public byte[] getPublicKey()
+	{
+		return keyPair.getPublic().getEncoded();
+	}
+
+	/**
+	 * Agrees on a session key with the other end, and creates an AES-GCM session with it.
+	 * @param peerPublicKey The X.509 encoded public key received from the other end.
+	 * @param isInitiator True for the end that initiated the connection (the client),
+	 * false for the end that accepted it (the server).
+	 * @return The session.
+	 * @throws GeneralSecurityException If the public key was invalid.
+	 */
+	public AEADSession createSession(byte[] peerPublicKey, boolean isInitiator) throws GeneralSecurityException
+	{
+		return createSession(peerPublicKey, isInitiator, EncryptionMode.AESGCM);
+	}
+
+	/**
+	 * Agrees on a session key with the other end, and creates a session with it.
+	 * The session key is derived from the shared secret and both public keys with HKDF-SHA256.
+	 * @param peerPublicKey The X.509 encoded public key received from the other end.
+	 * @param isInitiator True for the end that initiated the connection (the client),
+	 * false for the end that accepted it (the server).
+	 * @param mode The AEAD cipher both ends agreed on.
+	 * @return The session.
+	 * @throws GeneralSecurityException If the public key was invalid, or the cipher isn't available.
+	 */
+	public AEADSession createSession(byte[] peerPublicKey, boolean isInitiator, EncryptionMode mode)
+			throws GeneralSecurityException
+	{
+		if(peerPublicKey == null)
+			throw new IllegalArgumentException("peerPublicKey");
+
+		PublicKey peerKey = KeyFactory.getInstance("X25519").generatePublic(
+				new X509EncodedKeySpec(peerPublicKey));
+
+		KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+		agreement.init(keyPair.getPrivate());
+		agreement.doPhase(peerKey, true);
+		byte[] sharedSecret = agreement.generateSecret();
+
+		//Binds the session key to this exchange's public keys.
+		byte[] ownPublicKey = getPublicKey();
+		byte[] initiatorKey = isInitiator ? ownPublicKey : peerPublicKey;
+		byte[] responderKey = isInitiator ? peerPublicKey : ownPublicKey;
+		byte[] salt = new byte[initiatorKey.length + responderKey.length];
+		System.arraycopy(initiatorKey, 0, salt, 0, initiatorKey.length);
+		System.arraycopy(responderKey, 0, salt, initiatorKey.length, responderKey.length);
+
+		return new AEADSession(AEADSession.deriveKey(sharedSecret, salt, 
+				AEADSession.sessionKeyInfo("X25519", mode)), isInitiator, mode);
+	}
+}
@@ -0,0 +1,117 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Encryption;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+/**
+ * Twofish in CBC mode with PKCS#7 padding, using the cipher from gnu-crypto.
+ * Like AES, every packet is encrypted with a random IV, which is sent in front
+ * of the encrypted data. The key is the same PBKDF2 derived key that AES uses, so it's derived once by
+ * EncryptionArgs, and the Key can be any length. gnu-crypto's key schedule is
+ * made once, and is only read while encrypting, so instances are thread safe.
+ */
+public class Twofish
+{
+	private static final int BLOCK_SIZE = 16;
+	private static final SecureRandom random = new SecureRandom();
+
+	private final gnu.crypto.cipher.Twofish cipher = new gnu.crypto.cipher.Twofish();
+	private final Object sessionKey;
+
+	/**
+	 * Creates a new Twofish instance.
+	 * @param key The key, which must be 16, 24 or 32 bytes long.
+	 * @throws InvalidKeyException If the key had the wrong length.
+	 */
+	public Twofish(byte[] key) throws InvalidKeyException
+	{
+		if(key == null)
+			throw new IllegalArgumentException("key");
+
+		sessionKey = cipher.makeKey(key, BLOCK_SIZE);
+	}
+
+	/**
+	 * Encrypts data.
+	 * @param plainBytes The data to encrypt.
+	 * @return The random IV, followed by the encrypted data, which is padded to a multiple of 16 bytes.
+	 */
+	public byte[] Encrypt(byte[] plainBytes)
+	{
+		int padding = BLOCK_SIZE - plainBytes.length % BLOCK_SIZE;
+		byte[] encrypted = new byte[BLOCK_SIZE + plainBytes.length + padding];
+
+		//The IV goes in the first block, so every block is XORed with the one before it.
+		byte[] iv = new byte[BLOCK_SIZE];
+		random.nextBytes(iv);
+		System.arraycopy(iv, 0, encrypted, 0, BLOCK_SIZE);
+
+		System.arraycopy(plainBytes, 0, encrypted, BLOCK_SIZE, plainBytes.length);
+		for(int i = BLOCK_SIZE + plainBytes.length; i < encrypted.length; i++)
+			encrypted[i] = (byte)padding;
+
+		for(int offset = BLOCK_SIZE; offset < encrypted.length; offset += BLOCK_SIZE)
+		{
+			for(int i = 0; i < BLOCK_SIZE; i++)
+				encrypted[offset + i] ^= encrypted[offset - BLOCK_SIZE + i];
+
+			cipher.encrypt(encrypted, offset, encrypted, offset, sessionKey, BLOCK_SIZE);
+		}
+
+		return encrypted;
+	}
+
+	/**
+	 * Decrypts data.
+	 * @param secureBytes The IV, followed by the data to decrypt.
+	 * @return The decrypted data.
+	 * @throws GeneralSecurityException If the data wasn't a multiple of 16 bytes, or had invalid padding.
+	 */
+	public byte[] Decrypt(byte[] secureBytes) throws GeneralSecurityException
+	{
+		if(secureBytes.length < 2 * BLOCK_SIZE || secureBytes.length % BLOCK_SIZE != 0)
+			throw new IllegalBlockSizeException("Twofish data must be an IV followed by a multiple of " 
+					+ BLOCK_SIZE + " bytes!");
+
+		//The first block is the IV, so it's left as is.
+		byte[] decrypted = new byte[secureBytes.length];
+
+		for(int offset = BLOCK_SIZE; offset < secureBytes.length; offset += BLOCK_SIZE)
+		{
+			cipher.decrypt(secureBytes, offset, decrypted, offset, sessionKey, BLOCK_SIZE);
+
+			for(int i = 0; i < BLOCK_SIZE; i++)
+				decrypted[offset + i] ^= secureBytes[offset - BLOCK_SIZE + i];
+		}
+
+		int padding = decrypted[decrypted.length - 1] & 0xFF;
+		if(padding == 0 || padding > BLOCK_SIZE)
+			throw new BadPaddingException("Invalid Twofish padding!");
+
+		for(int i = decrypted.length - padding; i < decrypted.length; i++)
+		{
+			if(decrypted[i] != (byte)padding)
+				throw new BadPaddingException("Invalid Twofish padding!");
+		}
+
+		byte[] plainBytes = new byte[decrypted.length - BLOCK_SIZE - padding];
+		System.arraycopy(decrypted, BLOCK_SIZE, plainBytes, 0, plainBytes.length);
+
+		return plainBytes;
+	}
+}
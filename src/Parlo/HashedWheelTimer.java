@@ -0,0 +1,311 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for scheduling a large number of short tasks, such as heartbeats,
+ * on a single thread. Timeouts are hashed into a wheel of buckets, and the
+ * timer's thread expires one bucket per tick, so scheduling and cancelling
+ * a timeout are both O(1). Timeouts fire at a granularity of one tick.
+ * Tasks run on the timer's thread, and should never block.
+ */
+public class HashedWheelTimer implements AutoCloseable
+{
+	/**
+	 * The default duration of a tick, in milliseconds.
+	 */
+	public static final int DEFAULT_TICK_MILLIS = 100;
+
+	/**
+	 * The default number of buckets in the wheel.
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	//Timeouts are only added to and removed from the wheel by the timer's thread.
+	//Other threads hand them over through these queues.
+	private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+	private final Thread thread;
+	private final long startTime;
+	private volatile boolean isRunning = true;
+
+	//The number of ticks that have been processed. Only accessed by the timer's thread.
+	private long tick = 0;
+
+	/**
+	 * Creates and starts a new timer with the default tick and wheel size.
+	 * @param threadFactory The factory used to create the timer's thread.
+	 */
+	public HashedWheelTimer(ThreadFactory threadFactory)
+	{
+		this(threadFactory, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Creates and starts a new timer.
+	 * @param threadFactory The factory used to create the timer's thread.
+	 * @param tickDuration The duration of a tick.
+	 * @param unit The unit of tickDuration.
+	 * @param wheelSize The number of buckets in the wheel. Rounded up to a power of two.
+	 */
+	public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int wheelSize)
+	{
+		if(tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive!");
+		if(wheelSize < 1 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^30!");
+
+		int size = 1;
+		while(size < wheelSize)
+			size <<= 1;
+
+		tickNanos = unit.toNanos(tickDuration);
+		wheel = new Bucket[size];
+		mask = size - 1;
+
+		for(int i = 0; i < wheel.length; i++)
+			wheel[i] = new Bucket();
+
+		startTime = System.nanoTime();
+		thread = threadFactory.newThread(this::run);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task to run once, after the given delay.
+	 * @param task The task to run.
+	 * @param delay The delay. A delay of 0 runs the task on the next tick.
+	 * @param unit The unit of delay.
+	 * @return A Timeout that can be used to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		if(task == null)
+			throw new IllegalArgumentException("task was null!");
+
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime +
+				Math.max(unit.toNanos(delay), 0));
+
+		if(!isRunning)
+			timeout.state.set(Timeout.CANCELLED);
+		else
+			pendingTimeouts.offer(timeout);
+
+		return timeout;
+	}
+
+	private void run()
+	{
+		while(isRunning)
+		{
+			long deadline = (tick + 1) * tickNanos;
+			long sleepNanos;
+
+			while((sleepNanos = deadline - (System.nanoTime() - startTime)) > 0)
+			{
+				try
+				{
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos),
+							(int)(sleepNanos % 1000000));
+				}
+				catch(InterruptedException exception)
+				{
+					if(!isRunning)
+						return;
+				}
+			}
+
+			removeCancelledTimeouts();
+			addPendingTimeouts();
+			wheel[(int)(tick & mask)].expireTimeouts();
+			tick++;
+		}
+	}
+
+	private void removeCancelledTimeouts()
+	{
+		Timeout timeout;
+
+		while((timeout = cancelledTimeouts.poll()) != null)
+		{
+			if(timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void addPendingTimeouts()
+	{
+		Timeout timeout;
+
+		//Bounded, so that a flood of new timeouts can't stall the wheel.
+		for(int i = 0; i < 100000 && (timeout = pendingTimeouts.poll()) != null; i++)
+		{
+			if(timeout.state.get() == Timeout.CANCELLED)
+				continue;
+
+			//Rounds up, so that a timeout never fires early.
+			long deadlineTick = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+			timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+			wheel[(int)(deadlineTick & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Stops this timer. Timeouts that haven't expired yet are never run.
+	 */
+	@Override
+	public void close()
+	{
+		isRunning = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * A handle to a task scheduled with a HashedWheelTimer.
+	 */
+	public final class Timeout
+	{
+		private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline; //In nanoseconds, relative to the timer's start time.
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		//Only accessed by the timer's thread.
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next, previous;
+
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, unless it has already run.
+		 * @return True if the task was cancelled, false if it had already run or been cancelled.
+		 */
+		public boolean cancel()
+		{
+			if(!state.compareAndSet(WAITING, CANCELLED))
+				return false;
+
+			cancelledTimeouts.offer(this);
+			return true;
+		}
+
+		/**
+		 * Has the task been cancelled?
+		 * @return True if it has, false otherwise.
+		 */
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Has the task run (or started running)?
+		 * @return True if it has, false otherwise.
+		 */
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		private void expire()
+		{
+			if(!state.compareAndSet(WAITING, EXPIRED))
+				return;
+
+			try
+			{
+				task.run();
+			}
+			catch(Throwable exception)
+			{
+				Logger.log("Exception in HashedWheelTimer task: " + exception.getMessage(),
+						LogLevel.error);
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts.
+	 */
+	private final class Bucket
+	{
+		private Timeout head, tail;
+
+		private void add(Timeout timeout)
+		{
+			timeout.bucket = this;
+
+			if(head == null)
+				head = tail = timeout;
+			else
+			{
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		private void remove(Timeout timeout)
+		{
+			if(timeout.previous != null)
+				timeout.previous.next = timeout.next;
+			if(timeout.next != null)
+				timeout.next.previous = timeout.previous;
+			if(timeout == head)
+				head = timeout.next;
+			if(timeout == tail)
+				tail = timeout.previous;
+
+			timeout.next = timeout.previous = null;
+			timeout.bucket = null;
+		}
+
+		private void expireTimeouts()
+		{
+			Timeout timeout = head;
+
+			while(timeout != null)
+			{
+				Timeout next = timeout.next;
+
+				if(timeout.remainingRounds <= 0)
+				{
+					remove(timeout);
+					timeout.expire();
+				}
+				else if(timeout.isCancelled())
+					remove(timeout);
+				else
+					timeout.remainingRounds--;
+
+				timeout = next;
+			}
+		}
+	}
+}
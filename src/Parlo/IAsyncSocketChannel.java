@@ -63,6 +63,16 @@ public interface IAsyncSocketChannel
 	 * @return A Future of type Integer.
 	 */
 	abstract Future<Integer> read(ByteBuffer dst);
+	
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * The handler is invoked when the read completes or fails.
+	 * @param dst The destination to read into.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	abstract <A> void read(ByteBuffer dst, A attachment, 
+			CompletionHandler<Integer,? super A> handler);
 
 	/**
 	 * Writes a sequence of bytes to this channel from the given buffer.
@@ -72,6 +82,18 @@ public interface IAsyncSocketChannel
 	abstract <A> void write(ByteBuffer src, A attachment, 
 			CompletionHandler<Integer,? super A> handler);
 	
+	/**
+	 * Writes a sequence of bytes to this channel from a subsequence of the given buffers,
+	 * in a single gathering write.
+	 * @param srcs The buffers to write from.
+	 * @param offset The index of the first buffer to write from.
+	 * @param length The number of buffers to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	abstract <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, 
+			CompletionHandler<Long,? super A> handler);
+	
 	/**
 	 * Sets the value of a socket option.
 	 * @param name The name of the socket option to set.
@@ -86,6 +108,17 @@ public interface IAsyncSocketChannel
 	 */
 	abstract boolean isOpen();
 	
+	/**
+	 * Gets the runtime this channel was opened in. A NetworkClient using the
+	 * channel schedules its heartbeats and runs its pools on this runtime.
+	 * @return The runtime, or null if the channel doesn't belong to one, in
+	 * which case the default runtime is used.
+	 */
+	default ParloRuntime getRuntime()
+	{
+		return null;
+	}
+	
 	/**
 	 * Shutdown the connection for reading without closing the channel. 
 	 * Once shutdown for reading then further reads on the channel will 
@@ -13,6 +13,10 @@ Contributor(s): ______________________________________.
 package Parlo;
 
 import Parlo.CancellationTokenSource;
+import Parlo.Compression.CompressionCodecs;
+import Parlo.Compression.CompressionDictionary;
+import Parlo.Compression.DeflateCodec;
+import Parlo.Compression.ICompressionCodec;
 import java.net.*;
 import java.util.concurrent.*;
 import java.util.logging.*;
@@ -30,6 +34,55 @@ public class Listener implements AutoCloseable
     private OnConnectedDelegate onConnected;
     public boolean applyCompression = true;
     
+    /**
+     * Should accepted clients compress and encrypt packets on the runtime's
+     * transform pool, instead of on the thread that sends them?
+     * See NetworkClient.offloadTransforms.
+     */
+    public boolean offloadTransforms = false;
+    
+    /**
+     * Should accepted clients compress packets with a deflate stream that lasts
+     * as long as the connection? See NetworkClient.streamCompression.
+     */
+    public boolean streamCompression = false;
+    
+    /**
+     * Should accepted clients decide which packets to compress by how much time
+     * compressing them saves? See NetworkClient.adaptiveCompression.
+     */
+    public boolean adaptiveCompression = false;
+    
+    /**
+     * Should accepted clients pass received packets to their ReceivedPacketDelegate
+     * as views of their receive buffers? See NetworkClient.zeroCopyReceive.
+     */
+    public boolean zeroCopyReceive = false;
+    
+    /**
+     * Should accepted clients handle received packets through a mailbox on the
+     * runtime's handler pool? See NetworkClient.useMailbox.
+     */
+    public boolean useMailbox = false;
+    
+    /**
+     * The maximum number of packets handled each time an accepted client's mailbox
+     * runs. See NetworkClient.mailboxBatchSize.
+     */
+    public int mailboxBatchSize = 64;
+    
+    /**
+     * The preset dictionary accepted clients compress with, if the 
+     * other end has the same one. See NetworkClient.compressionDictionary.
+     */
+    public CompressionDictionary compressionDictionary;
+    
+    /**
+     * The codec accepted clients compress packets with, when they're compressed
+     * one by one. See NetworkClient.compressionCodec.
+     */
+    public ICompressionCodec compressionCodec = CompressionCodecs.get(DeflateCodec.ID);
+    
     protected ExecutorService executor = Executors.newSingleThreadExecutor();
     protected CancellationTokenSource acceptCTS;
 
@@ -63,21 +116,19 @@ public class Listener implements AutoCloseable
                 	if(acceptCTS.isCancellationRequested())
                 		break;
                 	
-                    IAsyncSocketChannel acceptedSocketInterface = listenerSock.accept().get();
-                    ParloSocketChannel acceptedSocket = (ParloSocketChannel)acceptedSocketInterface;
+                    IAsyncSocketChannel acceptedSocket = listenerSock.accept().get();
 
                     if (acceptedSocket != null) 
                     {
                         Logger.log("New client connected!", LogLevel.info);
                         
-                        acceptedSocket.setOption(StandardSocketOptions.SO_LINGER, 5);
                         NetworkClient newClient = new NetworkClient(acceptedSocket, this);
                         newClient.setClientDisconnectedCallback(new ClientDisconnectedDelegate() 
                         {
                         	public void onClientDisconnected(NetworkClient client)
                         	{
                         		Logger.log("Client disconnected!", LogLevel.info);
-                        		onClientDisconnected(client);
+                        		Listener.this.onClientDisconnected(client);
                         		networkClients.remove(client);
                         		//TODO: Dispose() of client...
                         	}
@@ -96,11 +147,22 @@ public class Listener implements AutoCloseable
 
                         if (!applyCompression)
                             newClient.applyCompression = false;
+                        
+                        newClient.offloadTransforms = offloadTransforms;
+                        newClient.streamCompression = streamCompression;
+                        newClient.adaptiveCompression = adaptiveCompression;
+                        newClient.zeroCopyReceive = zeroCopyReceive;
+                        newClient.useMailbox = useMailbox;
+                        newClient.mailboxBatchSize = mailboxBatchSize;
 
                         networkClients.add(newClient);
 
                         if (onConnected != null)
                             onClientConnected(newClient);
+                        
+                        //Packets received before now would have missed the options
+                        //and handlers set above.
+                        newClient.receiveAsync();
                     }
                 }
             } 
@@ -14,21 +14,39 @@ package Parlo;
 
 import Parlo.Packets.*;
 import Parlo.Exceptions.*;
+import Parlo.Compression.CompressionCodecs;
+import Parlo.Compression.CompressionDictionary;
+import Parlo.Compression.CompressionPolicy;
+import Parlo.Compression.DeflateCodec;
+import Parlo.Compression.DeflateStream;
+import Parlo.Compression.ICompressionCodec;
+import Parlo.Encryption.AEADSession;
+import Parlo.Encryption.CipherProbe;
+import Parlo.Encryption.EncryptionMode;
+import Parlo.Encryption.KeyExchange;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
 import java.time.*;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.channels.CompletionHandler;
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
 
 public class NetworkClient
 {
@@ -38,22 +56,32 @@ public class NetworkClient
 	private OnConnectedDelegate connectedCallback;
 	private NetworkErrorDelegate networkErrorCallback;
 	private OnReceivedHeartbeatDelegate receivedHeartbeatCallback;
-	private ReceivedPacketDelegate receivedDataCallback;
 	
-	private Instant lastHeartbeatSent;
+	private final PacketDispatcher dispatcher = new PacketDispatcher();
+	private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+	
+	private volatile Instant lastHeartbeatSent = Instant.now();
 	
 	private Listener server;
 	private IAsyncSocketChannel sockChannel;
 	private ProcessingBuffer processingBuffer;
 	
+	//The runtime sockChannel was opened in, whose timer and pools this client uses.
+	//Null if the channel doesn't belong to one, in which case the default runtime is used.
+	private final ParloRuntime runtime;
+	
 	//The last recorded Round Trip Time.
 	private int lastRTT;
 	
-	private Semaphore missedHeartbeatsLock;
-	private int missedHeartbeats = 0;
+	private final AtomicInteger missedHeartbeats = new AtomicInteger(0);
 	private int heartbeatInterval = 30; //In seconds.
 	private int maxMissedHeartbeats = 6;
 	
+	//Scheduled on the runtime's timer, and cancelled when disconnecting.
+	private volatile boolean heartbeatsStopped = false;
+	private volatile HashedWheelTimer.Timeout heartbeatTimeout;
+	private volatile HashedWheelTimer.Timeout missedHeartbeatsTimeout;
+	
 	/**
 	 * Sets the internal interval for sending and checking for heartbeats.
 	 * @param interval The interval to set.
@@ -63,8 +91,7 @@ public class NetworkClient
 		heartbeatInterval = interval;
 	}
 	
-	private Semaphore isAliveLock;
-	private boolean isAlive = true;
+	private volatile boolean isAlive = true;
 	
 	private Semaphore connectedLock;
 	private boolean connected = false;
@@ -85,7 +112,86 @@ public class NetworkClient
 	 */
 	public boolean applyCompression = false;
 	
-	private ByteBuffer recvBuf;
+	/**
+	 * Should connectAsync() perform an X25519 key exchange with the server, and 
+	 * encrypt everything sent afterwards? Both ends use the fastest AEAD cipher
+	 * they both support, as ranked by {@link CipherProbe}. If so, the client isn't
+	 * connected until the key exchange has completed. Clients accepted by a 
+	 * Listener always take part in a key exchange started by the other end.
+	 */
+	public boolean useKeyExchange = false;
+	
+	/**
+	 * Should packets be compressed and encrypted on the runtime's transform pool, 
+	 * instead of on the thread that calls sendAsync()? Packets are still sent in 
+	 * the order sendAsync() was called in. Worth it for large packets, or
+	 * when many clients are sending from a few threads. Should be set before connecting.
+	 */
+	public boolean offloadTransforms = false;
+	
+	//Packets transformed on the transform pool may finish out of order, so
+	//they're held here until every packet sent before them has been queued.
+	//Only the thread that set drainingTransformedPackets queues them.
+	private static final QueuedPacket SKIPPED_PACKET = new QueuedPacket(ByteBuffer.allocate(0), null);
+	private final AtomicLong nextTransformSequence = new AtomicLong(0);
+	private final ConcurrentHashMap<Long, QueuedPacket> transformedPackets = new ConcurrentHashMap<>();
+	private final AtomicBoolean drainingTransformedPackets = new AtomicBoolean(false);
+	private volatile long nextSequenceToQueue = 0;
+	
+	//Set while a key exchange started by this client is in progress.
+	private volatile KeyExchange keyExchange;
+	private volatile AEADSession receiveSession;
+	//Only changed while holding sendLock, so that every packet sent after 
+	//the handshake is encrypted, and encrypted in the order it's queued in.
+	private AEADSession sendSession;
+	private final Object sendLock = new Object();
+	
+	//Packets are only sent while holding sendLock once a handshake has been received, 
+	//or if streamCompression is set, as the order they're encrypted or compressed in 
+	//has to match the order they're queued in. Until then, they're queued without it.
+	private volatile boolean lockSends = false;
+	//The number of packets being queued without holding sendLock.
+	private final AtomicInteger unlockedSends = new AtomicInteger(0);
+	
+	//Reads and writes go through direct buffers from the pool, so the JDK doesn't
+	//have to copy every read and write through a temporary direct buffer of its own.
+	private final BufferPool bufferPool = BufferPool.getDefault();
+	
+	//Acquired when the first read starts, and released when the last read has completed.
+	//Received packets are views of it, so a new one is acquired if a handler retained one.
+	private RefCountedBuffer recvBuf;
+	private final AtomicBoolean receiveBuffersReleased = new AtomicBoolean(false);
+	
+	//A packet waiting to be sent, and the pool it goes back to once it has been,
+	//or null if it isn't owned by a pool.
+	private static final class QueuedPacket
+	{
+		final ByteBuffer buffer;
+		final BufferPool pool;
+		
+		QueuedPacket(ByteBuffer buffer, BufferPool pool)
+		{
+			this.buffer = buffer;
+			this.pool = pool;
+		}
+		
+		void release()
+		{
+			if(pool != null)
+				pool.release(buffer);
+		}
+	}
+	
+	//Packets waiting to be sent. Only one write is ever outstanding, and whatever
+	//was queued in the meantime is sent with a single gathering write, without being copied.
+	private static final int MAX_BUFFERS_PER_WRITE = 64;
+	private final ConcurrentLinkedQueue<QueuedPacket> writeQueue = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean isWriting = new AtomicBoolean(false);
+	private final QueuedPacket[] writeBatchPackets = new QueuedPacket[MAX_BUFFERS_PER_WRITE];
+	private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+	private int writeBatchOffset, writeBatchLength;
+	//When the current batch started writing, and how many bytes it holds.
+	private long writeBatchStart, writeBatchBytes;
 	
 	/**
 	 * The threshold size for packet compression, in bytes.
@@ -93,13 +199,98 @@ public class NetworkClient
 	 */
 	public int compressionThreshold = 500;
 	
+	//Shared by every client, so that Deflaters and Inflaters are pooled across connections.
+	private static final DeflateCodec deflateCodec = (DeflateCodec)CompressionCodecs.get(DeflateCodec.ID);
+	
+	/**
+	 * The codec packets are compressed with, when they're compressed one by one.
+	 * Defaults to deflate. {@link Parlo.Compression.LZCodec} compresses less, but is 
+	 * fast enough to be worth it on links with a low RTT, when RTTcompressionThreshold
+	 * is lowered. Packets are decompressed with whichever codec in CompressionCodecs
+	 * compressed them, so the two ends don't have to use the same one.
+	 * Packets compressed with an agreed dictionary always use deflate.
+	 */
+	public ICompressionCodec compressionCodec = deflateCodec;
+	
+	/**
+	 * Should a CompressionPolicy decide which packets to compress, and which codec
+	 * to compress them with, instead of compressionThreshold, RTTcompressionThreshold
+	 * and compressionCodec? The policy learns how well every packet ID compresses,
+	 * and how fast the connection sends, and only compresses when it saves time.
+	 * Only used when applyCompression is set.
+	 */
+	public boolean adaptiveCompression = false;
+	
+	/**
+	 * Should received packets be passed to the ReceivedPacketDelegate as views of the
+	 * buffer they were received into, instead of being copied? Saves a copy of every
+	 * packet, but the delegate must retain() any packet it keeps after its future has
+	 * completed. See setReceivedDataCallback().
+	 */
+	public boolean zeroCopyReceive = false;
+	
+	/**
+	 * Should received packets be handled through a mailbox on the runtime's handler pool,
+	 * instead of on the thread that received them? Packets are still handled one at a time,
+	 * in the order they were received in, but a slow handler doesn't hold up receiving, and
+	 * the handlers of every client share the pool's threads. Heartbeats and dictionary
+	 * offers are still handled as soon as they're received. Should be set before connecting.
+	 */
+	public boolean useMailbox = false;
+	
+	/**
+	 * The maximum number of packets handled each time this client's mailbox runs, 
+	 * before the handler pool moves on to other clients. Only used when useMailbox is set.
+	 */
+	public int mailboxBatchSize = 64;
+	
+	//Created when the first packet is posted, so useMailbox can be set after constructing.
+	//Only touched by ProcessingBuffer, which processes one packet at a time.
+	private PacketMailbox mailbox;
+	
+	private final CompressionPolicy compressionPolicy = new CompressionPolicy();
+	
+	/**
+	 * Should every packet be compressed with a deflate stream that lasts as long as
+	 * the connection? Every packet can then refer back to the ones sent before it,
+	 * which compresses many small, similar packets far better than compressing them
+	 * one by one, so compressionThreshold and RTTcompressionThreshold are ignored.
+	 * Costs a few hundred KB of memory per connection. The other end decompresses
+	 * streamed packets whether or not it streams packets itself.
+	 */
+	public boolean streamCompression = false;
+	
+	/**
+	 * A preset dictionary to compress packets with. A client that has one offers it
+	 * to the server when it connects, and isn't connected until the server has 
+	 * replied. If the server has the same dictionary, both ends compress every packet
+	 * with it, no matter how small, as long as applyCompression or streamCompression is set.
+	 * Clients accepted by a Listener use the Listener's dictionary.
+	 */
+	public CompressionDictionary compressionDictionary;
+	
+	//The dictionary both ends agreed on, or null. Only changed while holding sendLock.
+	private volatile CompressionDictionary agreedDictionary;
+	private volatile boolean awaitingDictionaryReply = false;
+	
+	//Compresses and decompresses streamed packets. Only compressed while holding sendLock,
+	//and only decompressed while processing packets, so both happen in order.
+	private final DeflateStream compressionStream = new DeflateStream();
+	
 	/**
 	 * The RTT (Round Trip Time) compression threshold.
 	 * Defaults to 100 ms.
 	 */
 	public int RTTcompressionThreshold = 100;
 	
-	private ExecutorService executor = Executors.newSingleThreadExecutor();
+	/**
+	 * Gets the policy that decides which packets to compress when adaptiveCompression is set.
+	 * @return The policy.
+	 */
+	public CompressionPolicy getCompressionPolicy()
+	{
+		return compressionPolicy;
+	}
 	
 	/**
 	 * Sets a callback function to be notified when this NetworkClient disconnected from 
@@ -183,18 +374,114 @@ public class NetworkClient
     
 	/**
 	 * Sets a callback function to be notified when this NetworkClient 
-	 * received data from the server.
+	 * received data from the server, for packets that don't have a handler in
+	 * getPacketDispatcher(). If zeroCopyReceive is set, packets that weren't 
+	 * encrypted or compressed are views of the buffer they were received into, which 
+	 * is read into again once the callback's future has completed. A callback that 
+	 * keeps a packet after that must retain() it, and release() it when it's done with it.
 	 * @param callback The callback function to be notified.
 	 */
     public void setReceivedDataCallback(ReceivedPacketDelegate callback)
     {
-    	this.receivedDataCallback = callback;
+    	dispatcher.setDefaultHandler(callback);
+    }
+    
+    /**
+     * Gets the dispatcher that hands this client's received packets to the handler
+     * for their ID. Clients accepted by a Listener don't start receiving until the
+     * Listener's connected callback has returned, so handlers can be set there.
+     * @return The dispatcher.
+     */
+    public PacketDispatcher getPacketDispatcher()
+    {
+    	return dispatcher;
+    }
+    
+    //Called by ProcessingBuffer for every packet it has read.
+    private void onProcessedPacket(Packet packet)
+    {
+    	packet = openPacket(packet);
+    	if (packet == null)
+    		return;
+    	
+    	byte id = packet.getID();
+    	if (useMailbox && id != (byte)ParloIDs.Heartbeat.GetID() && id != (byte)ParloIDs.Dictionary.GetID())
+    	{
+    		if (mailbox == null)
+    			mailbox = new PacketMailbox(this, dispatcher, getHandlerPool(), mailboxBatchSize);
+    		
+    		mailbox.post(packet);
+    		return;
+    	}
+    	
+        try
+        {
+        	dispatcher.dispatch(this, packet).get();
+        }
+        catch(RuntimeException exception)
+        {
+        	//Only this packet is lost, so there's no need to drop the connection.
+        	Logger.log("Handler for packet with ID " + (packet.getID() & 0xFF) + " failed: " + exception, 
+        			LogLevel.error);
+        }
+        catch(InterruptedException exception)
+        {
+        	Logger.log("Thread was interrupted: " + exception.getMessage(), 
+        			LogLevel.error);
+        }
+        catch(ExecutionException exception)
+        {
+        	Logger.log("ExecutionException: " + exception.getMessage(), 
+        			LogLevel.error);
+        }
+    }
+    
+    //Parlo's own packets are dispatched through the same table as the application's.
+    private void registerControlHandlers()
+    {
+    	dispatcher.setControlHandler(ParloIDs.SGoodbye, (client, packet) ->
+    	{
+    		onServerDisconnected(client);
+    		return COMPLETED;
+    	});
+    	//Client notified server of disconnection.
+    	dispatcher.setControlHandler(ParloIDs.CGoodbye, (client, packet) ->
+    	{
+    		onClientDisconnected(client);
+    		return COMPLETED;
+    	});
+    	dispatcher.setControlHandler(ParloIDs.Heartbeat, this::onHeartbeatPacket);
+    	dispatcher.setControlHandler(ParloIDs.Dictionary, (client, packet) ->
+    	{
+    		onDictionaryPacket(packet.getData());
+    		return COMPLETED;
+    	});
     }
     
-    private void onReceivedData(NetworkClient client, Packet packet) throws ExecutionException, InterruptedException
+    private CompletableFuture<Void> onHeartbeatPacket(NetworkClient client, Packet packet)
     {
-    	if(receivedDataCallback != null)
-    		this.receivedDataCallback.onReceivedPacket(client, packet).get();
+        isAlive = true;
+        missedHeartbeats.set(0);
+
+        HeartbeatPacket Heartbeat = HeartbeatPacket.readFrom(packet.getBuffer());
+        if (Heartbeat != null)
+        {
+        	try
+        	{
+	            // Calculate the duration between now and the timestamp from the Heartbeat packet
+	            Duration duration = Duration.between(Instant.now(), Heartbeat.getSentTimestamp());
+	            lastRTT = (int)Math.addExact(duration.toMillis(), Heartbeat.getTimeSinceLast().toMillis());
+        	}
+        	catch(ArithmeticException exception)
+        	{
+        		Logger.log("Received a heartbeat with a timestamp that's out of range!", LogLevel.warn);
+        	}
+        }
+        else
+        	Logger.log("Received a malformed heartbeat!", LogLevel.warn);
+        
+        onReceivedHeartbeat(client);
+        return COMPLETED;
     }
     
 	/**
@@ -229,102 +516,22 @@ public class NetworkClient
     		throw new IllegalArgumentException("clientChannel or server was null in NetworkClient constructor!");
     	
     	this.sockChannel = clientChannel;
+    	this.runtime = clientChannel.getRuntime();
     	this.server = server;
-    	
-    	recvBuf = ByteBuffer.wrap(new byte[ProcessingBuffer.MAX_PACKET_SIZE]);
+    	if (server != null)
+    	{
+    		compressionDictionary = server.compressionDictionary;
+    		compressionCodec = server.compressionCodec;
+    	}
     	
         int numberOfCores = PhysicalCores.physicalCoreCount();
         int numLogicalProcessors = Runtime.getRuntime().availableProcessors();
     	
-    	missedHeartbeatsLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
-    	isAliveLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
     	connectedLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
         		numberOfCores : numLogicalProcessors);
     	
-    	this.processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
-    	{
-    		public void onProcessedPacket(Packet packet)
-    		{
-                if (packet.getID() == (byte)ParloIDs.SGoodbye.ordinal())
-                {
-                    onServerDisconnected(NetworkClient.this);
-                    return;
-                }
-                //Client notified server of disconnection.
-                if (packet.getID() == (byte)ParloIDs.CGoodbye.ordinal())
-                {
-                    onClientDisconnected(NetworkClient.this);
-                    return;
-                }
-                if (packet.getID() == (byte)ParloIDs.Heartbeat.ordinal())
-                {
-                	//isAlive and missedHeartbeats will be updated asynchronously,
-                	//but it shouldn't matter in this case because the proceeding
-                	//code doesn't depend on them.
-                    SemaphoreUtils.waitAsync(isAliveLock).thenRun(() -> {
-                        isAlive = true;
-                        isAliveLock.release();
-                    });
-
-                    SemaphoreUtils.waitAsync(missedHeartbeatsLock).thenRun(() -> {
-                        missedHeartbeats = 0;
-                        missedHeartbeatsLock.release();
-                    });
-
-                    HeartbeatPacket Heartbeat = HeartbeatPacket.byteArrayToObject(packet.getData());
-                    // Calculate the duration between now and the timestamp from the Heartbeat packet
-                    Duration duration = Duration.between(Instant.now(), Heartbeat.getSentTimestamp());
-                    lastRTT = (int)(duration.toMillis() + Heartbeat.getTimeSinceLast().toMillis());
-                    
-                    onReceivedHeartbeat(NetworkClient.this);
-
-                    return;
-                }
-
-                if (packet.getIsCompressed() == 1)
-                {
-                	try
-                	{
-	                    byte[] DecompressedData = decompressData(packet.getData());
-	                    onReceivedData(NetworkClient.this, new Packet(packet.getID(), 
-	                    		DecompressedData, false));
-                	}
-                	catch(IOException exception)
-                	{
-                		Logger.log("Received badly compressed data!", LogLevel.error);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-                else
-                {
-                	try
-                	{
-                		onReceivedData(NetworkClient.this, packet);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-    		}
-    	});
+    	this.processingBuffer = new ProcessingBuffer(this::onProcessedPacket);
+    	registerControlHandlers();
     	
     	setClientDisconnectedCallback(onClientDisconnectedDelegate);
     	setConnectionLostCallback(onClientConnectionLost);
@@ -354,103 +561,19 @@ public class NetworkClient
         int numberOfCores = PhysicalCores.physicalCoreCount();
         int numLogicalProcessors = Runtime.getRuntime().availableProcessors();
     	
-    	missedHeartbeatsLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
-    	isAliveLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
     	connectedLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
         		numberOfCores : numLogicalProcessors);
     	
     	this.sockChannel = sockChannel;
-    	this.processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
-    	{
-    		public void onProcessedPacket(Packet packet)
-    		{
-                if (packet.getID() == (byte)ParloIDs.SGoodbye.ordinal())
-                {
-                    onServerDisconnected(NetworkClient.this);
-                    return;
-                }
-                //Client notified server of disconnection.
-                if (packet.getID() == (byte)ParloIDs.CGoodbye.ordinal())
-                {
-                    onClientDisconnected(NetworkClient.this);
-                    return;
-                }
-                if (packet.getID() == (byte)ParloIDs.Heartbeat.ordinal())
-                {
-                	//isAlive and missedHeartbeats will be updated asynchronously,
-                	//but it shouldn't matter in this case because the proceeding
-                	//code doesn't depend on them.
-                    SemaphoreUtils.waitAsync(isAliveLock).thenRun(() -> {
-                        isAlive = true;
-                        isAliveLock.release();
-                    });
-
-                    SemaphoreUtils.waitAsync(missedHeartbeatsLock).thenRun(() -> {
-                        missedHeartbeats = 0;
-                        missedHeartbeatsLock.release();
-                    });
-
-                    HeartbeatPacket Heartbeat = HeartbeatPacket.byteArrayToObject(packet.getData());
-                    // Calculate the duration between now and the timestamp from the Heartbeat packet
-                    Duration duration = Duration.between(Instant.now(), Heartbeat.getSentTimestamp());
-                    lastRTT = (int)(duration.toMillis() + Heartbeat.getTimeSinceLast().toMillis());
-                    
-                    onReceivedHeartbeat(NetworkClient.this);
-
-                    return;
-                }
-
-                if (packet.getIsCompressed() == 1)
-                {
-                	try
-                	{
-	                    byte[] DecompressedData = decompressData(packet.getData());
-	                    onReceivedData(NetworkClient.this, new Packet(packet.getID(), 
-	                    		DecompressedData, false));
-                	}
-                	catch(IOException exception)
-                	{
-                		Logger.log("Received badly compressed data!", LogLevel.error);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-                else
-                {
-                	try
-                	{
-                		onReceivedData(NetworkClient.this, packet);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-    		}
-    	});
-    	
-    	recvBuf = ByteBuffer.wrap(new byte[ProcessingBuffer.MAX_PACKET_SIZE]);
+    	this.runtime = sockChannel.getRuntime();
+    	this.processingBuffer = new ProcessingBuffer(this::onProcessedPacket);
+    	registerControlHandlers();
     }
     
     /**
      * Creates a new NetworkClient instance that listens for data.
-     * Consumed by the Listener class.
+     * Consumed by the Listener class, which calls receiveAsync() once
+     * it has set the client up.
      * @param SockChannel The IAsyncSocketChannel to use for sending and receiving data.
      * @param Server The Listener instance that accepted this client.
      * @param MaxPacketSize The maximum packet size.
@@ -463,100 +586,20 @@ public class NetworkClient
         int numberOfCores = PhysicalCores.physicalCoreCount();
         int numLogicalProcessors = Runtime.getRuntime().availableProcessors();
     	
-    	missedHeartbeatsLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
-    	isAliveLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
-        		numberOfCores : numLogicalProcessors);
     	connectedLock = new Semaphore((numberOfCores > numLogicalProcessors) ? 
         		numberOfCores : numLogicalProcessors);
     	
     	this.server = server;
-    	this.sockChannel = sockChannel;
-    	this.processingBuffer = new ProcessingBuffer(new ProcessedPacketDelegate()
+    	if (server != null)
     	{
-    		public void onProcessedPacket(Packet packet)
-    		{
-                if (packet.getID() == (byte)ParloIDs.SGoodbye.ordinal())
-                {
-                    onServerDisconnected(NetworkClient.this);
-                    return;
-                }
-                //Client notified server of disconnection.
-                if (packet.getID() == (byte)ParloIDs.CGoodbye.ordinal())
-                {
-                    onClientDisconnected(NetworkClient.this);
-                    return;
-                }
-                if (packet.getID() == (byte)ParloIDs.Heartbeat.ordinal())
-                {
-                	//isAlive and missedHeartbeats will be updated asynchronously,
-                	//but it shouldn't matter in this case because the proceeding
-                	//code doesn't depend on them.
-                    SemaphoreUtils.waitAsync(isAliveLock).thenRun(() -> {
-                        isAlive = true;
-                        isAliveLock.release();
-                    });
-
-                    SemaphoreUtils.waitAsync(missedHeartbeatsLock).thenRun(() -> {
-                        missedHeartbeats = 0;
-                        missedHeartbeatsLock.release();
-                    });
-
-                    HeartbeatPacket Heartbeat = HeartbeatPacket.byteArrayToObject(packet.getData());
-                    // Calculate the duration between now and the timestamp from the Heartbeat packet
-                    Duration duration = Duration.between(Instant.now(), Heartbeat.getSentTimestamp());
-                    lastRTT = (int)(duration.toMillis() + Heartbeat.getTimeSinceLast().toMillis());
-                    
-                    onReceivedHeartbeat(NetworkClient.this);
-
-                    return;
-                }
-
-                if (packet.getIsCompressed() == 1)
-                {
-                	try
-                	{
-	                    byte[] DecompressedData = decompressData(packet.getData());
-	                    onReceivedData(NetworkClient.this, new Packet(packet.getID(), 
-	                    		DecompressedData, false));
-                	}
-                	catch(IOException exception)
-                	{
-                		Logger.log("Received badly compressed data!", LogLevel.error);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-                else
-                {
-                	try
-                	{
-                		onReceivedData(NetworkClient.this, packet);
-                	}
-                	catch(InterruptedException exception)
-                	{
-                		Logger.log("Thread was interrupted: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                	catch(ExecutionException exception)
-                	{
-                		Logger.log("ExecutionException: " + exception.getMessage(), 
-                				LogLevel.error);
-                	}
-                }
-    		}
-    	});
+    		compressionDictionary = server.compressionDictionary;
+    		compressionCodec = server.compressionCodec;
+    	}
+    	this.sockChannel = sockChannel;
+    	this.runtime = sockChannel.getRuntime();
+    	this.processingBuffer = new ProcessingBuffer(this::onProcessedPacket);
+    	registerControlHandlers();
     	
-        recvBuf = ByteBuffer.wrap(new byte[ProcessingBuffer.MAX_PACKET_SIZE]);
-        
         try
         {
 	        connectedLock.acquire();
@@ -569,7 +612,6 @@ public class NetworkClient
         	//TODO: Implement callback...
         }
         
-        receiveAsync();
         checkForMissedHeartbeats();
     }
     
@@ -601,16 +643,21 @@ public class NetworkClient
     	if(args == null)
     		throw new IllegalArgumentException("args");
     	
-    	if(!sockChannel.isOpen())
+    	if(!connected)
     	{
-    		localEP = InetSocketAddress.createUnresolved(args.Address, args.Port);
+    		localEP = new InetSocketAddress(args.Address, args.Port);
     		sockChannel.connect(localEP, null, new CompletionHandler<Void, Void>()
     		{
     			public void completed(Void result, Void attachment)
     			{
+    				if(useKeyExchange)
+    				{
+    					startKeyExchange();
+    					return;
+    				}
+    				
     				receiveAsync();
-    				sendHeartbeatAsync();
-    				onConnected(NetworkClient.this);
+    				onConnectionEstablished();
     			}
     			public void failed(Throwable t, Void attachment)
     			{
@@ -621,53 +668,38 @@ public class NetworkClient
     }
 
     /**
-     * Compresses data with GZip.
-     *
-     * @param data The data to compress.
-     * @return The compressed data as an array of bytes.
-     * @throws IllegalArgumentException Thrown if data is null.
-     */
-    private byte[] compressData(byte[] data) throws IOException 
-    {
-        if (data == null) {
-            throw new IllegalArgumentException("Data must not be null.");
-        }
-
-        try (ByteArrayOutputStream compressedStream = new ByteArrayOutputStream()) {
-            try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressedStream)) {
-                int offset = 3;
-                gzipStream.write(data, offset, data.length - offset);
-            }
-
-            return compressedStream.toByteArray();
-        }
-    }
-
-    /**
-     * Decompresses data with GZip.
+     * Decompresses a packet's data, which can't decompress to more
+     * than ProcessingBuffer.MAX_PACKET_SIZE bytes.
      *
+     * @param compression The packet's isCompressed byte, which tells how it was compressed.
      * @param data The data to decompress.
      * @return The decompressed data as an array of bytes.
-     * @throws IllegalArgumentException Thrown if data is null.
+     * @throws IOException Thrown if the data was corrupt, or decompressed to too much data.
      */
-    private byte[] decompressData(byte[] data) throws IOException 
+    private byte[] decompressData(byte compression, byte[] data) throws IOException 
     {
-        if (data == null) {
-            throw new IllegalArgumentException("Data must not be null.");
-        }
-
-        try (ByteArrayInputStream compressedStream = new ByteArrayInputStream(data)) {
-            try (GZIPInputStream gzipStream = new GZIPInputStream(compressedStream)) {
-                try (ByteArrayOutputStream decompressedStream = new ByteArrayOutputStream()) {
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = gzipStream.read(buffer)) > 0) {
-                        decompressedStream.write(buffer, 0, len);
-                    }
-
-                    return decompressedStream.toByteArray();
-                }
+        try
+        {
+            if (compression == DeflateCodec.DICTIONARY_ID)
+            {
+                if (agreedDictionary == null)
+                    throw new IOException("Received a packet compressed with a dictionary that wasn't agreed on!");
+                
+                return deflateCodec.decompress(data, ProcessingBuffer.MAX_PACKET_SIZE, agreedDictionary);
             }
+            if (compression == DeflateStream.ID || compression == DeflateStream.DICTIONARY_ID)
+                return compressionStream.decompress(data, ProcessingBuffer.MAX_PACKET_SIZE, 
+                		compression, agreedDictionary);
+            
+            ICompressionCodec codec = CompressionCodecs.get(compression);
+            if (codec == null)
+                throw new IOException("Unknown compression: " + compression);
+            
+            return codec.decompress(data, ProcessingBuffer.MAX_PACKET_SIZE);
+        }
+        catch(DataFormatException exception)
+        {
+            throw new IOException(exception.getMessage(), exception);
         }
     }
     
@@ -679,8 +711,6 @@ public class NetworkClient
      */
     public void sendAsync(byte[] data) throws BufferOverflowException
     {
-    	byte[] compressedData;
-    	
     	if(data == null || data.length < 1)
     		throw new IllegalArgumentException("Data must not be null.");
         if (data.length > ProcessingBuffer.MAX_PACKET_SIZE)
@@ -689,44 +719,26 @@ public class NetworkClient
         
         try
         {
-	        if(connected)
+	        if(!connected)
+	        	throw new SocketException("NetworkClient: Tried sending data while not connected!");
+	        
+	        if(offloadTransforms)
 	        {
-	        	if(shouldCompressData(data, lastRTT))
+	        	long sequence = nextTransformSequence.getAndIncrement();
+	        	
+	        	try
 	        	{
-	        		compressedData = compressData(data);
-	        		Packet compressedPacket = new Packet(data[0], compressedData, true);
-	        		sockChannel.write(ByteBuffer.wrap(compressedData), null, new CompletionHandler<Integer, Void>()
-	        		{
-	        			public void completed(Integer bytesSent, Void attachment)
-	        			{
-	        				//No need to do anything here...
-	        			}
-	        			
-	        			public void failed(Throwable t, Void attachment)
-	        			{
-	        				NetworkClient.this.onNetworkError((Exception)t);
-	        			}
-	        		});
-	        		compressedData = null;
+	        		getTransformPool().execute(() -> transformAndQueue(sequence, data));
 	        	}
-	        	else
+	        	catch(RejectedExecutionException exception)
 	        	{
-	        		sockChannel.write(ByteBuffer.wrap(data), null, new CompletionHandler<Integer, Void>()
-	        		{
-	        			public void completed(Integer bytesSent, Void attachment)
-	        			{
-	        				//No need to do anything here...
-	        			}
-	        			
-	        			public void failed(Throwable t, Void attachment)
-	        			{
-	        				NetworkClient.this.onNetworkError((Exception)t);
-	        			}
-	        		});
+	        		//The runtime is shutting down. The packet still has to be queued, 
+	        		//or every packet sent after it would wait for it forever.
+	        		transformAndQueue(sequence, data);
 	        	}
 	        }
 	        else
-	        	throw new SocketException("NetworkClient: Tried sending data while not connected!");
+	        	sendPacket(transformPacket(data));
         }
         catch(Exception exception)
         {
@@ -738,75 +750,468 @@ public class NetworkClient
     }
     
     /**
-     * Asynchronously receives data.
+     * Asynchronously sends the packet a PacketWriter has been writing. If the packet
+     * doesn't need to be compressed, it's queued in the writer's buffer, which goes
+     * back to the writer's pool once it has been written. Otherwise it's copied
+     * to an array and sent like any other packet.
+     * @param writer The writer, whose packet is finished by this.
+     * @throws BufferOverflowException Thrown if the packet is larger 
+     * than ProcessingBuffer.MAX_PACKET_SIZE.
+     */
+    public void sendAsync(PacketWriter writer) throws BufferOverflowException
+    {
+    	if(writer == null)
+    		throw new IllegalArgumentException("Writer must not be null.");
+    	if(!writer.isStandard())
+    		throw new IllegalArgumentException("NetworkClient can only send standard packets!");
+    	
+    	if(PacketHeaders.STANDARD + writer.getDataLength() > ProcessingBuffer.MAX_PACKET_SIZE)
+    	{
+    		writer.discard();
+            throw new BufferOverflowException("Tried to send a packet larger than ProcessingBuffer.MAX_PACKET_SIZE!");
+    	}
+    	
+    	sendAsync(writer.finish(), writer.getPool());
+    }
+    
+    /**
+     * Asynchronously sends a packet that was built in a buffer from a pool.
+     * The buffer goes back to the pool once it has been written, or 
+     * right away if the packet has to be copied to an array to be compressed.
+     * @param packet The packet, including its header.
+     * @param pool The pool the packet's buffer was acquired from.
      */
-    private void receiveAsync()
-    {    	
-        CompletableFuture<?> future = CompletableFuture.runAsync(() ->
+    private void sendAsync(ByteBuffer packet, BufferPool pool) throws BufferOverflowException
+    {
+    	//Packets are compressed one by one from arrays.
+    	if(applyCompression || offloadTransforms)
+    	{
+    		byte[] data = new byte[packet.remaining()];
+    		packet.get(data);
+    		pool.release(packet);
+    		
+    		sendAsync(data);
+    		return;
+    	}
+    	
+        try
+        {
+	        if(!connected)
+	        {
+	        	pool.release(packet);
+	        	throw new SocketException("NetworkClient: Tried sending data while not connected!");
+	        }
+	        
+	        sendPacket(new QueuedPacket(packet, pool));
+        }
+        catch(Exception exception)
         {
-        	byte[] tmpBuf;
-        	
-        	while(connected)
+            Logger.log("Error sending data: " + exception.getMessage(), LogLevel.error);
+
+            //Disconnect without sending the disconnect message to prevent recursion.
+            disconnectAsync(false);
+        }
+    }
+    
+    /**
+     * Compresses a packet, if it should be compressed. The compressed packet
+     * gets a header of its own, with the isCompressed flag set. Either way, the packet
+     * ends up in a buffer from the pool, so the JDK doesn't have to copy it to a 
+     * direct buffer of its own when it's written.
+     * @param data The packet, including its header.
+     * @return The packet to send.
+     */
+    private QueuedPacket transformPacket(byte[] data) throws IOException
+    {
+    	CompressionDictionary dictionary = agreedDictionary;
+    	
+    	//Streamed packets are compressed in sendPacket(), in the order they're sent in.
+    	if(streamCompression)
+    		return new QueuedPacket(bufferPool.acquire(data.length).put(data).flip(), bufferPool);
+    	
+    	int length = data.length - PacketHeaders.STANDARD;
+    	ByteBuffer compressedPacket = null;
+    	
+    	//With a dictionary, even the smallest packets compress well.
+    	if(dictionary != null)
+    	{
+    		if(applyCompression)
+    			compressedPacket = deflateCodec.compressPacket(data[0], data, PacketHeaders.STANDARD, length, 
+    					dictionary, bufferPool);
+    	}
+    	else if(adaptiveCompression && applyCompression)
+    	{
+    		ICompressionCodec codec = compressionPolicy.choose(data[0], length);
+    		
+    		if(codec != null)
     		{
-    			if(sockChannel == null || !sockChannel.isOpen())
+    			long start = System.nanoTime();
+    			compressedPacket = codec.compressPacket(data[0], data, PacketHeaders.STANDARD, length, bufferPool);
+    			compressionPolicy.recordCompression(data[0], codec, length, (compressedPacket != null) ? 
+    					compressedPacket.remaining() - PacketHeaders.STANDARD : length, System.nanoTime() - start);
+    		}
+    	}
+    	else if(shouldCompressData(data, lastRTT))
+    		compressedPacket = compressionCodec.compressPacket(data[0], data, PacketHeaders.STANDARD, length, 
+    				bufferPool);
+    	
+    	if(compressedPacket != null)
+    		return new QueuedPacket(compressedPacket, bufferPool);
+    	
+    	//Data that doesn't get any smaller is sent as is.
+    	return new QueuedPacket(bufferPool.acquire(data.length).put(data).flip(), bufferPool);
+    }
+    
+    /**
+     * Transforms a packet on the transform pool, then queues every transformed
+     * packet that is next in line, unless another thread is already queueing them. 
+     * Encryption happens while queueing, because the session's nonces must be 
+     * used in the order packets are sent in.
+     * @param sequence The order the packet was passed to sendAsync() in.
+     * @param data The packet, including its header.
+     */
+    private void transformAndQueue(long sequence, byte[] data)
+    {
+    	QueuedPacket packet = SKIPPED_PACKET;
+    	
+    	try
+    	{
+    		packet = transformPacket(data);
+    	}
+    	catch(Exception exception)
+    	{
+    		Logger.log("Error sending data: " + exception.getMessage(), LogLevel.error);
+    		disconnectAsync(false);
+    	}
+    	
+    	transformedPackets.put(sequence, packet);
+    	
+    	while(drainingTransformedPackets.compareAndSet(false, true))
+    	{
+    		try
+    		{
+    			while((packet = transformedPackets.remove(nextSequenceToQueue)) != null)
+    			{
+    				nextSequenceToQueue++;
+    				
+    				if(packet != SKIPPED_PACKET)
+    					sendPacket(packet);
+    			}
+    		}
+    		catch(GeneralSecurityException exception)
+    		{
+    			Logger.log("Error sending data: " + exception.getMessage(), LogLevel.error);
+    			disconnectAsync(false);
     			return;
+    		}
+    		finally
+    		{
+    			drainingTransformedPackets.set(false);
+    		}
     		
+    		//The next packet may have been put after it was looked for, 
+    		//but before drainingTransformedPackets was cleared.
+    		if(!transformedPackets.containsKey(nextSequenceToQueue))
+    			return;
+    	}
+    }
+    
+    /**
+     * Queues a packet for sending, compressing it first if streamCompression
+     * is set, and encrypting it if a key exchange has been completed.
+     * @param packet The packet to send, including its header.
+     */
+    private void sendPacket(QueuedPacket packet) throws GeneralSecurityException
+    {
+    	sendPacket(packet, true);
+    }
+    
+    /**
+     * Queues a packet for sending, encrypting it first if a key
+     * exchange has been completed.
+     * @param packet The packet to send, including its header.
+     * @param compress False if the packet must not be stream compressed, 
+     * because compressing it would start the stream too early.
+     */
+    private void sendPacket(QueuedPacket packet, boolean compress) throws GeneralSecurityException
+    {
+    	if(!streamCompression)
+    	{
+    		//Counted before lockSends is read, so startLockingSends() can wait for this send.
+    		unlockedSends.incrementAndGet();
+    		try
+    		{
+    			if(!lockSends)
+    			{
+    				enqueueWrite(packet);
+    				return;
+    			}
+    		}
+    		finally
+    		{
+    			unlockedSends.decrementAndGet();
+    		}
+    	}
+    	
+    	synchronized(sendLock)
+    	{
+    		ByteBuffer buffer = packet.buffer;
+    		
+    		if(compress && streamCompression && buffer.get(buffer.position() + 1) == 0)
+    		{
+    			QueuedPacket uncompressed = packet;
+    			byte id = buffer.get(buffer.position());
+    			buffer.position(buffer.position() + PacketHeaders.STANDARD);
+    			packet = new QueuedPacket(compressionStream.compressPacket(id, buffer, agreedDictionary, 
+    					bufferPool), bufferPool);
+    			uncompressed.release();
+    			buffer = packet.buffer;
+    		}
+    		
+    		if(sendSession != null)
+    		{
+    			QueuedPacket plaintext = packet;
+    			byte id = buffer.get(buffer.position());
+    			byte compression = buffer.get(buffer.position() + 1);
+    			buffer.position(buffer.position() + PacketHeaders.STANDARD);
+    			
+    			ByteBuffer encrypted = bufferPool.acquire(PacketHeaders.STANDARD + buffer.remaining() + 
+    					AEADSession.TAG_SIZE);
     			try
     			{
-    				int bytesRead = sockChannel.read(recvBuf).get();
+    				sendSession.encryptPacket(id, compression, buffer, encrypted);
+    			}
+    			catch(GeneralSecurityException exception)
+    			{
+    				bufferPool.release(encrypted);
+    				throw exception;
+    			}
+    			finally
+    			{
+    				plaintext.release();
+    			}
     			
-    				if(bytesRead > 0)
-    				{
-    					tmpBuf = new byte[bytesRead];
-    					System.arraycopy(recvBuf, 0, tmpBuf, 0, bytesRead);
-    					//Clear, to make sure this buffer is always fresh.
-    					recvBuf.clear();
-    				
-                    	try
-                    	{
-                        	//Keep shoveling shit into the buffer as fast as we can.
-                        	processingBuffer.addData(tmpBuf); //Hence the Shoveling Shit Algorithm (SSA).
-                    	}
-                    	catch(BufferOverflowException bufferOverflowException)
-                    	{
-                        	Logger.log("Tried adding too much data into ProcessingBuffer!", LogLevel.warn);
-                        	//This should never happen, so we don't need to do anything here.
-                    	}
-    				}
-                	else //Can't do anything with this!
-                	{
-                    	disconnectAsync(false);
-                    	return;
-                	}
+    			packet = new QueuedPacket(encrypted.flip(), bufferPool);
+    		}
+    		
+    		enqueueWrite(packet);
+    	}
+    }
+    
+    /**
+     * Makes every packet sent from now on take sendLock, and waits for the packets
+     * that are being queued without it. Called before the send session is set, so
+     * that no unencrypted packet can be queued after the packets that are encrypted.
+     */
+    private void startLockingSends()
+    {
+    	lockSends = true;
+    	
+    	//Only ever a handful of sends, that are each just queueing a packet.
+    	while(unlockedSends.get() != 0)
+    		Thread.onSpinWait();
+    }
+    
+    /**
+     * Queues a packet for sending, and starts writing if no
+     * write is currently outstanding.
+     * @param packet The packet to send.
+     */
+    private void enqueueWrite(QueuedPacket packet)
+    {
+    	writeQueue.offer(packet);
+    	
+    	if(isWriting.compareAndSet(false, true))
+    		writeQueuedBuffers();
+    }
+    
+    /**
+     * Sends up to MAX_BUFFERS_PER_WRITE buffers from the write queue with one
+     * gathering write. Must only be called by the thread that set isWriting.
+     */
+    private void writeQueuedBuffers()
+    {
+    	while(true)
+    	{
+    		QueuedPacket packet;
+    		int count = 0;
+    		long bytes = 0;
+    		
+    		while(count < MAX_BUFFERS_PER_WRITE && (packet = writeQueue.poll()) != null)
+    		{
+    			writeBatchPackets[count] = packet;
+    			writeBatch[count++] = packet.buffer;
+    			bytes += packet.buffer.remaining();
+    		}
+    		
+    		if(count > 0)
+    		{
+    			writeBatchOffset = 0;
+    			writeBatchLength = count;
+    			writeBatchBytes = bytes;
+    			writeBatchStart = System.nanoTime();
+    			sockChannel.write(writeBatch, 0, count, null, writeHandler);
+    			return;
+    		}
+    		
+    		isWriting.set(false);
+    		
+    		//Something may have been queued after the queue was drained, 
+    		//but before isWriting was cleared.
+    		if(writeQueue.isEmpty() || !isWriting.compareAndSet(false, true))
+    			return;
+    	}
+    }
+    
+    /**
+     * Releases a packet in the current batch to its pool, once it has been
+     * sent or never will be, and clears its slot.
+     */
+    private void releaseBatchPacket(int index)
+    {
+    	writeBatchPackets[index].release();
+    	writeBatchPackets[index] = null;
+    	writeBatch[index] = null;
+    }
+    
+    private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>()
+    {
+    	public void completed(Long bytesSent, Void attachment)
+    	{
+    		//Releases the buffers that were sent in full.
+    		while(writeBatchLength > 0 && !writeBatch[writeBatchOffset].hasRemaining())
+    		{
+    			releaseBatchPacket(writeBatchOffset++);
+    			writeBatchLength--;
+    		}
+    		
+    		if(writeBatchLength > 0) //Partial write, send the rest.
+    			sockChannel.write(writeBatch, writeBatchOffset, writeBatchLength, null, this);
+    		else
+    		{
+    			if(adaptiveCompression)
+    				compressionPolicy.recordWrite(writeBatchBytes, System.nanoTime() - writeBatchStart);
     			
-    				Thread.sleep(10); //STOP HOGGING THE PROCESSOR!!
+    			writeQueuedBuffers();
+    		}
+    	}
+    	
+    	public void failed(Throwable t, Void attachment)
+    	{
+    		for(int i = writeBatchOffset; i < writeBatchOffset + writeBatchLength; i++)
+    			releaseBatchPacket(i);
+    		writeBatchLength = 0;
+    		
+    		QueuedPacket packet;
+    		while((packet = writeQueue.poll()) != null)
+    			packet.release();
+    		
+    		isWriting.set(false);
+    		
+    		NetworkClient.this.onNetworkError((Exception)t);
+    	}
+    };
+    
+    /**
+     * Asynchronously receives data. The read re-arms itself from
+     * readHandler until the channel is closed, so no thread is
+     * blocked while waiting for data.
+     */
+    void receiveAsync()
+    {
+    	if(sockChannel == null || !sockChannel.isOpen())
+    	{
+    		releaseReceiveBuffers();
+    		return;
+    	}
+    	
+    	if(recvBuf == null)
+    		recvBuf = new RefCountedBuffer(bufferPool, bufferPool.acquire(ProcessingBuffer.MAX_PACKET_SIZE));
+    	
+    	recvBuf.getBuffer().clear();
+    	sockChannel.read(recvBuf.getBuffer(), null, readHandler);
+    }
+    
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>()
+    {
+    	public void completed(Integer bytesRead, Void attachment)
+    	{
+    		if(bytesRead > 0)
+    		{
+    			try
+    			{
+    				onDataReceived();
+    				receiveAsync();
     			}
-    			catch(Exception exception)
+    			catch(RuntimeException exception)
     			{
-                	Logger.log("Exception in NetworkClient.ReceiveAsync: " + exception.getMessage(), 
-                			LogLevel.error);
-                	disconnectAsync(false);
-                	return;
+    				//The read isn't re-armed, and there's no telling where in the stream processing
+    				//stopped, so the connection is dropped rather than left open but deaf.
+    				Logger.log("Exception while processing received data: " + exception, LogLevel.error);
+    				disconnectAsync(false);
+    				releaseReceiveBuffers();
     			}
     		}
-        });
-        
-        //Make sure the async task terminates when the program terminates
-        //or after a user interrupt.
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> 
-        {
-            future.cancel(true);
-            executor.shutdown();
-            try 
-            {
-                if (!executor.awaitTermination(800, TimeUnit.MILLISECONDS)) 
-                    executor.shutdownNow();
-            } 
-            catch (InterruptedException e) 
-            {
-                executor.shutdownNow();
-            }
-        }));
+    		else //Can't do anything with this!
+    		{
+    			disconnectAsync(false);
+    			releaseReceiveBuffers();
+    		}
+    	}
+    	
+    	private void onDataReceived()
+    	{
+    		recvBuf.getBuffer().flip();
+    		
+    		try
+    		{
+    			//Keep shoveling shit into the buffer as fast as we can.
+    			if(zeroCopyReceive)
+    				processingBuffer.addData(recvBuf); //Hence the Shoveling Shit Algorithm (SSA).
+    			else
+    				processingBuffer.addData(recvBuf.getBuffer());
+    		}
+    		catch(BufferOverflowException bufferOverflowException)
+    		{
+    			Logger.log("Tried adding too much data into ProcessingBuffer!", LogLevel.warn);
+    			//This should never happen, so we don't need to do anything here.
+    		}
+    		
+    		//A handler kept a packet, so the buffer can't be read into again until it's released.
+    		if(recvBuf.refCount() > 1)
+    		{
+    			recvBuf.release();
+    			recvBuf = null;
+    		}
+    	}
+    	
+    	public void failed(Throwable t, Void attachment)
+    	{
+    		//The channel is closed when disconnecting, which fails the outstanding read.
+    		if(connected)
+    		{
+    			Logger.log("Exception in NetworkClient.ReceiveAsync: " + t.getMessage(), 
+    					LogLevel.error);
+    			disconnectAsync(false);
+    		}
+    		
+    		releaseReceiveBuffers();
+    	}
+    };
+    
+    /**
+     * Returns the receive buffer, and the ProcessingBuffer's buffer, to the BufferPool.
+     * Only called once no read is outstanding, and no more reads will be started.
+     */
+    private void releaseReceiveBuffers()
+    {
+    	if(!receiveBuffersReleased.compareAndSet(false, true))
+    		return;
+    	
+    	processingBuffer.close();
+    	if(recvBuf != null)
+    		recvBuf.release();
+    	recvBuf = null;
     }
     
     /**
@@ -816,6 +1221,8 @@ public class NetworkClient
      */
     private void disconnectAsync(boolean sendDisconnectMessage)
     {
+    	stopHeartbeats();
+    	
     	try
     	{
     		if(connected && sockChannel != null)
@@ -825,9 +1232,11 @@ public class NetworkClient
                     //Set the timeout to five seconds by default for clients,
                     //even though it's not really important for clients.
                     GoodbyePacket ByePacket = new GoodbyePacket(ParloDefaultTimeouts.Client.ordinal());
-                    byte[] ByeData = ByePacket.toByteArray();
-                    Packet Goodbye = new Packet((byte)ParloIDs.CGoodbye.ordinal(), ByeData, false);
-                    sendAsync(Goodbye.buildPacket());
+                    ByteBuffer Goodbye = bufferPool.acquire(PacketHeaders.STANDARD + GoodbyePacket.SIZE);
+                    Packet.writeHeader(Goodbye, (byte)ParloIDs.CGoodbye.GetID(), false, GoodbyePacket.SIZE);
+                    ByePacket.writeTo(Goodbye);
+                    Goodbye.flip();
+                    sendAsync(Goodbye, bufferPool);
     			}
     		}
     		
@@ -838,6 +1247,8 @@ public class NetworkClient
             	sockChannel.shutdownOutput();
             	sockChannel.close();
             }
+            
+            compressionStream.close();
 
             SemaphoreUtils.waitAsync(connectedLock);
             connected = false;
@@ -861,113 +1272,409 @@ public class NetworkClient
     }
     
     /**
-     * Periodically sends a heartbeat to the server.
-     * How often is determined by heartbeatInterval.
+     * Starts a key exchange with the server. The client is connected
+     * once the server has responded with its public key.
      */
-    private void sendHeartbeatAsync()
+    private void startKeyExchange()
     {
-    	CompletableFuture<?> future = CompletableFuture.runAsync(() ->
+    	try
     	{
-    		while(true)
+    		keyExchange = new KeyExchange();
+    		receiveAsync();
+    		
+    		//Offers every cipher this end supports, fastest first.
+    		List<EncryptionMode> modes = CipherProbe.getRankedModes();
+    		byte[] offer = new byte[1 + modes.size()];
+    		offer[0] = (byte)modes.size();
+    		for (int i = 0; i < modes.size(); i++)
+    			offer[1 + i] = modes.get(i).GetID();
+    		
+    		enqueueWrite(buildHandshakePacket(offer, keyExchange.getPublicKey()));
+    	}
+    	catch(GeneralSecurityException exception)
+    	{
+    		Logger.log("Couldn't start key exchange: " + exception.getMessage(), LogLevel.error);
+    		onNetworkError(exception);
+    		disconnectAsync(false);
+    	}
+    }
+    
+    /**
+     * Builds a handshake packet. A client's handshake starts with the number of
+     * ciphers it offers and their IDs, and a server's with the ID of the cipher 
+     * it chose. Both end with the sender's public key.
+     */
+    private QueuedPacket buildHandshakePacket(byte[] modes, byte[] publicKey)
+    {
+    	int length = modes.length + publicKey.length;
+    	ByteBuffer packet = bufferPool.acquire(PacketHeaders.STANDARD + length);
+    	Packet.writeHeader(packet, (byte)ParloIDs.Handshake.GetID(), false, length);
+    	packet.put(modes);
+    	packet.put(publicKey);
+    	packet.flip();
+    	
+    	return new QueuedPacket(packet, bufferPool);
+    }
+    
+    /**
+     * Handles handshake packets, decrypts every packet received
+     * after the handshake, and decompresses compressed packets.
+     * @param packet The packet that was received.
+     * @return The packet to process, or null if there's nothing left to do.
+     */
+    private Packet openPacket(Packet packet)
+    {
+    	if (packet.getID() == (byte)ParloIDs.Handshake.GetID())
+    	{
+    		onHandshake(packet.getData());
+    		return null;
+    	}
+    	
+    	AEADSession session = receiveSession;
+    	if (session != null)
+    	{
+	    	try
+	    	{
+	    		//The header is authenticated along with the data, so a packet whose ID or
+	    		//isCompressed byte was altered fails to decrypt.
+	    		packet = new Packet(packet.getID(), session.decrypt(packet.getID(), packet.getIsCompressed(), 
+	    				packet.getBuffer()), packet.getIsCompressed());
+	    	}
+	    	catch(DecryptionException exception)
+	    	{
+	    		Logger.log("Received a packet that couldn't be decrypted: " + exception.getMessage(), 
+	    				LogLevel.error);
+	    		disconnectAsync(false);
+	    		return null;
+	    	}
+    	}
+    	
+    	if (packet.getIsCompressed() == 0)
+    		return packet;
+    	
+    	try
+    	{
+    		return new Packet(packet.getID(), decompressData(packet.getIsCompressed(), 
+    				packet.getData()), false);
+    	}
+    	catch(IOException exception)
+    	{
+    		//A stream that couldn't be decompressed can't be recovered, so neither can the connection.
+    		Logger.log("Received badly compressed data: " + exception.getMessage(), LogLevel.error);
+    		if (packet.getIsCompressed() == DeflateStream.ID || 
+    				packet.getIsCompressed() == DeflateStream.DICTIONARY_ID)
+    			disconnectAsync(false);
+    		return null;
+    	}
+    }
+    
+    private void onHandshake(byte[] handshake)
+    {
+    	try
+    	{
+    		if (receiveSession != null)
+    			throw new GeneralSecurityException("Received a second handshake!");
+    		if (handshake.length < 1)
+    			throw new GeneralSecurityException("Received an empty handshake!");
+    		
+    		KeyExchange initiatorKeyExchange = keyExchange;
+    		
+    		if (initiatorKeyExchange != null) //The server responded to this client's handshake.
     		{
-    			try
+    			EncryptionMode mode = EncryptionMode.fromID(handshake[0]);
+    			if (mode == null || !CipherProbe.getRankedModes().contains(mode))
+    				throw new GeneralSecurityException("Server chose a cipher that wasn't offered!");
+    			
+    			byte[] peerPublicKey = Arrays.copyOfRange(handshake, 1, handshake.length);
+    			AEADSession session = initiatorKeyExchange.createSession(peerPublicKey, true, mode);
+    			keyExchange = null;
+    			receiveSession = session;
+    			
+    			startLockingSends();
+    			synchronized(sendLock)
     			{
-    				HeartbeatPacket heartbeat;
-    				if (Instant.now().isAfter(lastHeartbeatSent)) 
-    				{
-    				    Duration difference = Duration.between(lastHeartbeatSent, Instant.now());
-    				    heartbeat = new HeartbeatPacket(difference);
-    				}
-    				else 
+    				sendSession = session;
+    			}
+    			
+    			onConnectionEstablished();
+    		}
+    		else //A client started a handshake with this end.
+    		{
+    			int offered = handshake[0] & 0xFF;
+    			if (handshake.length < 1 + offered)
+    				throw new GeneralSecurityException("Received a truncated handshake!");
+    			
+    			//Picks this end's fastest cipher that the client also supports.
+    			EncryptionMode mode = null;
+    			for (EncryptionMode candidate : CipherProbe.getRankedModes())
+    			{
+    				for (int i = 0; i < offered && mode == null; i++)
     				{
-    				    Duration difference = Duration.between(Instant.now(), lastHeartbeatSent);
-    				    heartbeat = new HeartbeatPacket(difference);
+    					if (handshake[1 + i] == candidate.GetID())
+    						mode = candidate;
     				}
     				
-    				lastHeartbeatSent = Instant.now();
-                    byte[] heartbeatData = heartbeat.toByteArray();
-                    Packet Pulse = new Packet((byte)ParloIDs.Heartbeat.ordinal(), 
-                    		heartbeatData, false);
-                    sendAsync(Pulse.buildPacket());
-                    
-                    Thread.sleep(heartbeatInterval * 1000);
+    				if (mode != null)
+    					break;
     			}
-    			catch(Exception exception)
+    			
+    			if (mode == null)
+    				throw new GeneralSecurityException("Client doesn't support any of this end's ciphers!");
+    			
+    			byte[] peerPublicKey = Arrays.copyOfRange(handshake, 1 + offered, handshake.length);
+    			KeyExchange responderKeyExchange = new KeyExchange();
+    			AEADSession session = responderKeyExchange.createSession(peerPublicKey, false, mode);
+    			receiveSession = session;
+    			
+    			//Everything queued after the response is encrypted.
+    			startLockingSends();
+    			synchronized(sendLock)
     			{
-    				Logger.log("Error sending heartbeat: " + exception.getMessage(), 
-    						LogLevel.error);
+    				enqueueWrite(buildHandshakePacket(new byte[] { mode.GetID() }, 
+    						responderKeyExchange.getPublicKey()));
+    				sendSession = session;
     			}
     		}
-    	});
-    	
-        //Make sure the async task terminates when the program terminates
-        //or after a user interrupt.
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> 
-        {
-            future.cancel(true);
-            executor.shutdown();
-            try 
-            {
-                if (!executor.awaitTermination(800, TimeUnit.MILLISECONDS)) 
-                    executor.shutdownNow();
-            } 
-            catch (InterruptedException e) 
-            {
-                executor.shutdownNow();
-            }
-        }));
+    	}
+    	catch(GeneralSecurityException exception)
+    	{
+    		Logger.log("Key exchange failed: " + exception.getMessage(), LogLevel.error);
+    		onNetworkError(exception);
+    		disconnectAsync(false);
+    	}
     }
     
     /**
-     * Periodically checks for missed heartbeats. How often
-     * is determined by heartbeatInterval.
+     * Called once a client has connected to the server, and completed the key
+     * exchange if it performed one. Offers the server this client's dictionary, if 
+     * it has one, in which case the client is connected once the server has replied.
      */
-    private void checkForMissedHeartbeats()
+    private void onConnectionEstablished()
     {
-    	CompletableFuture future = CompletableFuture.runAsync(() ->
+    	CompressionDictionary dictionary = compressionDictionary;
+    	
+    	if (dictionary != null)
     	{
+    		ByteBuffer offer = bufferPool.acquire(PacketHeaders.STANDARD + 4);
+    		Packet.writeHeader(offer, (byte)ParloIDs.Dictionary.GetID(), false, 4);
+    		offer.putInt(dictionary.getID());
+    		offer.flip();
+    		
     		try
     		{
-		    	while(true)
-		    	{
-		    		missedHeartbeatsLock.acquire();
-		    		missedHeartbeats++;
-		    		missedHeartbeatsLock.release();
-		    		
-		    		if(missedHeartbeats > maxMissedHeartbeats)
-		    		{
-		    			isAliveLock.acquire();
-		    			isAlive = false;
-		    			isAliveLock.release();
-		    			
-		    			onConnectionLost(NetworkClient.this);
-		    		}
-		    		
-		    		Thread.sleep(heartbeatInterval * 1000);
-		    	}
+    			awaitingDictionaryReply = true;
+    			sendPacket(new QueuedPacket(offer, bufferPool), false);
+    			return;
     		}
-    		catch(Exception exception)
+    		catch(GeneralSecurityException exception)
     		{
-    			Logger.log("Error while checking for missed heartbeats: " + 
-    					exception.getMessage(), LogLevel.error);
+    			Logger.log("Couldn't offer dictionary: " + exception.getMessage(), LogLevel.error);
+    			onNetworkError(exception);
+    			disconnectAsync(false);
+    			return;
     		}
-    	});
+    	}
     	
-        //Make sure the async task terminates when the program terminates
-        //or after a user interrupt.
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> 
-        {
-            future.cancel(true);
-            executor.shutdown();
-            try 
-            {
-                if (!executor.awaitTermination(800, TimeUnit.MILLISECONDS)) 
-                    executor.shutdownNow();
-            } 
-            catch (InterruptedException e) 
-            {
-                executor.shutdownNow();
-            }
-        }));
+    	connected = true;
+    	sendHeartbeatAsync();
+    	onConnected(NetworkClient.this);
+    }
+    
+    /**
+     * Handles a dictionary packet. A client offers the ID of its dictionary, and 
+     * the server replies with 1 if it has the same dictionary, or 0 if it doesn't.
+     * Every packet sent after the reply is compressed with the dictionary.
+     * @param data The packet's data.
+     */
+    private void onDictionaryPacket(byte[] data)
+    {
+    	if (awaitingDictionaryReply) //The server replied to this client's offer.
+    	{
+    		awaitingDictionaryReply = false;
+    		
+    		synchronized(sendLock)
+    		{
+    			if (data.length == 1 && data[0] == 1)
+    				agreedDictionary = compressionDictionary;
+    		}
+    		
+    		if (agreedDictionary == null)
+    			Logger.log("Server doesn't have this client's dictionary.", LogLevel.info);
+    		
+    		connected = true;
+    		sendHeartbeatAsync();
+    		onConnected(NetworkClient.this);
+    		return;
+    	}
+    	
+    	if (data.length != 4)
+    	{
+    		Logger.log("Received an invalid dictionary offer!", LogLevel.error);
+    		return;
+    	}
+    	
+    	CompressionDictionary dictionary = compressionDictionary;
+    	int offeredID = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    	boolean accepted = dictionary != null && dictionary.getID() == offeredID;
+    	
+    	ByteBuffer reply = bufferPool.acquire(PacketHeaders.STANDARD + 1);
+    	Packet.writeHeader(reply, (byte)ParloIDs.Dictionary.GetID(), false, 1);
+    	reply.put((byte)(accepted ? 1 : 0));
+    	reply.flip();
+    	
+    	try
+    	{
+    		//Everything queued after the reply is compressed with the dictionary.
+    		synchronized(sendLock)
+    		{
+    			sendPacket(new QueuedPacket(reply, bufferPool), false);
+    			
+    			if (accepted)
+    				agreedDictionary = dictionary;
+    		}
+    	}
+    	catch(GeneralSecurityException exception)
+    	{
+    		Logger.log("Couldn't reply to dictionary offer: " + exception.getMessage(), LogLevel.error);
+    		disconnectAsync(false);
+    	}
+    }
+    
+    /**
+     * Sends a heartbeat to the server, and schedules the next one
+     * on the runtime's timer. How often is determined by heartbeatInterval.
+     * The heartbeat is sent from the runtime's handler pool, as sending 
+     * may compress and encrypt it, which would hold up the timer.
+     */
+    private void sendHeartbeatAsync()
+    {
+    	if(heartbeatsStopped)
+    		return;
+    	
+    	getHandlerPool().execute(this::sendHeartbeat);
+		
+		heartbeatTimeout = getTimer().schedule(this::sendHeartbeatAsync, 
+				heartbeatInterval, TimeUnit.SECONDS);
+    }
+    
+    private void sendHeartbeat()
+    {
+    	if(heartbeatsStopped)
+    		return;
+    	
+		try
+		{
+			HeartbeatPacket heartbeat;
+			if (Instant.now().isAfter(lastHeartbeatSent)) 
+			{
+			    Duration difference = Duration.between(lastHeartbeatSent, Instant.now());
+			    heartbeat = new HeartbeatPacket(difference);
+			}
+			else 
+			{
+			    Duration difference = Duration.between(Instant.now(), lastHeartbeatSent);
+			    heartbeat = new HeartbeatPacket(difference);
+			}
+			
+			lastHeartbeatSent = Instant.now();
+			
+			//Write the header and the heartbeat straight into the buffer that will be sent.
+			ByteBuffer pulse = bufferPool.acquire(PacketHeaders.STANDARD + HeartbeatPacket.SIZE);
+			Packet.writeHeader(pulse, (byte)ParloIDs.Heartbeat.GetID(), false, HeartbeatPacket.SIZE);
+			heartbeat.writeTo(pulse);
+			pulse.flip();
+            sendAsync(pulse, bufferPool);
+		}
+		catch(Exception exception)
+		{
+			Logger.log("Error sending heartbeat: " + exception.getMessage(), 
+					LogLevel.error);
+		}
+    }
+    
+    /**
+     * Starts checking for missed heartbeats. The first check runs
+     * on the timer's next tick, and then every heartbeatInterval.
+     */
+    private void checkForMissedHeartbeats()
+    {
+    	missedHeartbeatsTimeout = getTimer().schedule(this::checkForMissedHeartbeat, 
+    			0, TimeUnit.SECONDS);
+    }
+    
+    private void checkForMissedHeartbeat()
+    {
+    	if(heartbeatsStopped)
+    		return;
+    	
+		if(missedHeartbeats.incrementAndGet() > maxMissedHeartbeats)
+		{
+			isAlive = false;
+			
+			//No point in checking a connection that's already lost.
+			stopHeartbeats();
+			
+			//The callback runs on the handler pool, as it could hold up the timer, 
+			//which every client in the runtime shares.
+			getHandlerPool().execute(() -> 
+			{
+				try
+				{
+					onConnectionLost(NetworkClient.this);
+				}
+				catch(Exception exception)
+				{
+					Logger.log("Error in connection lost callback: " + 
+							exception.getMessage(), LogLevel.error);
+				}
+			});
+			return;
+		}
+		
+		missedHeartbeatsTimeout = getTimer().schedule(this::checkForMissedHeartbeat, 
+				heartbeatInterval, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Cancels the heartbeats and missed heartbeat checks scheduled
+     * for this client.
+     */
+    private void stopHeartbeats()
+    {
+    	heartbeatsStopped = true;
+    	
+    	//A timeout that is running when this is called may schedule one more, 
+    	//but it will return as soon as it sees heartbeatsStopped.
+    	HashedWheelTimer.Timeout timeout = heartbeatTimeout;
+    	if(timeout != null)
+    		timeout.cancel();
+    	
+    	timeout = missedHeartbeatsTimeout;
+    	if(timeout != null)
+    		timeout.cancel();
+    }
+    
+    /**
+     * Gets the runtime of this client's channel, or the default runtime
+     * if the channel doesn't belong to one.
+     */
+    private ParloRuntime getRuntime()
+    {
+    	return (runtime != null) ? runtime : ParloRuntime.getDefault();
+    }
+    
+    private ExecutorService getTransformPool()
+    {
+    	return getRuntime().getTransformPool();
+    }
+    
+    private ExecutorService getHandlerPool()
+    {
+    	return getRuntime().getHandlerPool();
+    }
+    
+    private HashedWheelTimer getTimer()
+    {
+    	return getRuntime().getTimer();
     }
 }
@@ -0,0 +1,173 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread that owns a Selector, and performs all the I/O for the
+ * NioSocketChannels that are pinned to it. Tasks submitted with execute()
+ * run on the event loop's thread, in the order they were submitted.
+ */
+public class NioEventLoop implements AutoCloseable
+{
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	//Set while the loop is (about to be) blocked in select(), so that
+	//execute() only wakes the selector up when it needs to.
+	private final AtomicBoolean isSelecting = new AtomicBoolean(false);
+	private volatile boolean isRunning = true;
+
+	/**
+	 * Creates and starts a new event loop.
+	 * @param threadFactory The factory used to create the event loop's thread.
+	 * @throws IOException If the Selector couldn't be opened.
+	 */
+	public NioEventLoop(ThreadFactory threadFactory) throws IOException
+	{
+		selector = Selector.open();
+		thread = threadFactory.newThread(this::run);
+		thread.start();
+	}
+
+	/**
+	 * Is the calling thread this event loop's thread?
+	 * @return True if it is, false otherwise.
+	 */
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on this event loop's thread. Tasks are never run
+	 * inline, even when called from the event loop itself, so that
+	 * completion handlers can't recurse.
+	 * @param task The task to run.
+	 */
+	public void execute(Runnable task)
+	{
+		tasks.offer(task);
+
+		if(!inEventLoop() && isSelecting.compareAndSet(true, false))
+			selector.wakeup();
+	}
+
+	/**
+	 * Gets the Selector owned by this event loop.
+	 * Must only be used from the event loop's thread.
+	 * @return The Selector.
+	 */
+	Selector getSelector()
+	{
+		return selector;
+	}
+
+	private void run()
+	{
+		try
+		{
+			while(isRunning)
+			{
+				try
+				{
+					if(tasks.isEmpty())
+					{
+						isSelecting.set(true);
+	
+						//A task may have been submitted before isSelecting was set.
+						if(tasks.isEmpty())
+							selector.select();
+						else
+							selector.selectNow();
+	
+						isSelecting.set(false);
+					}
+					else
+						selector.selectNow();
+	
+					Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+	
+					while(selectedKeys.hasNext())
+					{
+						SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+	
+						if(key.isValid())
+							((NioSocketChannel)key.attachment()).onReady(key.readyOps());
+					}
+	
+					runTasks();
+				}
+				catch(ClosedSelectorException exception)
+				{
+					return;
+				}
+				catch(Throwable exception)
+				{
+					Logger.log("Exception in NioEventLoop: " + exception.getMessage(), LogLevel.error);
+				}
+			}
+		}
+		finally
+		{
+			try
+			{
+				selector.close();
+			}
+			catch(IOException exception)
+			{
+				Logger.log("Couldn't close Selector in NioEventLoop: " + exception.getMessage(),
+						LogLevel.error);
+			}
+		}
+	}
+
+	private void runTasks()
+	{
+		Runnable task;
+
+		//Tasks submitted while running these will be run during the next iteration,
+		//after the selector has been polled again.
+		for(int numTasks = tasks.size(); numTasks > 0 && (task = tasks.poll()) != null; numTasks--)
+		{
+			try
+			{
+				task.run();
+			}
+			catch(Throwable exception)
+			{
+				Logger.log("Exception in NioEventLoop task: " + exception.getMessage(), LogLevel.error);
+			}
+		}
+	}
+
+	/**
+	 * Stops this event loop and closes its Selector.
+	 */
+	@Override
+	public void close()
+	{
+		isRunning = false;
+		selector.wakeup();
+	}
+}
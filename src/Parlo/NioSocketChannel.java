@@ -0,0 +1,626 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * An IAsyncSocketChannel built on non-blocking SocketChannels and ServerSocketChannels.
+ * Every channel is pinned to one of its ParloRuntime's NioEventLoops, which performs
+ * all of the channel's I/O and invokes all of its completion handlers. This means that
+ * reading, framing and writing for a connection happens on a single thread, without
+ * handing anything off to other threads.
+ */
+public class NioSocketChannel implements IAsyncSocketChannel
+{
+	private final ParloRuntime runtime;
+	private final NioEventLoop eventLoop;
+
+	private SocketChannel channel;
+	private ServerSocketChannel serverChannel;
+	private boolean isServer = false;
+
+	//The following are only ever accessed from the event loop's thread.
+	private SelectionKey key;
+
+	private ByteBuffer readDst;
+	private Object readAttachment;
+	private CompletionHandler<Integer, Object> readHandler;
+
+	private ByteBuffer[] writeSrcs;
+	private int writeOffset, writeLength;
+	private Object writeAttachment;
+	private CompletionHandler<Long, Object> writeHandler;
+
+	private Object connectAttachment;
+	private CompletionHandler<Void, Object> connectHandler;
+
+	private final ArrayDeque<CompletableFuture<IAsyncSocketChannel>> pendingAccepts = new ArrayDeque<>();
+
+	/**
+	 * Creates a new channel in the default ParloRuntime.
+	 * @param server Is this a server socket channel?
+	 * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+	 */
+	public NioSocketChannel(boolean server, boolean keepAlive) throws IOException
+	{
+		this(server, keepAlive, ParloRuntime.getDefault());
+	}
+
+	/**
+	 * Creates a new channel in the specified ParloRuntime. Channels accepted by
+	 * a server socket channel are spread over the runtime's event loops.
+	 * @param server Is this a server socket channel?
+	 * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+	 * @param runtime The runtime whose event loops will handle this channel's I/O.
+	 */
+	public NioSocketChannel(boolean server, boolean keepAlive, ParloRuntime runtime) throws IOException
+	{
+		if(runtime == null)
+			throw new IllegalArgumentException("runtime was null!");
+
+		this.runtime = runtime;
+		this.eventLoop = runtime.nextEventLoop();
+		isServer = server;
+
+		if(!server)
+		{
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+		}
+		else
+		{
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+		}
+	}
+
+	/**
+	 * Constructor used for constructing a new instance from accept().
+	 * @param ch The accepted channel.
+	 * @param runtime The runtime of the server socket channel that accepted ch.
+	 */
+	private NioSocketChannel(SocketChannel ch, ParloRuntime runtime) throws IOException
+	{
+		this.runtime = runtime;
+		this.eventLoop = runtime.nextEventLoop();
+
+		channel = ch;
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Binds the channel's socket to a local address.
+	 * @param local The local address to bind to.
+	 */
+	public void bind(InetSocketAddress local) throws IOException
+	{
+		if(!isServer)
+			channel.bind(local);
+		else
+			serverChannel.bind(local);
+	}
+
+	/**
+	 * Accepts a connection.
+	 * @return A Future of type IAsyncSocketChannel, or null if this isn't a server socket channel.
+	 */
+	public Future<IAsyncSocketChannel> accept()
+	{
+		if(!isServer)
+			return null;
+
+		CompletableFuture<IAsyncSocketChannel> future = new CompletableFuture<>();
+
+		eventLoop.execute(() ->
+		{
+			pendingAccepts.add(future);
+			acceptPending();
+		});
+
+		return future;
+	}
+
+	/**
+	 * Connects this channel.
+	 * @param remote The remote address to connect to.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		eventLoop.execute(() ->
+		{
+			boolean connected;
+			
+			try
+			{
+				connected = channel.connect(remote);
+				if(!connected)
+				{
+					connectAttachment = attachment;
+					connectHandler = (CompletionHandler<Void, Object>)handler;
+					updateInterestOps();
+				}
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				handler.failed(exception, attachment);
+				return;
+			}
+			
+			if(connected)
+				complete((CompletionHandler<Void, Object>)handler, null, attachment);
+		});
+	}
+
+	/**
+	 * Returns the socket address that this channel's socket is bound to.
+	 * @return The socket address that this channel's socket is bound to.
+	 */
+	public SocketAddress getLocalAddress() throws IOException
+	{
+		if(!isServer)
+			return channel.getLocalAddress();
+		else
+			return serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Returns the remote address to which this channel's socket is connected.
+	 * @return The remote address to which this channel's socket is connected,
+	 * or null if this is a server socket channel.
+	 */
+	public SocketAddress getRemoteAddress() throws IOException
+	{
+		if(!isServer)
+			return channel.getRemoteAddress();
+		else
+			return null;
+	}
+
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * @param dst The destination to read into.
+	 * @return A Future of type Integer, or null if this is a server socket channel.
+	 */
+	public Future<Integer> read(ByteBuffer dst)
+	{
+		if(isServer)
+			return null;
+
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+
+		read(dst, null, new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer bytesRead, Void attachment)
+			{
+				future.complete(bytesRead);
+			}
+
+			public void failed(Throwable t, Void attachment)
+			{
+				future.completeExceptionally(t);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * The handler is invoked on this channel's event loop when the read completes or fails.
+	 * Does nothing if this is a server socket channel.
+	 * @param dst The destination to read into.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> void read(ByteBuffer dst, A attachment,
+			CompletionHandler<Integer,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		eventLoop.execute(() ->
+		{
+			if(readHandler != null)
+			{
+				handler.failed(new ReadPendingException(), attachment);
+				return;
+			}
+
+			readDst = dst;
+			readAttachment = attachment;
+			readHandler = (CompletionHandler<Integer, Object>)handler;
+
+			//Try reading straight away, and only wait for the selector if there was nothing to read.
+			tryRead();
+			updateInterestOps();
+		});
+	}
+
+	/**
+	 * Writes a sequence of bytes to this channel from the given buffer.
+	 * The handler is invoked on this channel's event loop when the write completes or fails.
+	 * Does nothing if this is a server socket channel.
+	 * @param src The source to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	public <A> void write(ByteBuffer src, A attachment,
+			CompletionHandler<Integer,? super A> handler)
+	{
+		write(new ByteBuffer[] { src }, 0, 1, attachment, new CompletionHandler<Long, A>()
+		{
+			public void completed(Long bytesWritten, A attachment)
+			{
+				handler.completed(bytesWritten.intValue(), attachment);
+			}
+
+			public void failed(Throwable t, A attachment)
+			{
+				handler.failed(t, attachment);
+			}
+		});
+	}
+
+	/**
+	 * Writes a sequence of bytes to this channel from a subsequence of the given buffers,
+	 * in a single gathering write. The handler is invoked on this channel's event loop
+	 * when the write completes or fails. Like an AsynchronousSocketChannel, the write may
+	 * complete before all the bytes have been written.
+	 * Does nothing if this is a server socket channel.
+	 * @param srcs The buffers to write from.
+	 * @param offset The index of the first buffer to write from.
+	 * @param length The number of buffers to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment,
+			CompletionHandler<Long,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		eventLoop.execute(() ->
+		{
+			if(writeHandler != null)
+			{
+				handler.failed(new WritePendingException(), attachment);
+				return;
+			}
+
+			writeSrcs = srcs;
+			writeOffset = offset;
+			writeLength = length;
+			writeAttachment = attachment;
+			writeHandler = (CompletionHandler<Long, Object>)handler;
+
+			tryWrite();
+			updateInterestOps();
+		});
+	}
+
+	/**
+	 * Sets the value of a socket option.
+	 * @param name The name of the socket option to set.
+	 * @param value The value of the socket option to set.
+	 */
+	public <T> void setOption(SocketOption<T> name, T value) throws IOException
+	{
+		if(!isServer)
+			channel.setOption(name, value);
+		else
+			serverChannel.setOption(name, value);
+	}
+
+	/**
+	 * Gets the runtime this channel was opened in.
+	 * @return The runtime.
+	 */
+	public ParloRuntime getRuntime()
+	{
+		return runtime;
+	}
+
+	/**
+	 * Tells whether or not this channels is open.
+	 * @return True if, and only if, this channel is open.
+	 */
+	public boolean isOpen()
+	{
+		if(isServer)
+			return serverChannel.isOpen();
+		else
+			return channel.isOpen();
+	}
+
+	/**
+	 * Shutdown the connection for reading without closing the channel.
+	 */
+	public void shutdownInput() throws IOException
+	{
+		if(!isServer)
+			channel.shutdownInput();
+	}
+
+	/**
+	 * Shutdown the connection for writing without closing the channel.
+	 */
+	public void shutdownOutput() throws IOException
+	{
+		if(!isServer)
+			channel.shutdownOutput();
+	}
+
+	/**
+	 * Closes this channel. Any outstanding operations upon this channel
+	 * will complete with the exception AsynchronousCloseException.
+	 */
+	public void close() throws IOException
+	{
+		if(isServer)
+			serverChannel.close();
+		else
+			channel.close();
+
+		eventLoop.execute(() -> failPendingOperations(new AsynchronousCloseException()));
+	}
+
+	/**
+	 * Called by the event loop when this channel's SelectionKey is ready.
+	 * @param readyOps The operations that are ready.
+	 */
+	void onReady(int readyOps)
+	{
+		if((readyOps & SelectionKey.OP_CONNECT) != 0 && connectHandler != null)
+			finishConnect();
+		if((readyOps & SelectionKey.OP_ACCEPT) != 0)
+			acceptPending();
+		if((readyOps & SelectionKey.OP_WRITE) != 0 && writeHandler != null)
+			tryWrite();
+		if((readyOps & SelectionKey.OP_READ) != 0 && readHandler != null)
+			tryRead();
+
+		updateInterestOps();
+	}
+
+	/**
+	 * Reads into the pending read's buffer, and completes the read
+	 * if anything was read or the end of the stream was reached.
+	 * @return True if the read was completed, false if there was nothing to read.
+	 */
+	private boolean tryRead()
+	{
+		ByteBuffer dst = readDst;
+		Object attachment = readAttachment;
+		CompletionHandler<Integer, Object> handler = readHandler;
+		int bytesRead;
+
+		try
+		{
+			bytesRead = dst.hasRemaining() ? channel.read(dst) : 0;
+
+			if(bytesRead == 0 && dst.hasRemaining())
+				return false;
+		}
+		catch(IOException | RuntimeException exception)
+		{
+			clearRead();
+			handler.failed(exception, attachment);
+			return true;
+		}
+
+		clearRead();
+		complete(handler, bytesRead, attachment);
+		return true;
+	}
+
+	/**
+	 * Writes from the pending write's buffers, and completes the write
+	 * if anything was written.
+	 * @return True if the write was completed, false if the socket's send buffer was full.
+	 */
+	private boolean tryWrite()
+	{
+		Object attachment = writeAttachment;
+		CompletionHandler<Long, Object> handler = writeHandler;
+		long bytesWritten;
+
+		try
+		{
+			bytesWritten = channel.write(writeSrcs, writeOffset, writeLength);
+
+			if(bytesWritten == 0 && hasRemaining(writeSrcs, writeOffset, writeLength))
+				return false;
+		}
+		catch(IOException | RuntimeException exception)
+		{
+			clearWrite();
+			handler.failed(exception, attachment);
+			return true;
+		}
+
+		clearWrite();
+		complete(handler, bytesWritten, attachment);
+		return true;
+	}
+
+	private void finishConnect()
+	{
+		Object attachment = connectAttachment;
+		CompletionHandler<Void, Object> handler = connectHandler;
+
+		try
+		{
+			if(!channel.finishConnect())
+				return;
+		}
+		catch(IOException | RuntimeException exception)
+		{
+			connectAttachment = null;
+			connectHandler = null;
+			handler.failed(exception, attachment);
+			return;
+		}
+
+		connectAttachment = null;
+		connectHandler = null;
+		complete(handler, null, attachment);
+	}
+	
+	/**
+	 * Completes an operation. Only the I/O is covered by the operation's failed(),
+	 * so a handler that throws from completed() is logged instead of being
+	 * completed a second time, and the event loop carries on with other channels.
+	 */
+	private static <V> void complete(CompletionHandler<V, Object> handler, V result, Object attachment)
+	{
+		try
+		{
+			handler.completed(result, attachment);
+		}
+		catch(RuntimeException exception)
+		{
+			Logger.log("Exception in NioSocketChannel completion handler: " + exception, LogLevel.error);
+		}
+	}
+
+	private void acceptPending()
+	{
+		while(!pendingAccepts.isEmpty())
+		{
+			CompletableFuture<IAsyncSocketChannel> future = pendingAccepts.peek();
+
+			try
+			{
+				SocketChannel accepted = serverChannel.accept();
+
+				if(accepted == null)
+					break;
+
+				pendingAccepts.poll();
+				future.complete(new NioSocketChannel(accepted, runtime));
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				pendingAccepts.poll();
+				future.completeExceptionally(exception);
+			}
+		}
+
+		updateInterestOps();
+	}
+
+	/**
+	 * Registers this channel with its event loop's Selector if it isn't already,
+	 * and sets the interest set to match the pending operations.
+	 */
+	private void updateInterestOps()
+	{
+		int ops = 0;
+
+		if(connectHandler != null)
+			ops |= SelectionKey.OP_CONNECT;
+		if(!pendingAccepts.isEmpty())
+			ops |= SelectionKey.OP_ACCEPT;
+		if(writeHandler != null)
+			ops |= SelectionKey.OP_WRITE;
+		if(readHandler != null)
+			ops |= SelectionKey.OP_READ;
+
+		try
+		{
+			if(key == null)
+			{
+				if(ops != 0)
+					key = (isServer ? serverChannel : channel).register(eventLoop.getSelector(), ops, this);
+			}
+			else if(key.isValid() && key.interestOps() != ops)
+				key.interestOps(ops);
+		}
+		catch(IOException | CancelledKeyException exception)
+		{
+			failPendingOperations(exception);
+		}
+	}
+
+	private void failPendingOperations(Throwable exception)
+	{
+		if(readHandler != null)
+		{
+			CompletionHandler<Integer, Object> handler = readHandler;
+			Object attachment = readAttachment;
+			clearRead();
+			handler.failed(exception, attachment);
+		}
+
+		if(writeHandler != null)
+		{
+			CompletionHandler<Long, Object> handler = writeHandler;
+			Object attachment = writeAttachment;
+			clearWrite();
+			handler.failed(exception, attachment);
+		}
+
+		if(connectHandler != null)
+		{
+			CompletionHandler<Void, Object> handler = connectHandler;
+			Object attachment = connectAttachment;
+			connectHandler = null;
+			connectAttachment = null;
+			handler.failed(exception, attachment);
+		}
+
+		while(!pendingAccepts.isEmpty())
+			pendingAccepts.poll().completeExceptionally(exception);
+	}
+
+	private void clearRead()
+	{
+		readDst = null;
+		readAttachment = null;
+		readHandler = null;
+	}
+
+	private void clearWrite()
+	{
+		writeSrcs = null;
+		writeAttachment = null;
+		writeHandler = null;
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length)
+	{
+		for(int i = offset; i < offset + length; i++)
+		{
+			if(buffers[i].hasRemaining())
+				return true;
+		}
+
+		return false;
+	}
+}
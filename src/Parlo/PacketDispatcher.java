@@ -0,0 +1,130 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import Parlo.Packets.IPacket;
+import Parlo.Packets.IPacketCodec;
+import Parlo.Packets.Packet;
+import Parlo.Packets.PacketReader;
+import Parlo.Packets.ParloIDs;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands a NetworkClient's received packets to the handler set for their ID, which
+ * takes a single lookup in a table of 256 handlers. Packets without a handler go to
+ * the client's received data callback. Parlo's own packets are handled in the same
+ * table, so their IDs are reserved. Handlers are called one packet at a time, in the
+ * order the packets were received in.
+ */
+public class PacketDispatcher
+{
+	private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+	private final AtomicReferenceArray<ReceivedPacketDelegate> handlers = new AtomicReferenceArray<>(256);
+	private volatile ReceivedPacketDelegate defaultHandler;
+
+	//Packets are dispatched one at a time, so typed handlers can share a reader.
+	private final PacketReader reader = new PacketReader();
+
+	/**
+	 * Sets the handler for packets with an ID, replacing any handler set for it.
+	 * @param id The packet ID.
+	 * @param handler The handler, or null to send the packets to the received data callback.
+	 * @throws IllegalArgumentException If the ID is used by one of Parlo's own packets.
+	 */
+	public void setHandler(byte id, ReceivedPacketDelegate handler)
+	{
+		if(ParloIDs.isReserved(id))
+			throw new IllegalArgumentException("Packet ID " + (id & 0xFF) + " is reserved!");
+
+		handlers.set(id & 0xFF, handler);
+	}
+
+	/**
+	 * Sets the handler for packets with a codec's ID. The packets are decoded with the
+	 * codec before they're handed to the handler. Packets that can't be decoded are
+	 * logged and dropped.
+	 * @param codec The codec to decode the packets with.
+	 * @param handler The handler.
+	 * @throws IllegalArgumentException If the codec's ID is used by one of Parlo's own packets.
+	 */
+	public <T extends IPacket> void setHandler(IPacketCodec<T> codec, ReceivedTypedPacketDelegate<T> handler)
+	{
+		if(codec == null || handler == null)
+			throw new IllegalArgumentException("codec or handler was null!");
+
+		setHandler(codec.getID(), (client, packet) ->
+		{
+			T decoded;
+
+			//The packet's data comes from the other end, so it may be too short, or hold anything.
+			try
+			{
+				decoded = codec.decode(reader.reset(packet));
+			}
+			catch(RuntimeException exception)
+			{
+				Logger.log("Received a packet with ID " + (packet.getID() & 0xFF) + " that couldn't be decoded: " 
+						+ exception, LogLevel.warn);
+				return COMPLETED;
+			}
+
+			return handler.onReceivedPacket(client, decoded);
+		});
+	}
+
+	/**
+	 * Gets the handler set for packets with an ID.
+	 * @param id The packet ID.
+	 * @return The handler, or null if the packets go to the received data callback.
+	 */
+	public ReceivedPacketDelegate getHandler(byte id)
+	{
+		return handlers.get(id & 0xFF);
+	}
+
+	/**
+	 * Sets the handler for one of Parlo's own packets. Consumed by NetworkClient.
+	 */
+	void setControlHandler(ParloIDs id, ReceivedPacketDelegate handler)
+	{
+		handlers.set(id.GetID(), handler);
+	}
+
+	/**
+	 * Sets the handler for packets that don't have a handler of their own.
+	 * Consumed by NetworkClient.setReceivedDataCallback().
+	 */
+	void setDefaultHandler(ReceivedPacketDelegate handler)
+	{
+		defaultHandler = handler;
+	}
+
+	/**
+	 * Hands a packet to the handler for its ID.
+	 * @param client The client that received the packet.
+	 * @param packet The packet.
+	 * @return A future that completes when the handler is done with the packet.
+	 */
+	CompletableFuture<Void> dispatch(NetworkClient client, Packet packet)
+	{
+		ReceivedPacketDelegate handler = handlers.get(packet.getID() & 0xFF);
+		if(handler == null)
+			handler = defaultHandler;
+		if(handler == null)
+			return COMPLETED;
+
+		return handler.onReceivedPacket(client, packet);
+	}
+}
@@ -0,0 +1,138 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import Parlo.Packets.Packet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queues a NetworkClient's received packets, and hands them to its PacketDispatcher
+ * on an Executor, so that slow handlers don't hold up receiving. The mailbox is only
+ * ever run by one thread at a time, so packets are handled in the order they were
+ * posted in. Each run handles at most batchSize packets before the mailbox is
+ * scheduled again, behind the other mailboxes waiting for the executor.
+ * A handler that returns a future that hasn't completed holds back the next packet
+ * until it has, without blocking the executor's thread.
+ */
+public class PacketMailbox implements Runnable
+{
+	private final NetworkClient client;
+	private final PacketDispatcher dispatcher;
+	private final Executor executor;
+	private final int batchSize;
+
+	private final ConcurrentLinkedQueue<Packet> packets = new ConcurrentLinkedQueue<>();
+	//Set from when the mailbox is scheduled until its run has handled every packet it's going to.
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/**
+	 * Creates a new mailbox.
+	 * @param client The client that receives the packets.
+	 * @param dispatcher The dispatcher to hand the packets to.
+	 * @param executor The executor to run the mailbox on, normally ParloRuntime.getHandlerPool().
+	 * @param batchSize The maximum number of packets to handle in one run.
+	 */
+	public PacketMailbox(NetworkClient client, PacketDispatcher dispatcher, Executor executor, int batchSize)
+	{
+		if(dispatcher == null || executor == null)
+			throw new IllegalArgumentException("dispatcher or executor was null!");
+		if(batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1!");
+
+		this.client = client;
+		this.dispatcher = dispatcher;
+		this.executor = executor;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Queues a packet to be handled, and schedules the mailbox if it isn't already.
+	 * The packet is retained until it has been handled, so views of a receive buffer
+	 * stay valid after the caller releases them.
+	 * @param packet The packet.
+	 */
+	public void post(Packet packet)
+	{
+		packets.add(packet.retain());
+
+		if(scheduled.compareAndSet(false, true))
+			executor.execute(this);
+	}
+
+	/**
+	 * Gets the number of packets waiting to be handled.
+	 * @return The number of packets.
+	 */
+	public int size()
+	{
+		return packets.size();
+	}
+
+	/**
+	 * Handles up to batchSize packets. Called by the executor.
+	 */
+	@Override
+	public void run()
+	{
+		for(int i = 0; i < batchSize; i++)
+		{
+			Packet packet = packets.poll();
+			if(packet == null)
+				break;
+
+			CompletableFuture<Void> handled = dispatch(packet);
+			if(!handled.isDone())
+			{
+				//Stays scheduled, and carries on from the next packet once this one has been handled.
+				handled.whenComplete((result, exception) ->
+				{
+					onHandled(packet, exception);
+					executor.execute(this);
+				});
+				return;
+			}
+
+			//Already completed, so this runs right away.
+			handled.whenComplete((result, exception) -> onHandled(packet, exception));
+		}
+
+		scheduled.set(false);
+
+		//A packet posted after the last poll() couldn't schedule the mailbox, as it was still scheduled.
+		if(!packets.isEmpty() && scheduled.compareAndSet(false, true))
+			executor.execute(this);
+	}
+
+	private CompletableFuture<Void> dispatch(Packet packet)
+	{
+		try
+		{
+			return dispatcher.dispatch(client, packet);
+		}
+		catch(RuntimeException exception)
+		{
+			return CompletableFuture.failedFuture(exception);
+		}
+	}
+
+	private static void onHandled(Packet packet, Throwable exception)
+	{
+		packet.release();
+
+		if(exception != null)
+			Logger.log("A packet handler failed: " + exception.getMessage(), LogLevel.error);
+	}
+}
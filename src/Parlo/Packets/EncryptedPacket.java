@@ -15,23 +15,7 @@ package Parlo.Packets;
 import Parlo.LogLevel;
 import Parlo.Logger;
 import Parlo.Encryption.*;
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.SecretKey;
-import java.security.spec.KeySpec;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.Base64;
-import gnu.crypto.cipher.IBlockCipher;
-import gnu.crypto.cipher.Twofish;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 
 /*
  * Represents an encrypted packet.
@@ -39,6 +23,7 @@ import java.util.HashMap;
 public class EncryptedPacket extends Packet 
 {
     private EncryptionArgs Args;
+    private AEADSession Session;
 
     /**
      * Creates an instance of EncryptedPacket.
@@ -58,22 +43,45 @@ public class EncryptedPacket extends Packet
         this.Args = args;
     }
     
+    /**
+     * Creates an instance of EncryptedPacket that is encrypted with an AEAD cipher.
+     * @param session The connection's {@link AEADSession}. Packets must be 
+     * 			built in the order they're sent, and decrypted in the order they're received.
+     * @param id The ID of the packet.
+     * @param serializedData The serialized data to send.
+     */
+    public EncryptedPacket(AEADSession session, byte id, byte[] serializedData) 
+    {
+        super(id, serializedData, false);
+
+        if (session == null)
+            throw new IllegalArgumentException("Session");
+        if (serializedData == null)
+            throw new IllegalArgumentException("SerializedData");
+
+        this.Session = session;
+    }
+    
     /**
      * Decrypts the contents of this EncryptedPacket instance.
      * @return An array of bytes containing the decrypted data.
-     * @throws UnsupportedOperationException If Twofish is selected as the encryption algorithm,
-     * 			as it hasn't been implemented yet.
+     * @throws IllegalStateException If an AEAD mode was selected without a session.
      */
     public byte[] decryptPacket() throws Exception 
     {
+        if (Session != null)
+            return Session.decrypt(getID(), getIsCompressed(), getData());
+
         switch (Args.Mode) 
         {
             case AES:
             default:
-                AES aes = new AES(Args.Key, hexStringToByteArray(Args.Salt));
-                return aes.Decrypt(getData());
+                return Args.getAES().Decrypt(getData());
             case Twofish:
-                throw new UnsupportedOperationException("Twofish encryption not supported in standard Java.");
+                return Args.getTwofish().Decrypt(getData());
+            case AESGCM:
+            case ChaCha20Poly1305:
+                throw new IllegalStateException(Args.Mode + " needs a session, see AEADSession.");
         }
     }
 
@@ -81,20 +89,34 @@ public class EncryptedPacket extends Packet
      * Returns this EncryptedPacket instance as an array of bytes.
      * The encryption mode used will depend on what mode is specified
      * in the EncryptionArgs instance used to create this EncryptedPacket
-     * instance. If Twofish was selected, the key HAS to be 16 chars long.
+     * instance, unless it was created with an AEADSession.
      */
     public byte[] BuildPacket()
     {
         byte[] encryptedData = null;
 
+        if (Session != null)
+        {
+            try
+            {
+                //Encrypts straight into the buffer that holds the header.
+                return Session.encryptPacket(getID(), getIsCompressed(), ByteBuffer.wrap(getData())).array();
+            }
+            catch(Exception exception)
+            {
+                Logger.log("Error while encrypting packet: " + exception.getMessage(), 
+                        LogLevel.error);
+                return null;
+            }
+        }
+
         switch (Args.Mode) 
         {
             case AES:
             default:
             	try
             	{
-            		AES aes = new AES(Args.Key, hexStringToByteArray(Args.Salt));
-            		encryptedData = aes.Encrypt(getData());
+            		encryptedData = Args.getAES().Encrypt(getData());
             	}
             	catch(Exception exception)
             	{
@@ -103,43 +125,29 @@ public class EncryptedPacket extends Packet
             	}
                 break;
             case Twofish:
-                throw new UnsupportedOperationException("Twofish encryption not supported in standard Java.");
+            	try
+            	{
+            		encryptedData = Args.getTwofish().Encrypt(getData());
+            	}
+            	catch(Exception exception)
+            	{
+            		Logger.log("Error while encrypting packet: " + exception.getMessage(), 
+            				LogLevel.error);
+            	}
+                break;
+            case AESGCM:
+            case ChaCha20Poly1305:
+                throw new IllegalStateException(Args.Mode + " needs a session, see AEADSession.");
         }
 
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(byteOut);
-        
-        try
-        {
-	        dataOut.write(getID());
-	        dataOut.write(getIsCompressed());
-	        dataOut.writeShort(encryptedData.length + PacketHeaders.STANDARD);
-	        dataOut.write(encryptedData);
-	        dataOut.flush();
-        }
-        catch(IOException exception)
-        {
-        	Logger.log("Error while writing encrypted packet: " + exception.toString(), 
-        			LogLevel.error);
-        }
+        if (encryptedData == null)
+        	return null;
 
-        return byteOut.toByteArray();
-    }
+        ByteBuffer buffer = ByteBuffer.allocate(PacketHeaders.STANDARD + encryptedData.length);
+        writeHeader(buffer, getID(), getIsCompressed(), encryptedData.length);
+        buffer.put(encryptedData);
 
-    /**
-     * Converts a hex string to a byte array.
-     * @param s The hex string to convert.
-     * @return The converted string as a byte array.
-     */
-    private byte[] hexStringToByteArray(String s) 
-    {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
-        }
-        return data;
+        return buffer.array();
     }
 
     /**
@@ -13,15 +13,27 @@ Contributor(s): ______________________________________.
 package Parlo.Packets;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.DateTimeException;
 import java.time.Duration;
 import java.time.Instant;
 
 /**
  * An internal class sent by the client and server before disconnecting.
+ * Encoded as a fixed-size, little-endian structure: the timeout in 
+ * seconds (long), followed by the sent time's epoch second (long) 
+ * and nanosecond (int).
  */
 public class GoodbyePacket implements Serializable 
 {
 	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The size of an encoded GoodbyePacket, in bytes.
+	 */
+	public static final int SIZE = 20;
+	
 	private Duration timeOut;
     private Instant sentTime;
 
@@ -30,6 +42,12 @@ public class GoodbyePacket implements Serializable
         this.timeOut = Duration.ofSeconds(timeOut);
         this.sentTime = Instant.now();
     }
+    
+    private GoodbyePacket(Duration timeOut, Instant sentTime)
+    {
+        this.timeOut = timeOut;
+        this.sentTime = sentTime;
+    }
 
     public Duration getTimeOut() 
     {
@@ -40,41 +58,65 @@ public class GoodbyePacket implements Serializable
     {
         return sentTime;
     }
+    
+    /**
+     * Writes this packet into a buffer, at the buffer's position.
+     * @param buffer The buffer to write to. Must have at least SIZE bytes remaining.
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+    	ByteOrder order = buffer.order();
+    	
+    	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    	buffer.putLong(timeOut.getSeconds());
+    	buffer.putLong(sentTime.getEpochSecond());
+    	buffer.putInt(sentTime.getNano());
+    	buffer.order(order);
+    }
+    
+    /**
+     * Reads a packet from a buffer, at the buffer's position.
+     * @param buffer The buffer to read from.
+     * @return The packet, or null if the buffer had less than SIZE bytes remaining,
+     * or if the times in it were out of range.
+     */
+    public static GoodbyePacket readFrom(ByteBuffer buffer)
+    {
+    	if(buffer.remaining() < SIZE)
+    		return null;
+    	
+    	ByteOrder order = buffer.order();
+    	
+    	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    	long timeOutSeconds = buffer.getLong();
+    	long sentSeconds = buffer.getLong();
+    	int sentNanos = buffer.getInt();
+    	buffer.order(order);
+    	
+    	//The times come from the other end, which may have sent anything.
+    	try
+    	{
+    		return new GoodbyePacket(Duration.ofSeconds(timeOutSeconds), 
+    				Instant.ofEpochSecond(sentSeconds, sentNanos));
+    	}
+    	catch(DateTimeException | ArithmeticException exception)
+    	{
+    		return null;
+    	}
+    }
 
     public byte[] toByteArray() 
     {
-        try 
-        {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(this);
-            oos.flush();
-            return bos.toByteArray();
-        } 
-        catch (IOException ex) 
-        {
-            ex.printStackTrace();
-            return null;
-        }
+    	ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+    	writeTo(buffer);
+    	return buffer.array();
     }
 
     public static GoodbyePacket byteArrayToObject(byte[] arrBytes) 
     {
-        try 
-        {
-            ByteArrayInputStream Bis = new ByteArrayInputStream(arrBytes);
-            ObjectInputStream Ois = new ObjectInputStream(Bis);
-            return (GoodbyePacket) Ois.readObject();
-        } 
-        catch (IOException | ClassNotFoundException ex) 
-        {
-            ex.printStackTrace();
-            return null;
-        }
+    	if(arrBytes == null)
+    		return null;
+    	
+    	return readFrom(ByteBuffer.wrap(arrBytes));
     }
 }
-
-
-
-
-
@@ -13,15 +13,32 @@ Contributor(s): ______________________________________.
 package Parlo.Packets;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.DateTimeException;
 import java.time.Duration;
 import java.time.Instant;
 
+/**
+ * An internal packet sent periodically by both ends of a connection,
+ * used to detect lost connections and calculate the RTT.
+ * Encoded as a fixed-size, little-endian structure:
+ * the timestamp's epoch second (long) and nanosecond (int),
+ * followed by the time since the last heartbeat's seconds (long) 
+ * and nanoseconds (int).
+ */
 public class HeartbeatPacket implements Serializable 
 {
     /**
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The size of an encoded HeartbeatPacket, in bytes.
+	 */
+	public static final int SIZE = 24;
+	
 	private Duration m_TimeSinceLast;
     private Instant m_SentTimestamp;
 
@@ -30,6 +47,12 @@ public class HeartbeatPacket implements Serializable
         this.m_TimeSinceLast = TimeSinceLast;
         this.m_SentTimestamp = Instant.now();
     }
+    
+    private HeartbeatPacket(Duration TimeSinceLast, Instant SentTimestamp)
+    {
+        this.m_TimeSinceLast = TimeSinceLast;
+        this.m_SentTimestamp = SentTimestamp;
+    }
 
     public Duration getTimeSinceLast() 
     {
@@ -40,36 +63,67 @@ public class HeartbeatPacket implements Serializable
     {
         return m_SentTimestamp;
     }
+    
+    /**
+     * Writes this packet into a buffer, at the buffer's position.
+     * @param buffer The buffer to write to. Must have at least SIZE bytes remaining.
+     */
+    public void writeTo(ByteBuffer buffer)
+    {
+    	ByteOrder order = buffer.order();
+    	
+    	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    	buffer.putLong(m_SentTimestamp.getEpochSecond());
+    	buffer.putInt(m_SentTimestamp.getNano());
+    	buffer.putLong(m_TimeSinceLast.getSeconds());
+    	buffer.putInt(m_TimeSinceLast.getNano());
+    	buffer.order(order);
+    }
+    
+    /**
+     * Reads a packet from a buffer, at the buffer's position.
+     * @param buffer The buffer to read from.
+     * @return The packet, or null if the buffer had less than SIZE bytes remaining,
+     * or if the times in it were out of range.
+     */
+    public static HeartbeatPacket readFrom(ByteBuffer buffer)
+    {
+    	if(buffer.remaining() < SIZE)
+    		return null;
+    	
+    	ByteOrder order = buffer.order();
+    	
+    	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    	long sentSeconds = buffer.getLong();
+    	int sentNanos = buffer.getInt();
+    	long secondsSinceLast = buffer.getLong();
+    	int nanosSinceLast = buffer.getInt();
+    	buffer.order(order);
+    	
+    	//The times come from the other end, which may have sent anything.
+    	try
+    	{
+    		return new HeartbeatPacket(Duration.ofSeconds(secondsSinceLast, nanosSinceLast), 
+    				Instant.ofEpochSecond(sentSeconds, sentNanos));
+    	}
+    	catch(DateTimeException | ArithmeticException exception)
+    	{
+    		return null;
+    	}
+    }
 
     public byte[] toByteArray() 
     {
-        try 
-        {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(this);
-            oos.flush();
-            return bos.toByteArray();
-        } 
-        catch (IOException ex) 
-        {
-            ex.printStackTrace();
-            return null;
-        }
+    	ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+    	writeTo(buffer);
+    	return buffer.array();
     }
 
     public static HeartbeatPacket byteArrayToObject(byte[] ArrBytes) 
     {
-        try 
-        {
-            ByteArrayInputStream bis = new ByteArrayInputStream(ArrBytes);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            return (HeartbeatPacket) ois.readObject();
-        } 
-        catch (IOException | ClassNotFoundException ex) 
-        {
-            ex.printStackTrace();
-            return null;
-        }
+    	if(ArrBytes == null)
+    		return null;
+    	
+    	return readFrom(ByteBuffer.wrap(ArrBytes));
     }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Packets;
+
+/**
+ * An interface for encoding one type of IPacket to a packet's data, and decoding
+ * it again. Codecs are normally generated for classes annotated with ParloPacket,
+ * and are looked up in PacketCodecs by packet ID. Implementations must be thread safe.
+ * @param <T> The type of packet.
+ */
+public interface IPacketCodec<T extends IPacket>
+{
+	/**
+	 * Gets the ID of the packets encoded by this codec.
+	 * @return The ID.
+	 */
+	abstract byte getID();
+
+	/**
+	 * Gets the type of packet encoded by this codec.
+	 * @return The type.
+	 */
+	abstract Class<T> getPacketClass();
+
+	/**
+	 * Writes a packet's fields after the header started by writer.begin().
+	 * @param packet The packet to write.
+	 * @param writer The writer to write to.
+	 */
+	abstract void encode(T packet, PacketWriter writer);
+
+	/**
+	 * Reads a packet's fields.
+	 * @param reader The reader to read from, which has been reset() to the packet's data.
+	 * @return The packet.
+	 */
+	abstract T decode(PacketReader reader);
+
+	/**
+	 * Starts a packet with this codec's ID, and writes a packet's fields to it.
+	 * @param packet The packet to write.
+	 * @param writer The writer to write to.
+	 * @return The writer, ready to be passed to NetworkClient.sendAsync().
+	 */
+	default PacketWriter write(T packet, PacketWriter writer)
+	{
+		encode(packet, writer.begin(getID()));
+		return writer;
+	}
+}
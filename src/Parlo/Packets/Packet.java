@@ -14,6 +14,8 @@ package Parlo.Packets;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import Parlo.BufferPool;
+import Parlo.RefCountedBuffer;
 
 public class Packet 
 {
@@ -23,6 +25,10 @@ public class Packet
     private short m_Length;
     protected byte[] m_Data;
     private boolean m_IsUDP = false;
+    
+    //Set if this packet is a view of a shared buffer, instead of owning an array.
+    private RefCountedBuffer m_Owner;
+    private ByteBuffer m_View;
 
     public Packet(byte ID, byte[] SerializedData, boolean IsPacketCompressed) 
     {
@@ -35,6 +41,43 @@ public class Packet
         m_Data = SerializedData;
     }
 
+    /**
+     * Creates a packet whose data was compressed by a specific compressor.
+     * @param ID The packet's ID.
+     * @param SerializedData The packet's data.
+     * @param Compression The value of the packet's isCompressed byte, 
+     * which tells the receiver how to decompress the data. 0 if it isn't compressed.
+     */
+    public Packet(byte ID, byte[] SerializedData, byte Compression) 
+    {
+        this(ID, SerializedData, false);
+        m_IsCompressed = Compression;
+    }
+
+    /**
+     * Creates a packet that is a read-only view of part of a shared buffer, such as
+     * the buffer a packet was received into, instead of a copy of it. The view 
+     * holds a reference to the buffer until release() is called.
+     * @param ID The packet's ID.
+     * @param Owner The buffer the packet's data is in.
+     * @param Offset The offset of the packet's data in the buffer.
+     * @param Length The length of the packet's data, excluding the header.
+     * @param Compression The value of the packet's isCompressed byte.
+     */
+    public Packet(byte ID, RefCountedBuffer Owner, int Offset, int Length, byte Compression)
+    {
+        if (Owner == null)
+            throw new IllegalArgumentException("Owner cannot be null!");
+
+        Owner.retain();
+
+        m_ID = ID;
+        m_IsCompressed = Compression;
+        m_Length = (short) (PacketHeaders.STANDARD + Length);
+        m_Owner = Owner;
+        m_View = Owner.getBuffer().duplicate().position(Offset).limit(Offset + Length).slice().asReadOnlyBuffer();
+    }
+
     public Packet(byte ID, byte[] SerializedData, boolean IsPacketCompressed, boolean IsPacketReliable) 
     {
         if (SerializedData == null)
@@ -76,26 +119,94 @@ public class Packet
         return m_Length;
     }
 
+    /**
+     * Gets the packet's data. If the packet is a view of a shared buffer, the data
+     * is copied to an array the first time this is called, so handlers that can
+     * should use getBuffer() instead.
+     * @return The packet's data.
+     */
     public byte[] getData() 
     {
+        if (m_Data == null && m_View != null)
+        {
+            m_Data = new byte[m_View.remaining()];
+            m_View.duplicate().get(m_Data);
+        }
+
         return m_Data;
     }
 
+    /**
+     * Gets the packet's data without copying it. If the packet is a view of 
+     * a shared buffer, the buffer is only valid until the packet is released.
+     * @return A read-only buffer with the packet's data between its position and limit.
+     */
+    public ByteBuffer getBuffer()
+    {
+        if (m_View != null)
+            return m_View.duplicate();
+
+        return ByteBuffer.wrap(m_Data).asReadOnlyBuffer();
+    }
+
+    /**
+     * Gets the packet's data as a buffer, without the duplicate made by getBuffer().
+     * Callers must only read it with absolute gets.
+     * @return The view, or the data wrapped in a buffer if the packet owns it.
+     */
+    ByteBuffer getDataBuffer()
+    {
+        return (m_View != null) ? m_View : ByteBuffer.wrap(m_Data);
+    }
+
+    /**
+     * Is this packet a view of a shared buffer, that must be retained to be kept?
+     * @return True if it is, false if it owns its data.
+     */
+    public boolean isView()
+    {
+        return m_Owner != null;
+    }
+
+    /**
+     * Keeps the packet's data valid after the handler it was passed to returns.
+     * Packets passed to a ReceivedPacketDelegate are released once its future
+     * completes, so a handler that keeps a packet must retain it, and release
+     * it when it's done. Does nothing if the packet owns its data.
+     * @return This packet.
+     */
+    public Packet retain()
+    {
+        if (m_Owner != null)
+            m_Owner.retain();
+
+        return this;
+    }
+
+    /**
+     * Releases a reference to the packet's data. The data must not be used
+     * after the last reference has been released. Does nothing if the packet
+     * owns its data.
+     */
+    public void release()
+    {
+        if (m_Owner != null)
+            m_Owner.release();
+    }
+
     public byte[] buildPacket() 
     {
+        byte[] data = getData();
         ByteBuffer buffer;
 
         if (!m_IsUDP) 
         {
-            buffer = ByteBuffer.allocate(4 + m_Data.length);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            buffer.put(m_ID);
-            buffer.put(m_IsCompressed);
-            buffer.putShort(m_Length);
+            buffer = ByteBuffer.allocate(4 + data.length);
+            writeHeader(buffer, m_ID, m_IsCompressed, data.length);
         } 
         else 
         {
-            buffer = ByteBuffer.allocate(5 + m_Data.length);
+            buffer = ByteBuffer.allocate(5 + data.length);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
             buffer.put(m_ID);
             buffer.put(m_IsCompressed);
@@ -103,8 +214,53 @@ public class Packet
             buffer.putShort(m_Length);
         }
 
-        buffer.put(m_Data);
+        buffer.put(data);
 
         return buffer.array();
     }
+
+    /**
+     * Builds a standard (TCP) packet into a buffer from a pool, instead of a new array.
+     * @param pool The pool to acquire the buffer from.
+     * @return The packet, from position 0 to the buffer's limit. 
+     * Must be released to the pool once it has been sent.
+     */
+    public ByteBuffer buildPacket(BufferPool pool)
+    {
+        ByteBuffer data = getBuffer();
+        ByteBuffer buffer = pool.acquire(PacketHeaders.STANDARD + data.remaining());
+        writeHeader(buffer, m_ID, m_IsCompressed, data.remaining());
+        buffer.put(data);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Writes a standard (TCP) packet header into a buffer, at the buffer's position,
+     * so that a packet's data can be written straight into the same buffer.
+     * @param buffer The buffer to write to.
+     * @param ID The packet's ID.
+     * @param IsPacketCompressed Is the packet's data compressed?
+     * @param DataLength The length of the packet's data, excluding the header.
+     */
+    public static void writeHeader(ByteBuffer buffer, byte ID, boolean IsPacketCompressed, int DataLength)
+    {
+        writeHeader(buffer, ID, (byte) (IsPacketCompressed ? 1 : 0), DataLength);
+    }
+
+    /**
+     * Writes a standard (TCP) packet header into a buffer, at the buffer's position.
+     * @param buffer The buffer to write to.
+     * @param ID The packet's ID.
+     * @param Compression The value of the isCompressed byte. 0 if the data isn't compressed.
+     * @param DataLength The length of the packet's data, excluding the header.
+     */
+    public static void writeHeader(ByteBuffer buffer, byte ID, byte Compression, int DataLength)
+    {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(ID);
+        buffer.put(Compression);
+        buffer.putShort((short) (PacketHeaders.STANDARD + DataLength));
+    }
 }
@@ -0,0 +1,134 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Packets;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import Parlo.LogLevel;
+import Parlo.Logger;
+
+/**
+ * The codecs packets are encoded and decoded with, by packet ID and by type. Codecs
+ * generated by PacketCodecProcessor are listed in META-INF/services, and are registered
+ * the first time this class is used. Other codecs can be registered by hand.
+ * IDs used by ParloIDs are reserved.
+ */
+public class PacketCodecs
+{
+	private static final AtomicReferenceArray<IPacketCodec<?>> codecs = new AtomicReferenceArray<>(256);
+	private static final ConcurrentHashMap<Class<?>, IPacketCodec<?>> codecsByClass = new ConcurrentHashMap<>();
+
+	static
+	{
+		registerServices();
+	}
+
+	//Registers the codecs listed in every META-INF/services/Parlo.Packets.IPacketCodec on the class path.
+	@SuppressWarnings("rawtypes")
+	private static void registerServices()
+	{
+		Iterator<IPacketCodec> services = ServiceLoader.load(IPacketCodec.class).iterator();
+
+		while(true)
+		{
+			try
+			{
+				if(!services.hasNext())
+					return;
+
+				register(services.next());
+			}
+			catch(ServiceConfigurationError | IllegalArgumentException exception)
+			{
+				Logger.log("Couldn't register a packet codec: " + exception.getMessage(), LogLevel.error);
+			}
+		}
+	}
+
+	/**
+	 * Registers a codec, replacing any codec registered with the same ID or type.
+	 * Both ends of a connection must register the same codecs.
+	 * @param codec The codec to register.
+	 */
+	public static void register(IPacketCodec<?> codec)
+	{
+		if(codec == null)
+			throw new IllegalArgumentException("codec");
+
+		byte id = codec.getID();
+		if(ParloIDs.isReserved(id))
+			throw new IllegalArgumentException("Packet ID " + (id & 0xFF) + " is reserved!");
+
+		IPacketCodec<?> replaced = codecs.getAndSet(id & 0xFF, codec);
+		if(replaced != null)
+			codecsByClass.remove(replaced.getPacketClass(), replaced);
+
+		codecsByClass.put(codec.getPacketClass(), codec);
+	}
+
+	/**
+	 * Gets the codec registered with a packet ID.
+	 * @param id The packet ID.
+	 * @return The codec, or null if none is registered with the ID.
+	 */
+	public static IPacketCodec<?> get(byte id)
+	{
+		return codecs.get(id & 0xFF);
+	}
+
+	/**
+	 * Gets the codec registered for a type of packet.
+	 * @param packetClass The type of packet.
+	 * @return The codec, or null if none is registered for the type.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends IPacket> IPacketCodec<T> get(Class<T> packetClass)
+	{
+		return (IPacketCodec<T>)codecsByClass.get(packetClass);
+	}
+
+	/**
+	 * Starts a packet, and writes an IPacket's fields to it with the codec registered for its type.
+	 * @param packet The packet to write.
+	 * @param writer The writer to write to.
+	 * @return The writer, ready to be passed to NetworkClient.sendAsync().
+	 * @throws IllegalArgumentException If no codec is registered for the packet's type.
+	 */
+	@SuppressWarnings("unchecked")
+	public static PacketWriter write(IPacket packet, PacketWriter writer)
+	{
+		IPacketCodec<IPacket> codec = (IPacketCodec<IPacket>)codecsByClass.get(packet.getClass());
+		if(codec == null)
+			throw new IllegalArgumentException("No codec is registered for " + packet.getClass().getName() + "!");
+
+		return codec.write(packet, writer);
+	}
+
+	/**
+	 * Decodes a received packet with the codec registered with its ID.
+	 * @param packet The received packet.
+	 * @param reader A reader to read the packet with.
+	 * @return The decoded packet, or null if no codec is registered with the packet's ID.
+	 */
+	public static IPacket decode(Packet packet, PacketReader reader)
+	{
+		IPacketCodec<?> codec = codecs.get(packet.getID() & 0xFF);
+		if(codec == null)
+			return null;
+
+		return codec.decode(reader.reset(packet));
+	}
+}
@@ -0,0 +1,270 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Packets;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields written by a PacketWriter from a packet's data. Reads straight
+ * from the packet's buffer, so packets that are views of a receive buffer are read
+ * without being copied, and without touching the buffer's position. A reader can
+ * be reset() to read any number of packets, and only allocates the strings it reads.
+ * Reading past the end of the data throws a BufferUnderflowException.
+ * Instances aren't thread safe.
+ */
+public class PacketReader
+{
+	private static final VarHandle SHORT = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private ByteBuffer buffer;
+	private int position;
+	private int limit;
+	//Strings are copied here before they're decoded, so reading one only allocates the string.
+	private byte[] stringBuffer = new byte[64];
+
+	/**
+	 * Creates a reader with nothing to read. Call reset() to give it a packet.
+	 */
+	public PacketReader()
+	{
+	}
+
+	/**
+	 * Creates a reader for a packet's data.
+	 * @param packet The packet to read.
+	 */
+	public PacketReader(Packet packet)
+	{
+		reset(packet);
+	}
+
+	/**
+	 * Starts reading a packet's data from the beginning. A packet that is a view
+	 * of a receive buffer must not be released before the reader is done with it.
+	 * @param packet The packet to read.
+	 * @return This reader.
+	 */
+	public PacketReader reset(Packet packet)
+	{
+		if(packet == null)
+			throw new IllegalArgumentException("packet must not be null!");
+
+		return reset(packet.getDataBuffer());
+	}
+
+	/**
+	 * Starts reading a buffer's remaining bytes. The buffer's position isn't changed.
+	 * @param data The buffer to read.
+	 * @return This reader.
+	 */
+	public PacketReader reset(ByteBuffer data)
+	{
+		if(data == null)
+			throw new IllegalArgumentException("data must not be null!");
+
+		buffer = data;
+		position = data.position();
+		limit = data.limit();
+
+		return this;
+	}
+
+	/**
+	 * Gets the number of bytes left to read.
+	 * @return The number of bytes.
+	 */
+	public int remaining()
+	{
+		return limit - position;
+	}
+
+	public boolean hasRemaining()
+	{
+		return position < limit;
+	}
+
+	/**
+	 * Skips bytes.
+	 * @param length The number of bytes to skip.
+	 * @return This reader.
+	 */
+	public PacketReader skip(int length)
+	{
+		advance(length);
+		return this;
+	}
+
+	public byte readByte()
+	{
+		return buffer.get(advance(1));
+	}
+
+	public boolean readBoolean()
+	{
+		return readByte() != 0;
+	}
+
+	public short readShort()
+	{
+		return (short)SHORT.get(buffer, advance(2));
+	}
+
+	public int readInt()
+	{
+		return (int)INT.get(buffer, advance(4));
+	}
+
+	public long readLong()
+	{
+		return (long)LONG.get(buffer, advance(8));
+	}
+
+	public float readFloat()
+	{
+		return Float.intBitsToFloat(readInt());
+	}
+
+	public double readDouble()
+	{
+		return Double.longBitsToDouble(readLong());
+	}
+
+	/**
+	 * Reads an int written by PacketWriter.writeVarInt().
+	 * @return The value.
+	 * @throws IllegalStateException If the varint was longer than 5 bytes.
+	 */
+	public int readVarInt()
+	{
+		int value = 0;
+
+		for(int shift = 0; shift < 35; shift += 7)
+		{
+			byte b = readByte();
+			value |= (b & 0x7F) << shift;
+
+			if(b >= 0)
+				return value;
+		}
+
+		throw new IllegalStateException("Read a varint that was too long!");
+	}
+
+	/**
+	 * Reads a long written by PacketWriter.writeVarLong().
+	 * @return The value.
+	 * @throws IllegalStateException If the varint was longer than 10 bytes.
+	 */
+	public long readVarLong()
+	{
+		long value = 0;
+
+		for(int shift = 0; shift < 70; shift += 7)
+		{
+			byte b = readByte();
+			value |= (long)(b & 0x7F) << shift;
+
+			if(b >= 0)
+				return value;
+		}
+
+		throw new IllegalStateException("Read a varint that was too long!");
+	}
+
+	/**
+	 * Reads bytes into an array.
+	 * @param dst The array to read into.
+	 * @param offset The offset in dst to start writing at.
+	 * @param length The number of bytes to read.
+	 * @return This reader.
+	 */
+	public PacketReader readBytes(byte[] dst, int offset, int length)
+	{
+		buffer.get(advance(length), dst, offset, length);
+		return this;
+	}
+
+	/**
+	 * Reads a byte array written as a varint length followed by the bytes, the way
+	 * generated codecs write byte[] fields. The length is checked against the data
+	 * that is left before the array is allocated, so a packet can't make the reader
+	 * allocate more than the packet holds.
+	 * @return The array.
+	 * @throws BufferUnderflowException If the length was negative, or longer than the data that is left.
+	 */
+	public byte[] readByteArray()
+	{
+		int length = readVarInt();
+
+		if(length < 0 || length > remaining())
+			throw new BufferUnderflowException();
+
+		byte[] bytes = new byte[length];
+		readBytes(bytes, 0, length);
+		return bytes;
+	}
+
+	/**
+	 * Reads an enum constant written as a varint ordinal, the way generated codecs write enum fields.
+	 * @param values The enum's constants, as returned by values().
+	 * @return The constant.
+	 * @throws IllegalStateException If the ordinal wasn't one of the enum's.
+	 */
+	public <E extends Enum<E>> E readEnum(E[] values)
+	{
+		int ordinal = readVarInt();
+
+		if(ordinal < 0 || ordinal >= values.length)
+			throw new IllegalStateException("Read an enum ordinal that was out of range: " + ordinal);
+
+		return values[ordinal];
+	}
+
+	/**
+	 * Reads a string written by PacketWriter.writeString().
+	 * @return The string.
+	 */
+	public String readString()
+	{
+		int length = readVarInt();
+
+		if(length < 0 || length > remaining())
+			throw new BufferUnderflowException();
+		if(length > stringBuffer.length)
+			stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+
+		readBytes(stringBuffer, 0, length);
+		return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	//Moves past length bytes, and returns the index of the first of them.
+	private int advance(int length)
+	{
+		if(buffer == null)
+			throw new IllegalStateException("Tried reading before calling reset()!");
+		if(length < 0 || length > limit - position)
+			throw new BufferUnderflowException();
+
+		int index = position;
+		position += length;
+
+		return index;
+	}
+}
@@ -0,0 +1,401 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Packets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import Parlo.BufferPool;
+import Parlo.Exceptions.BufferOverflowException;
+
+/**
+ * Writes a packet's fields straight into a pooled buffer, after a header that is
+ * filled in once the packet is finished. Numbers are written little-endian, like
+ * Parlo's headers. A writer can be reused for any number of packets, and doesn't
+ * allocate anything once the pool has warmed up:
+ * <pre>
+ * client.sendAsync(writer.begin(ID).writeInt(x).writeString(name));
+ * </pre>
+ * Read the fields back with a PacketReader. Instances aren't thread safe,
+ * so every thread that sends should have its own writer.
+ */
+public class PacketWriter
+{
+	/**
+	 * The capacity of a new packet's buffer. Buffers grow as needed.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final BufferPool pool;
+	private ByteBuffer buffer;
+	private int headerLength;
+	private byte id;
+	private boolean isReliable;
+
+	/**
+	 * Creates a writer that acquires its buffers from BufferPool.getDefault().
+	 */
+	public PacketWriter()
+	{
+		this(BufferPool.getDefault());
+	}
+
+	/**
+	 * Creates a writer.
+	 * @param pool The pool to acquire buffers from.
+	 */
+	public PacketWriter(BufferPool pool)
+	{
+		if(pool == null)
+			throw new IllegalArgumentException("pool must not be null!");
+
+		this.pool = pool;
+	}
+
+	/**
+	 * Gets the pool this writer acquires its buffers from.
+	 * @return The pool.
+	 */
+	public BufferPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Starts writing a standard (TCP) packet. Anything written since the
+	 * last packet was finished is discarded.
+	 * @param ID The packet's ID.
+	 * @return This writer.
+	 */
+	public PacketWriter begin(byte ID)
+	{
+		return begin(ID, PacketHeaders.STANDARD, false);
+	}
+
+	/**
+	 * Starts writing a UDP packet. Anything written since the last
+	 * packet was finished is discarded.
+	 * @param ID The packet's ID.
+	 * @param IsPacketReliable Should the packet be sent reliably?
+	 * @return This writer.
+	 */
+	public PacketWriter begin(byte ID, boolean IsPacketReliable)
+	{
+		return begin(ID, PacketHeaders.UDP, IsPacketReliable);
+	}
+
+	private PacketWriter begin(byte ID, int HeaderLength, boolean IsPacketReliable)
+	{
+		if(buffer == null)
+		{
+			buffer = pool.acquire(DEFAULT_CAPACITY);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		buffer.clear().position(HeaderLength);
+		headerLength = HeaderLength;
+		id = ID;
+		isReliable = IsPacketReliable;
+
+		return this;
+	}
+
+	/**
+	 * Is this writing a standard (TCP) packet?
+	 * @return True if it is, false if it's writing a UDP packet.
+	 */
+	public boolean isStandard()
+	{
+		return headerLength == PacketHeaders.STANDARD;
+	}
+
+	/**
+	 * Gets the number of bytes written since begin(), excluding the header.
+	 * @return The length of the packet's data.
+	 */
+	public int getDataLength()
+	{
+		checkStarted();
+		return buffer.position() - headerLength;
+	}
+
+	public PacketWriter writeByte(byte value)
+	{
+		ensureRemaining(1).put(value);
+		return this;
+	}
+
+	public PacketWriter writeBoolean(boolean value)
+	{
+		return writeByte((byte)(value ? 1 : 0));
+	}
+
+	public PacketWriter writeShort(short value)
+	{
+		ensureRemaining(2).putShort(value);
+		return this;
+	}
+
+	public PacketWriter writeInt(int value)
+	{
+		ensureRemaining(4).putInt(value);
+		return this;
+	}
+
+	public PacketWriter writeLong(long value)
+	{
+		ensureRemaining(8).putLong(value);
+		return this;
+	}
+
+	public PacketWriter writeFloat(float value)
+	{
+		ensureRemaining(4).putFloat(value);
+		return this;
+	}
+
+	public PacketWriter writeDouble(double value)
+	{
+		ensureRemaining(8).putDouble(value);
+		return this;
+	}
+
+	/**
+	 * Writes an int as a varint, 7 bits at a time, so small numbers take fewer bytes.
+	 * Negative numbers always take 5 bytes.
+	 * @param value The value to write.
+	 * @return This writer.
+	 */
+	public PacketWriter writeVarInt(int value)
+	{
+		ByteBuffer dst = ensureRemaining(5);
+
+		while((value & ~0x7F) != 0)
+		{
+			dst.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		dst.put((byte)value);
+		return this;
+	}
+
+	/**
+	 * Writes a long as a varint, 7 bits at a time, so small numbers take fewer bytes.
+	 * Negative numbers always take 10 bytes.
+	 * @param value The value to write.
+	 * @return This writer.
+	 */
+	public PacketWriter writeVarLong(long value)
+	{
+		ByteBuffer dst = ensureRemaining(10);
+
+		while((value & ~0x7FL) != 0)
+		{
+			dst.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		dst.put((byte)value);
+		return this;
+	}
+
+	/**
+	 * Writes bytes, without their length.
+	 * @param src The bytes to write.
+	 * @return This writer.
+	 */
+	public PacketWriter writeBytes(byte[] src)
+	{
+		return writeBytes(src, 0, src.length);
+	}
+
+	/**
+	 * Writes bytes, without their length.
+	 * @param src The array to write from.
+	 * @param offset The offset of the first byte to write.
+	 * @param length The number of bytes to write.
+	 * @return This writer.
+	 */
+	public PacketWriter writeBytes(byte[] src, int offset, int length)
+	{
+		ensureRemaining(length).put(src, offset, length);
+		return this;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, without their length.
+	 * The buffer's position is advanced to its limit.
+	 * @param src The buffer to write from.
+	 * @return This writer.
+	 */
+	public PacketWriter writeBytes(ByteBuffer src)
+	{
+		ensureRemaining(src.remaining()).put(src);
+		return this;
+	}
+
+	/**
+	 * Writes a string as UTF-8, after its length in bytes as a varint.
+	 * The string is encoded straight into the buffer. Null is written as an empty string.
+	 * @param value The string to write.
+	 * @return This writer.
+	 */
+	public PacketWriter writeString(CharSequence value)
+	{
+		if(value == null)
+			return writeVarInt(0);
+
+		int length = value.length();
+		int encodedLength = 0;
+
+		for(int i = 0; i < length; i++)
+		{
+			char c = value.charAt(i);
+
+			if(c < 0x80)
+				encodedLength++;
+			else if(c < 0x800)
+				encodedLength += 2;
+			else if(isSurrogatePair(value, i))
+			{
+				encodedLength += 4;
+				i++;
+			}
+			else
+				encodedLength += Character.isSurrogate(c) ? 1 : 3;
+		}
+
+		writeVarInt(encodedLength);
+		ByteBuffer dst = ensureRemaining(encodedLength);
+		int position = dst.position();
+
+		//Absolute puts don't update the position after every byte. Most strings are ASCII.
+		if(encodedLength == length)
+		{
+			for(int i = 0; i < length; i++)
+				dst.put(position++, (byte)value.charAt(i));
+		}
+		else
+		{
+			for(int i = 0; i < length; i++)
+			{
+				char c = value.charAt(i);
+
+				if(c < 0x80)
+					dst.put(position++, (byte)c);
+				else if(c < 0x800)
+				{
+					dst.put(position++, (byte)(0xC0 | (c >>> 6)));
+					dst.put(position++, (byte)(0x80 | (c & 0x3F)));
+				}
+				else if(isSurrogatePair(value, i))
+				{
+					int codePoint = Character.toCodePoint(c, value.charAt(++i));
+					dst.put(position++, (byte)(0xF0 | (codePoint >>> 18)));
+					dst.put(position++, (byte)(0x80 | ((codePoint >>> 12) & 0x3F)));
+					dst.put(position++, (byte)(0x80 | ((codePoint >>> 6) & 0x3F)));
+					dst.put(position++, (byte)(0x80 | (codePoint & 0x3F)));
+				}
+				else if(Character.isSurrogate(c))
+					dst.put(position++, (byte)'?'); //A lone surrogate can't be encoded, so it's replaced like String.getBytes() does.
+				else
+				{
+					dst.put(position++, (byte)(0xE0 | (c >>> 12)));
+					dst.put(position++, (byte)(0x80 | ((c >>> 6) & 0x3F)));
+					dst.put(position++, (byte)(0x80 | (c & 0x3F)));
+				}
+			}
+		}
+
+		dst.position(position);
+		return this;
+	}
+
+	/**
+	 * Finishes the packet by filling in its header. The writer hands its buffer
+	 * over to the caller, and acquires a new one for the next packet.
+	 * @return The packet, from its position to its limit. Must be released to
+	 * getPool() once it has been sent. NetworkClient.sendAsync(PacketWriter) does this.
+	 * @throws BufferOverflowException If the packet is too long for its header's length field.
+	 */
+	public ByteBuffer finish() throws BufferOverflowException
+	{
+		checkStarted();
+
+		int length = buffer.position();
+		if(length > Short.MAX_VALUE)
+			throw new BufferOverflowException("Tried to finish a packet longer than " + Short.MAX_VALUE + " bytes!");
+
+		buffer.put(0, id);
+		buffer.put(1, (byte)0);
+
+		if(headerLength == PacketHeaders.UDP)
+		{
+			buffer.put(2, (byte)(isReliable ? 1 : 0));
+			buffer.putShort(3, (short)length);
+		}
+		else
+			buffer.putShort(2, (short)length);
+
+		ByteBuffer packet = buffer.flip();
+		buffer = null;
+		headerLength = 0;
+
+		return packet;
+	}
+
+	/**
+	 * Releases the buffer of a packet that was started, but won't be finished.
+	 */
+	public void discard()
+	{
+		pool.release(buffer);
+		buffer = null;
+		headerLength = 0;
+	}
+
+	private static boolean isSurrogatePair(CharSequence value, int index)
+	{
+		return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length() &&
+				Character.isLowSurrogate(value.charAt(index + 1));
+	}
+
+	private void checkStarted()
+	{
+		if(headerLength == 0)
+			throw new IllegalStateException("Tried writing a packet before calling begin()!");
+	}
+
+	//Grows the buffer into a larger one from the pool if needed, and returns it.
+	private ByteBuffer ensureRemaining(int length)
+	{
+		checkStarted();
+
+		if(buffer.remaining() >= length)
+			return buffer;
+
+		int capacity = buffer.capacity();
+		while(capacity - buffer.position() < length)
+			capacity *= 2;
+
+		ByteBuffer grown = pool.acquire(capacity);
+		grown.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		grown.put(buffer);
+
+		pool.release(buffer);
+		buffer = grown;
+
+		return buffer;
+	}
+}
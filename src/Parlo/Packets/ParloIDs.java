@@ -16,7 +16,9 @@ public enum ParloIDs
 {
     Heartbeat(0xFD),
     SGoodbye(0xFE),
-    CGoodbye(0xFF);
+    CGoodbye(0xFF),
+    Handshake(0xFC),
+    Dictionary(0xFB);
 
     private final int ID;
 
@@ -29,4 +31,20 @@ public enum ParloIDs
     {
         return ID;
     }
+    
+    /**
+     * Is a packet ID used by one of Parlo's own packets?
+     * @param id The packet ID.
+     * @return True if it is, false if it isn't.
+     */
+    public static boolean isReserved(byte id)
+    {
+        for (ParloIDs parloID : values())
+        {
+            if ((byte)parloID.ID == id)
+                return true;
+        }
+        
+        return false;
+    }
 }
@@ -0,0 +1,37 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Packets;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an IPacket class or record that Parlo.Processor.PacketCodecProcessor should
+ * generate an IPacketCodec for. The codec is generated next to the packet, as
+ * &lt;Name&gt;Codec, and is registered in PacketCodecs when it's first used.
+ * Fields are written in the order they're declared in, and can be booleans, numbers,
+ * chars, Strings, byte arrays or enums. Null Strings and arrays are written as empty,
+ * and enums can't be null. Static and transient fields are skipped.
+ * A class's fields and no-argument constructor must not be private.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ParloPacket
+{
+	/**
+	 * The ID of the packet, from 0 to 255. IDs used by ParloIDs are reserved.
+	 */
+	int id();
+}
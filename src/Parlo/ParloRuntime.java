@@ -0,0 +1,312 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by Parlo's channels. Every ParloSocketChannel created
+ * with the same runtime shares one AsynchronousChannelGroup, so the number of
+ * I/O threads stays the same no matter how many clients are connected.
+ * Likewise, every NioSocketChannel is pinned to one of the runtime's 
+ * Selector event loops, and every NetworkClient's heartbeats are scheduled
+ * on the runtime's timer. NetworkClients that offload compression and 
+ * encryption share the runtime's transform pool, and NetworkClients that
+ * use mailboxes share its handler pool. Unless a runtime is specified, channels use the
+ * default runtime, which has one thread per physical core.
+ */
+public class ParloRuntime implements AutoCloseable
+{
+	private static ParloRuntime defaultRuntime;
+	
+	private final int threadCount;
+	
+	//Created the first time a ParloSocketChannel is opened in this runtime.
+	private AsynchronousChannelGroup channelGroup;
+	
+	//Created the first time a NioSocketChannel is opened in this runtime.
+	private NioEventLoop[] eventLoops;
+	private final AtomicInteger nextEventLoopIndex = new AtomicInteger(0);
+	
+	//Created the first time a NetworkClient schedules a heartbeat.
+	private HashedWheelTimer timer;
+	
+	//Created the first time a NetworkClient offloads a packet.
+	private ThreadPoolExecutor transformPool;
+	
+	//Created the first time a NetworkClient posts a packet to its mailbox, or sends a heartbeat.
+	private ForkJoinPool handlerPool;
+	
+	/**
+	 * The number of packets each transform thread can have waiting before
+	 * the threads calling sendAsync() start transforming packets themselves.
+	 */
+	public static final int TRANSFORM_QUEUE_PER_THREAD = 1024;
+	
+	//Like CallerRunsPolicy, but rejects tasks once the pool has been shut down, 
+	//instead of silently dropping them.
+	private static final RejectedExecutionHandler RUN_ON_CALLER = (task, executor) ->
+	{
+		if(executor.isShutdown())
+			throw new RejectedExecutionException("The transform pool has been shut down!");
+		
+		task.run();
+	};
+	
+	/**
+	 * Creates a new runtime with one I/O thread per physical core.
+	 * No threads are started until a channel or NetworkClient needs them.
+	 */
+	public ParloRuntime()
+	{
+		this(defaultThreadCount());
+	}
+	
+	/**
+	 * Creates a new runtime. No threads are started until a channel or NetworkClient needs them.
+	 * @param threadCount The number of I/O threads shared by the runtime's channels.
+	 */
+	public ParloRuntime(int threadCount)
+	{
+		if(threadCount < 1)
+			throw new IllegalArgumentException("threadCount must be at least 1!");
+		
+		this.threadCount = threadCount;
+	}
+	
+	/**
+	 * Gets the default runtime, creating it if it doesn't exist yet.
+	 * @return The default runtime.
+	 */
+	public static synchronized ParloRuntime getDefault()
+	{
+		if(defaultRuntime == null)
+			defaultRuntime = new ParloRuntime();
+		
+		return defaultRuntime;
+	}
+	
+	/**
+	 * Sets the default runtime. Only affects channels created after this call, so
+	 * it should be called before creating any Listener or NetworkClient.
+	 * @param runtime The runtime to use by default.
+	 */
+	public static synchronized void setDefault(ParloRuntime runtime)
+	{
+		if(runtime == null)
+			throw new IllegalArgumentException("runtime was null!");
+		
+		defaultRuntime = runtime;
+	}
+	
+	/**
+	 * Gets the default number of threads, which is the number of physical 
+	 * cores, or the number of logical processors if that couldn't be determined.
+	 * @return The default number of threads.
+	 */
+	public static int defaultThreadCount()
+	{
+		Integer numberOfCores = PhysicalCores.physicalCoreCount();
+		
+		return (numberOfCores != null && numberOfCores > 0) ? numberOfCores : 
+			Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Gets the number of I/O threads used by this runtime.
+	 * @return The number of I/O threads.
+	 */
+	public int getThreadCount()
+	{
+		return threadCount;
+	}
+	
+	/**
+	 * Gets the AsynchronousChannelGroup shared by this runtime's channels,
+	 * creating it if it doesn't exist yet.
+	 * @return The channel group.
+	 * @throws IOException If the channel group couldn't be created.
+	 */
+	public synchronized AsynchronousChannelGroup getChannelGroup() throws IOException
+	{
+		if(channelGroup == null)
+		{
+			channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threadCount, 
+					newThreadFactory("Parlo-IO-"));
+		}
+		
+		return channelGroup;
+	}
+	
+	/**
+	 * Opens a new channel in this runtime.
+	 * @param transport The kind of channel to open.
+	 * @param server Is this a server socket channel?
+	 * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+	 * @return The new channel, which can be passed to a Listener or NetworkClient.
+	 * @throws IOException If the channel couldn't be opened.
+	 */
+	public IAsyncSocketChannel openChannel(Transport transport, boolean server, boolean keepAlive) 
+			throws IOException
+	{
+		switch(transport)
+		{
+			case EventLoop:
+				return new NioSocketChannel(server, keepAlive, this);
+			case VirtualThreads: //Virtual threads are scheduled by the JVM, not by the runtime.
+				return new VirtualThreadSocketChannel(server, keepAlive, this);
+			case AsynchronousIO:
+			default:
+				return new ParloSocketChannel(server, keepAlive, this);
+		}
+	}
+	
+	/**
+	 * Gets the event loop that the next NioSocketChannel should be pinned to.
+	 * The runtime has one event loop per thread, and channels are spread 
+	 * over them round-robin.
+	 * @return An event loop.
+	 * @throws IOException If the event loops couldn't be created.
+	 */
+	synchronized NioEventLoop nextEventLoop() throws IOException
+	{
+		if(eventLoops == null)
+		{
+			ThreadFactory threadFactory = newThreadFactory("Parlo-EventLoop-");
+			NioEventLoop[] loops = new NioEventLoop[threadCount];
+			
+			for(int i = 0; i < threadCount; i++)
+				loops[i] = new NioEventLoop(threadFactory);
+			
+			eventLoops = loops;
+		}
+		
+		return eventLoops[Math.floorMod(nextEventLoopIndex.getAndIncrement(), eventLoops.length)];
+	}
+	
+	/**
+	 * Gets the timer that schedules heartbeats and missed heartbeat checks
+	 * for every NetworkClient in this runtime.
+	 * @return The timer.
+	 */
+	public synchronized HashedWheelTimer getTimer()
+	{
+		if(timer == null)
+			timer = new HashedWheelTimer(newThreadFactory("Parlo-Timer-"));
+
+		return timer;
+	}
+	
+	/**
+	 * Gets the pool that compresses and encrypts packets for NetworkClients
+	 * that offload them. It has one thread per I/O thread, and a bounded queue.
+	 * When the queue is full, the thread that sent the packet transforms it,
+	 * which keeps senders from queueing more work than the pool can keep up with.
+	 * Once the runtime has been closed, it throws RejectedExecutionException.
+	 * @return The transform pool.
+	 */
+	public synchronized ExecutorService getTransformPool()
+	{
+		if(transformPool == null)
+		{
+			transformPool = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<>(threadCount * TRANSFORM_QUEUE_PER_THREAD),
+					newThreadFactory("Parlo-Transform-"), RUN_ON_CALLER);
+		}
+		
+		return transformPool;
+	}
+	
+	/**
+	 * Gets the work-stealing pool that runs packet handlers for NetworkClients
+	 * that use mailboxes. It has one thread per logical processor, since handlers
+	 * are usually bound by the CPU rather than by I/O. Each client's mailbox is 
+	 * run by one thread at a time, so its packets are handled in order, while the 
+	 * mailboxes of different clients are spread over every thread. It also sends
+	 * heartbeats and runs connection lost callbacks, so they don't hold up the timer.
+	 * @return The handler pool.
+	 */
+	public synchronized ForkJoinPool getHandlerPool()
+	{
+		if(handlerPool == null)
+		{
+			AtomicInteger threadNumber = new AtomicInteger(0);
+			
+			//Async mode runs mailboxes in the order they were scheduled in, which is fairer
+			//to the other clients than running the most recently scheduled one first.
+			handlerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> 
+			{
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("Parlo-Handler-" + threadNumber.incrementAndGet());
+				return thread;
+			}, null, true);
+		}
+		
+		return handlerPool;
+	}
+	
+	/**
+	 * Creates a factory for daemon threads, so that the runtime
+	 * doesn't keep the program alive.
+	 * @param prefix The prefix of the thread names.
+	 * @return The thread factory.
+	 */
+	static ThreadFactory newThreadFactory(String prefix)
+	{
+		AtomicInteger threadNumber = new AtomicInteger(0);
+		
+		return runnable -> 
+		{
+			Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+	/**
+	 * Shuts the runtime down. Channels that are still open
+	 * will keep working until they're closed.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if(channelGroup != null)
+			channelGroup.shutdown();
+		
+		if(eventLoops != null)
+		{
+			for(NioEventLoop eventLoop : eventLoops)
+				eventLoop.close();
+		}
+		
+		if(timer != null)
+			timer.close();
+		
+		if(transformPool != null)
+			transformPool.shutdown();
+		
+		if(handlerPool != null)
+			handlerPool.shutdown();
+	}
+}
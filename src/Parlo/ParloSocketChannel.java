@@ -33,14 +33,26 @@ public class ParloSocketChannel implements IAsyncSocketChannel
     private SocketAddress address;
     
     private boolean isServer = false;
+    private ParloRuntime runtime;
 
     /**
      * Constructor used for constructing a new instance from accept().
      * @param ch The channel from which to construct a new instance.
      */
     public ParloSocketChannel(AsynchronousSocketChannel ch)
+    {
+    	this(ch, null);
+    }
+    
+    /**
+     * Constructor used for constructing a new instance from accept().
+     * @param ch The channel from which to construct a new instance.
+     * @param runtime The runtime of the server socket channel that accepted ch.
+     */
+    private ParloSocketChannel(AsynchronousSocketChannel ch, ParloRuntime runtime)
     {
     	channel = ch;
+    	this.runtime = runtime;
     	
     	int numLogicalProcessors = Runtime.getRuntime().availableProcessors();
         int numberOfCores = PhysicalCores.physicalCoreCount();
@@ -48,25 +60,43 @@ public class ParloSocketChannel implements IAsyncSocketChannel
         		numberOfCores : numLogicalProcessors);
     }
     
+    /**
+     * Creates a new channel in the default ParloRuntime.
+     * @param server Is this a server socket channel?
+     * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+     */
     public ParloSocketChannel(boolean server, boolean keepAlive) throws IOException 
     {
+    	this(server, keepAlive, ParloRuntime.getDefault());
+    }
+    
+    /**
+     * Creates a new channel in the specified ParloRuntime. Channels accepted by
+     * a server socket channel share its runtime.
+     * @param server Is this a server socket channel?
+     * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+     * @param runtime The runtime whose threads will handle this channel's I/O.
+     */
+    public ParloSocketChannel(boolean server, boolean keepAlive, ParloRuntime runtime) throws IOException 
+    {
+    	if(runtime == null)
+    		throw new IllegalArgumentException("runtime was null!");
+    	
     	int numLogicalProcessors = Runtime.getRuntime().availableProcessors();
         int numberOfCores = PhysicalCores.physicalCoreCount();
         socketSemaphore = new Semaphore((numberOfCores > numLogicalProcessors) ? 
         		numberOfCores : numLogicalProcessors);
         
         isServer = server;
+        this.runtime = runtime;
         
         if(!server)
         {
-        	channel = AsynchronousSocketChannel.open();
-        	channel.setOption(SocketOption.class.cast(SocketOptions.SO_KEEPALIVE), keepAlive);
-        }
-        else
-        {
-        	serverChannel = AsynchronousServerSocketChannel.open();
-        	serverChannel.setOption(SocketOption.class.cast(SocketOptions.SO_KEEPALIVE), keepAlive);
+        	channel = AsynchronousSocketChannel.open(runtime.getChannelGroup());
+        	channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
         }
+        else //Server sockets don't support SO_KEEPALIVE.
+        	serverChannel = AsynchronousServerSocketChannel.open(runtime.getChannelGroup());
     }
 	
 	/**
@@ -131,14 +161,14 @@ public class ParloSocketChannel implements IAsyncSocketChannel
 		            @Override
 		            public IAsyncSocketChannel get() throws InterruptedException, ExecutionException 
 		            {
-		                return new ParloSocketChannel(futureChannel.get());
+		                return new ParloSocketChannel(futureChannel.get(), runtime);
 		            }
 	
 		            @Override
 		            public IAsyncSocketChannel get(long timeout, TimeUnit unit)
 		                    throws InterruptedException, ExecutionException, TimeoutException 
 		            {
-		                return new ParloSocketChannel(futureChannel.get(timeout, unit));
+		                return new ParloSocketChannel(futureChannel.get(timeout, unit), runtime);
 		            }
 	
 		            @Override
@@ -230,6 +260,21 @@ public class ParloSocketChannel implements IAsyncSocketChannel
 		}
 	}
 	
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * The handler is invoked when the read completes or fails.
+	 * Does nothing if this is a server socket channel.
+	 * @param dst The destination to read into.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	public <A> void read(ByteBuffer dst, A attachment, 
+			CompletionHandler<Integer,? super A> handler)
+	{
+		if(!isServer)
+			channel.read(dst, attachment, handler);
+	}
+	
 	/**
 	 * Writes a sequence of bytes to this channel from the given buffer.
 	 * @param src The source to write from.
@@ -241,6 +286,31 @@ public class ParloSocketChannel implements IAsyncSocketChannel
 		if(!isServer)
 			channel.write(src, attachment, handler);
 	}
+	
+	/**
+	 * Writes a sequence of bytes to this channel from a subsequence of the given buffers,
+	 * in a single gathering write. Does nothing if this is a server socket channel.
+	 * @param srcs The buffers to write from.
+	 * @param offset The index of the first buffer to write from.
+	 * @param length The number of buffers to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment, 
+			CompletionHandler<Long,? super A> handler)
+	{
+		if(!isServer)
+			channel.write(srcs, offset, length, 0L, TimeUnit.MILLISECONDS, attachment, handler);
+	}
+
+	/**
+	 * Gets the runtime this channel was opened in.
+	 * @return The runtime, or null if it was created from an AsynchronousSocketChannel.
+	 */
+	public ParloRuntime getRuntime()
+	{
+		return runtime;
+	}
 
 	/**
 	 * Tells whether or not this channels is open.
@@ -14,23 +14,26 @@ Contributor(s): ______________________________________.
 package Parlo;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import Parlo.Packets.*;
 import Parlo.Exceptions.*;
 
 public class ProcessingBuffer implements AutoCloseable 
 {
     public static int MAX_PACKET_SIZE = 1024;
-    private BlockingQueue<Byte> internalBuffer = new ArrayBlockingQueue<>(MAX_PACKET_SIZE);
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    
+    //Received bytes are stored in a growable ring buffer of primitive bytes,
+    //so that adding and framing data doesn't box or lock every single byte.
+    //It's acquired from the heap BufferPool once data is added, as framing 
+    //accesses it byte by byte, which is faster on the heap than in direct memory.
+    private final BufferPool bufferPool = BufferPool.getHeap();
+    private ByteBuffer m_PooledBuffer;
+    private byte[] internalBuffer;
+    private boolean m_IsClosed = false;
+    private int m_Head = 0;  //Index of the first unread byte.
+    private int m_Count = 0; //Number of unread bytes.
+    private final Object bufferLock = new Object();
+    private final Object processingLock = new Object(); //Keeps packets in order while they're dispatched.
+    private byte[] m_HeaderBuf = new byte[PacketHeaders.STANDARD];
 
     private boolean m_HasReadHeader = false;
     private byte m_CurrentID;       //ID of current packet.
@@ -40,103 +43,342 @@ public class ProcessingBuffer implements AutoCloseable
     private ProcessedPacketDelegate onProcessedPacketDelegate;
     
     /**
-     * Gets, but does NOT set the internal buffer.
+     * Gets the number of bytes currently buffered, I.E bytes that
+     * have been added but not yet processed into a packet.
+     * Used by tests.
+     * @return The number of buffered bytes.
+     */
+    public int getBufferedByteCount()
+    {
+    	synchronized(bufferLock)
+    	{
+    		return m_Count;
+    	}
+    }
+    
+    /**
+     * Peeks at a buffered byte without consuming it.
      * Used by tests.
-     * @return The internal buffer.
+     * @param index The index of the byte, relative to the first unread byte.
+     * @return The byte at the specified index.
+     * @throws IndexOutOfBoundsException If index is outside of the buffered data.
      */
-    public BlockingQueue<Byte> getInternalBuffer()
+    public byte peek(int index)
     {
-    	return internalBuffer;
+    	synchronized(bufferLock)
+    	{
+    		if(index < 0 || index >= m_Count)
+    			throw new IndexOutOfBoundsException("Tried peeking outside of the buffered data!");
+    		
+    		return internalBuffer[(m_Head + index) & (internalBuffer.length - 1)];
+    	}
     }
     
     public ProcessingBuffer(ProcessedPacketDelegate delegate) 
     {
         this.onProcessedPacketDelegate = delegate;
-        CompletableFuture future = CompletableFuture.runAsync(() ->
-        {
-            try 
-            {
-                while (!Thread.currentThread().isInterrupted()) 
-                {
-                    if (internalBuffer.size() >= (int)PacketHeaders.STANDARD) 
-                    {
-                        if (!m_HasReadHeader) 
-                        {
-                            m_CurrentID = internalBuffer.take();
-                            m_IsCompressed = internalBuffer.take();
-
-                            byte[] LengthBuf = new byte[2];
-
-                            for (int i = 0; i < LengthBuf.length; i++)
-                                LengthBuf[i] = internalBuffer.take();
-
-                            m_CurrentLength = ByteBuffer.wrap(LengthBuf).order(ByteOrder.LITTLE_ENDIAN).getShort();
-
-                            m_HasReadHeader = true;
-                        }
-                    }
-
-                    if (m_HasReadHeader) 
-                    {
-                        if (internalBuffer.size() >= (m_CurrentLength - PacketHeaders.STANDARD)) 
-                        {
-                            byte[] PacketData = new byte[m_CurrentLength - PacketHeaders.STANDARD];
-
-                            for (int i = 0; i < PacketData.length; i++)
-                                PacketData[i] = internalBuffer.take();
+    }
+    
+    /**
+     * Processes every complete packet currently in the buffer, and
+     * hands each of them to the ProcessedPacketDelegate.
+     * Called by addData(), so it normally doesn't need to be called directly.
+     * @return The number of packets that were processed.
+     * @throws InterruptedException If the ProcessedPacketDelegate was interrupted.
+     */
+    public int processBufferedPackets() throws InterruptedException
+    {
+    	synchronized(processingLock)
+    	{
+    		return dispatchBufferedPackets();
+    	}
+    }
+    
+    private int dispatchBufferedPackets() throws InterruptedException
+    {
+    	int numProcessed = 0;
+    	
+    	while(true)
+    	{
+    		Packet P = null;
+    		
+	    	synchronized(bufferLock)
+	    	{
+	            if (!m_HasReadHeader && m_Count >= PacketHeaders.STANDARD) 
+	            {
+	            	read(m_HeaderBuf, 0, PacketHeaders.STANDARD);
+	            	
+	                m_CurrentID = m_HeaderBuf[0];
+	                m_IsCompressed = m_HeaderBuf[1];
+	                m_CurrentLength = (short)((m_HeaderBuf[2] & 0xFF) | (m_HeaderBuf[3] << 8));
+	                
+	                if(m_CurrentLength < PacketHeaders.STANDARD)
+	                {
+	                	//The header is garbage, so there's no way of finding the next packet.
+	                	Logger.log("ProcessingBuffer received a packet with an invalid length!", LogLevel.error);
+	                	m_Head = 0;
+	                	m_Count = 0;
+	                	return numProcessed;
+	                }
+	
+	                m_HasReadHeader = true;
+	            }
+	
+	            if (m_HasReadHeader && m_Count >= (m_CurrentLength - PacketHeaders.STANDARD)) 
+	            {
+	                byte[] PacketData = new byte[m_CurrentLength - PacketHeaders.STANDARD];
+	                read(PacketData, 0, PacketData.length);
+	
+	                m_HasReadHeader = false;
+	                P = new Packet(m_CurrentID, PacketData, m_IsCompressed);
+	            }
+	    	}
+	    	
+	    	if(P == null)
+	    		return numProcessed;
+	    	
+	    	onProcessedPacketDelegate.onProcessedPacket(P);
+	    	numProcessed++;
+    	}
+    }
 
-                            m_HasReadHeader = false;
+    public void addData(byte[] Data) throws BufferOverflowException 
+    {
+    	addData(ByteBuffer.wrap(Data));
+    }
+    
+    /**
+     * Adds the remaining bytes of a buffer, and processes any packets
+     * that were completed by them. The buffer's position is advanced
+     * to its limit. Data added after the buffer has been closed is dropped.
+     * @param Data The buffer to read data from.
+     * @throws BufferOverflowException If more than MAX_PACKET_SIZE bytes remain in Data.
+     */
+    public void addData(ByteBuffer Data) throws BufferOverflowException 
+    {
+    	int length = Data.remaining();
+    	
+        if (length > MAX_PACKET_SIZE) 
+        {
+            Logger.log("Tried adding too much data to ProcessingBuffer!", LogLevel.error);
+            throw new BufferOverflowException("Buffer overflow occured when receiving data!");
+        }
 
-                            Packet P;
-                            P = new Packet(m_CurrentID, PacketData, m_IsCompressed == 1);
-                            
-                            onProcessedPacketDelegate.onProcessedPacket(P);
-                        }
-                    }
-                    
-                    //Don't hog the processor!
-                    Thread.sleep(10);
-                }
-            } 
-            catch (InterruptedException e)
-            {
-                Thread.currentThread().interrupt();
-            }
-        });
+        if (!append(Data, length))
+        	return;
         
-        //Make sure the async task terminates when the program terminates
-        //or after a user interrupt.
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> 
+        //Packets are processed as soon as their last byte arrives, 
+        //on the thread that added it.
+        try
         {
-            future.cancel(true);
-            executor.shutdown();
-            try 
-            {
-                if (!executor.awaitTermination(800, TimeUnit.MILLISECONDS)) 
-                    executor.shutdownNow();
-            } 
-            catch (InterruptedException e) 
-            {
-                executor.shutdownNow();
-            }
-        }));
+        	processBufferedPackets();
+        }
+        catch(InterruptedException exception)
+        {
+        	Logger.log("Thread was interrupted while processing packets: " + exception.getMessage(), 
+        			LogLevel.error);
+        	Thread.currentThread().interrupt();
+        }
     }
-
-    public void addData(byte[] Data) throws BufferOverflowException 
+    
+    /**
+     * Adds the remaining bytes of a pooled buffer, and processes any packets that
+     * were completed by them. Packets that lie entirely within the buffer are passed
+     * to the ProcessedPacketDelegate as views of it, without being copied, and are
+     * released once the delegate returns. Only packets that start or end outside of 
+     * the buffer are copied. The buffer's position is advanced to its limit.
+     * @param Data The buffer to read data from. The caller keeps its own reference to it.
+     * @throws BufferOverflowException If more than MAX_PACKET_SIZE bytes remain in Data.
+     */
+    public void addData(RefCountedBuffer Data) throws BufferOverflowException 
     {
-        if (Data.length > MAX_PACKET_SIZE) 
+    	ByteBuffer buffer = Data.getBuffer();
+    	
+        if (buffer.remaining() > MAX_PACKET_SIZE) 
         {
             Logger.log("Tried adding too much data to ProcessingBuffer!", LogLevel.error);
             throw new BufferOverflowException("Buffer overflow occured when receiving data!");
         }
-
-        for (int i = 0; i < Data.length; i++)
-            internalBuffer.add(Data[i]);
+        
+        try
+        {
+        	synchronized(processingLock)
+        	{
+        		while (buffer.hasRemaining())
+        		{
+        			int needed;
+        			
+        			synchronized(bufferLock)
+        			{
+        				if (m_IsClosed)
+        				{
+        					buffer.position(buffer.limit());
+        					return;
+        				}
+        				
+        				needed = getBytesNeeded();
+        			}
+        			
+        			//Finishes the packet that was started by an earlier buffer.
+        			if (needed > 0)
+        			{
+        				if (!append(buffer, Math.min(needed, buffer.remaining())))
+        					return;
+        				
+        				dispatchBufferedPackets();
+        				continue;
+        			}
+        			
+        			int position = buffer.position();
+        			int remaining = buffer.remaining();
+        			short length = (remaining >= PacketHeaders.STANDARD) ? 
+        					(short)((buffer.get(position + 2) & 0xFF) | (buffer.get(position + 3) << 8)) : 0;
+        			
+        			//A packet that ends outside of the buffer is buffered until the rest arrives.
+        			//Its header is read right away, so the next buffer knows how much is needed.
+        			if (remaining < PacketHeaders.STANDARD || length > remaining)
+        			{
+        				if (append(buffer, remaining))
+        					dispatchBufferedPackets();
+        				return;
+        			}
+        			
+        			if (length < PacketHeaders.STANDARD)
+        			{
+        				//The header is garbage, so there's no way of finding the next packet.
+        				Logger.log("ProcessingBuffer received a packet with an invalid length!", LogLevel.error);
+        				buffer.position(buffer.limit());
+        				return;
+        			}
+        			
+        			Packet P = new Packet(buffer.get(position), Data, position + PacketHeaders.STANDARD, 
+        					length - PacketHeaders.STANDARD, buffer.get(position + 1));
+        			buffer.position(position + length);
+        			
+        			try
+        			{
+        				onProcessedPacketDelegate.onProcessedPacket(P);
+        			}
+        			finally
+        			{
+        				P.release();
+        			}
+        		}
+        	}
+        }
+        catch(InterruptedException exception)
+        {
+        	Logger.log("Thread was interrupted while processing packets: " + exception.getMessage(), 
+        			LogLevel.error);
+        	Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Gets the number of bytes needed to finish the packet in the ring buffer.
+     * The caller must hold bufferLock.
+     * @return The number of bytes, or 0 if the ring buffer is empty.
+     */
+    private int getBytesNeeded()
+    {
+    	if (m_HasReadHeader)
+    		return (m_CurrentLength - PacketHeaders.STANDARD) - m_Count;
+    	
+    	return (m_Count > 0) ? PacketHeaders.STANDARD - m_Count : 0;
+    }
+    
+    /**
+     * Copies bytes from a buffer into the ring buffer.
+     * @param Data The buffer to copy from. Its position is advanced past the bytes copied,
+     * or to its limit if the ProcessingBuffer has been closed.
+     * @param length The number of bytes to copy.
+     * @return False if the ProcessingBuffer has been closed, true otherwise.
+     */
+    private boolean append(ByteBuffer Data, int length)
+    {
+        synchronized(bufferLock)
+        {
+        	if(m_IsClosed)
+        	{
+        		Data.position(Data.limit());
+        		return false;
+        	}
+        	
+        	ensureCapacity(m_Count + length);
+        	
+        	int mask = internalBuffer.length - 1;
+        	int tail = (m_Head + m_Count) & mask;
+        	int firstChunk = Math.min(length, internalBuffer.length - tail);
+        	
+        	Data.get(internalBuffer, tail, firstChunk);
+        	Data.get(internalBuffer, 0, length - firstChunk);
+        	m_Count += length;
+        	
+        	return true;
+        }
+    }
+    
+    /**
+     * Copies buffered bytes into dst and consumes them.
+     * The caller must hold bufferLock and make sure that length bytes are available.
+     */
+    private void read(byte[] dst, int offset, int length)
+    {
+    	int firstChunk = Math.min(length, internalBuffer.length - m_Head);
+    	
+    	System.arraycopy(internalBuffer, m_Head, dst, offset, firstChunk);
+    	System.arraycopy(internalBuffer, 0, dst, offset + firstChunk, length - firstChunk);
+    	
+    	m_Head = (m_Head + length) & (internalBuffer.length - 1);
+    	m_Count -= length;
+    }
+    
+    /**
+     * Grows the ring buffer so that it can hold at least capacity bytes.
+     * The caller must hold bufferLock.
+     */
+    private void ensureCapacity(int capacity)
+    {
+    	if(internalBuffer != null && capacity <= internalBuffer.length)
+    		return;
+    	
+    	ByteBuffer pooledBuffer = bufferPool.acquire(roundUpToPowerOfTwo(Math.max(capacity, MAX_PACKET_SIZE * 2)));
+    	byte[] newBuffer = pooledBuffer.array();
+    	int count = m_Count;
+    	
+    	if(internalBuffer != null)
+    	{
+    		read(newBuffer, 0, count);
+    		bufferPool.release(m_PooledBuffer);
+    	}
+    	
+    	m_PooledBuffer = pooledBuffer;
+    	internalBuffer = newBuffer;
+    	m_Head = 0;
+    	m_Count = count;
+    }
+    
+    private static int roundUpToPowerOfTwo(int value)
+    {
+    	return (value <= 1) ? 1 : Integer.highestOneBit(value - 1) << 1;
     }
 
+    /**
+     * Discards any buffered data, and returns the ring buffer to the BufferPool.
+     */
     @Override
     public void close() 
     {
-        executor.shutdown();
+    	synchronized(bufferLock)
+    	{
+    		m_Head = 0;
+    		m_Count = 0;
+    		m_HasReadHeader = false;
+    		
+    		m_IsClosed = true;
+    		bufferPool.release(m_PooledBuffer);
+    		m_PooledBuffer = null;
+    		internalBuffer = null;
+    	}
     }
 }
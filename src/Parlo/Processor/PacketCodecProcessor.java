@@ -0,0 +1,481 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo.Processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.RecordComponentElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import Parlo.Packets.ParloIDs;
+import Parlo.Packets.ParloPacket;
+
+/**
+ * Generates an IPacketCodec for every class and record annotated with ParloPacket.
+ * The codecs write fields straight to a PacketWriter and read them from a PacketReader,
+ * without reflection. Every codec is listed in META-INF/services/Parlo.Packets.IPacketCodec,
+ * so PacketCodecs registers them by itself. Runs automatically when Parlo is on javac's
+ * class path. Build tools that set a processor path, such as Maven's annotationProcessorPaths,
+ * must include Parlo in it.
+ */
+@SupportedAnnotationTypes("Parlo.Packets.ParloPacket")
+public class PacketCodecProcessor extends AbstractProcessor
+{
+	private static final String SERVICE_FILE = "META-INF/services/Parlo.Packets.IPacketCodec";
+
+	private final List<String> codecs = new ArrayList<>();
+	private final Map<Integer, String> packetsByID = new HashMap<>();
+
+	//A field or record component, and how it's accessed.
+	private static class Field
+	{
+		final Element element;
+		final String name;
+		final TypeMirror type;
+		final String access;
+
+		Field(Element element, String access)
+		{
+			this.element = element;
+			this.name = element.getSimpleName().toString();
+			this.type = element.asType();
+			this.access = access;
+		}
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		for(Element element : roundEnv.getElementsAnnotatedWith(ParloPacket.class))
+		{
+			try
+			{
+				generateCodec(element);
+			}
+			catch(IOException exception)
+			{
+				error(element, "Couldn't write codec: " + exception.getMessage());
+			}
+		}
+
+		if(roundEnv.processingOver() && !codecs.isEmpty())
+			writeServiceFile();
+
+		return true;
+	}
+
+	private void generateCodec(Element element) throws IOException
+	{
+		if(element.getKind() != ElementKind.CLASS && element.getKind() != ElementKind.RECORD)
+		{
+			error(element, "@ParloPacket can only be used on classes and records.");
+			return;
+		}
+
+		TypeElement type = (TypeElement)element;
+		int id = type.getAnnotation(ParloPacket.class).id();
+
+		if(!checkType(type) || !checkID(type, id))
+			return;
+
+		boolean isRecord = type.getKind() == ElementKind.RECORD;
+		List<Field> fields = isRecord ? getRecordComponents(type) : getFields(type);
+		if(fields == null)
+			return;
+
+		String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		String codecName = getCodecName(type);
+		String packetName = type.getQualifiedName().toString();
+
+		StringBuilder source = new StringBuilder();
+		if(!packageName.isEmpty())
+			source.append("package ").append(packageName).append(";\n\n");
+
+		source.append("import Parlo.Packets.IPacketCodec;\n");
+		source.append("import Parlo.Packets.PacketReader;\n");
+		source.append("import Parlo.Packets.PacketWriter;\n\n");
+		source.append("/**\n * Encodes and decodes ").append(packetName).append(".\n");
+		source.append(" * Generated by ").append(getClass().getName()).append(", don't edit it.\n */\n");
+		source.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+		source.append("public final class ").append(codecName).append(" implements IPacketCodec<")
+				.append(packetName).append(">\n{\n");
+		source.append("\tpublic static final byte ID = (byte)").append(id).append(";\n");
+
+		for(Field field : fields)
+		{
+			if(isEnum(field.type))
+			{
+				//values() copies the array every time it's called.
+				String enumName = ((TypeElement)((DeclaredType)field.type).asElement()).getQualifiedName().toString();
+				source.append("\tprivate static final ").append(enumName).append("[] ").append(field.name)
+						.append("Values = ").append(enumName).append(".values();\n");
+			}
+		}
+
+		source.append("\n\t@Override\n\tpublic byte getID()\n\t{\n\t\treturn ID;\n\t}\n\n");
+		source.append("\t@Override\n\tpublic Class<").append(packetName).append("> getPacketClass()\n\t{\n");
+		source.append("\t\treturn ").append(packetName).append(".class;\n\t}\n\n");
+
+		source.append("\t@Override\n\tpublic void encode(").append(packetName)
+				.append(" packet, PacketWriter writer)\n\t{\n");
+		for(Field field : fields)
+			source.append("\t\t").append(writeStatement(field)).append("\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n\tpublic ").append(packetName).append(" decode(PacketReader reader)\n\t{\n");
+		if(isRecord)
+		{
+			StringBuilder arguments = new StringBuilder();
+
+			for(int i = 0; i < fields.size(); i++)
+			{
+				String local = "field" + i;
+				appendRead(source, fields.get(i), fields.get(i).type.toString() + " " + local);
+				arguments.append(i > 0 ? ", " : "").append(local);
+			}
+
+			source.append("\t\treturn new ").append(packetName).append("(").append(arguments).append(");\n");
+		}
+		else
+		{
+			source.append("\t\t").append(packetName).append(" packet = new ").append(packetName).append("();\n");
+
+			for(Field field : fields)
+				appendRead(source, field, "packet." + field.name);
+
+			source.append("\t\treturn packet;\n");
+		}
+		source.append("\t}\n}\n");
+
+		String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+		try(Writer writer = processingEnv.getFiler().createSourceFile(qualifiedCodecName, type).openWriter())
+		{
+			writer.write(source.toString());
+		}
+
+		codecs.add(qualifiedCodecName);
+	}
+
+	private boolean checkType(TypeElement type)
+	{
+		TypeElement packetInterface = processingEnv.getElementUtils().getTypeElement("Parlo.Packets.IPacket");
+		if(!processingEnv.getTypeUtils().isAssignable(type.asType(), packetInterface.asType()))
+		{
+			error(type, "@ParloPacket classes must implement IPacket.");
+			return false;
+		}
+
+		if(!type.getTypeParameters().isEmpty())
+		{
+			error(type, "@ParloPacket classes can't be generic.");
+			return false;
+		}
+
+		for(Element enclosing = type; !(enclosing instanceof PackageElement); enclosing = enclosing.getEnclosingElement())
+		{
+			if(!(enclosing instanceof TypeElement) || enclosing.getModifiers().contains(Modifier.PRIVATE))
+			{
+				error(type, "@ParloPacket classes must be visible to the rest of their package.");
+				return false;
+			}
+
+			TypeElement enclosingType = (TypeElement)enclosing;
+
+			if(enclosingType.getNestingKind() == NestingKind.LOCAL ||
+					enclosingType.getNestingKind() == NestingKind.ANONYMOUS)
+			{
+				error(type, "@ParloPacket classes must be visible to the rest of their package.");
+				return false;
+			}
+
+			if(enclosingType == type && enclosingType.getNestingKind() == NestingKind.MEMBER &&
+					!enclosingType.getModifiers().contains(Modifier.STATIC) && type.getKind() != ElementKind.RECORD)
+			{
+				error(type, "@ParloPacket classes that are nested in another class must be static.");
+				return false;
+			}
+		}
+
+		if(type.getKind() == ElementKind.CLASS)
+		{
+			if(type.getModifiers().contains(Modifier.ABSTRACT))
+			{
+				error(type, "@ParloPacket classes can't be abstract.");
+				return false;
+			}
+
+			boolean hasConstructor = false;
+			for(ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			{
+				if(constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE))
+					hasConstructor = true;
+			}
+
+			if(!hasConstructor)
+			{
+				error(type, "@ParloPacket classes must have a constructor without arguments that isn't private.");
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean checkID(TypeElement type, int id)
+	{
+		if(id < 0 || id > 255)
+		{
+			error(type, "Packet IDs must be from 0 to 255.");
+			return false;
+		}
+
+		for(ParloIDs parloID : ParloIDs.values())
+		{
+			if(id == parloID.GetID())
+			{
+				error(type, "Packet ID " + id + " is reserved for " + parloID + ".");
+				return false;
+			}
+		}
+
+		String packetName = type.getQualifiedName().toString();
+		String existing = packetsByID.putIfAbsent(id, packetName);
+		if(existing != null && !existing.equals(packetName))
+		{
+			error(type, "Packet ID " + id + " is already used by " + existing + ".");
+			return false;
+		}
+
+		return true;
+	}
+
+	private List<Field> getRecordComponents(TypeElement type)
+	{
+		List<Field> fields = new ArrayList<>();
+
+		for(RecordComponentElement component : type.getRecordComponents())
+		{
+			Field field = new Field(component, "packet." + component.getSimpleName() + "()");
+			if(!checkFieldType(field))
+				return null;
+
+			fields.add(field);
+		}
+
+		return fields;
+	}
+
+	private List<Field> getFields(TypeElement type)
+	{
+		List<Field> fields = new ArrayList<>();
+		boolean valid = true;
+
+		for(VariableElement variable : ElementFilter.fieldsIn(type.getEnclosedElements()))
+		{
+			Set<Modifier> modifiers = variable.getModifiers();
+			if(modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+				continue;
+
+			if(modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL))
+			{
+				error(variable, "Fields of @ParloPacket classes can't be private or final. "
+						+ "Make the field transient to skip it.");
+				valid = false;
+				continue;
+			}
+
+			Field field = new Field(variable, "packet." + variable.getSimpleName());
+			if(!checkFieldType(field))
+				valid = false;
+
+			fields.add(field);
+		}
+
+		return valid ? fields : null;
+	}
+
+	private boolean checkFieldType(Field field)
+	{
+		if(field.type.getKind().isPrimitive() || isString(field.type) || isEnum(field.type) || isByteArray(field.type))
+			return true;
+
+		error(field.element, "Fields of @ParloPacket classes must be booleans, numbers, chars, "
+				+ "Strings, byte arrays or enums, but " + field.name + " is a " + field.type + ".");
+		return false;
+	}
+
+	private String writeStatement(Field field)
+	{
+		String value = field.access;
+
+		switch(field.type.getKind())
+		{
+			case BOOLEAN: return "writer.writeBoolean(" + value + ");";
+			case BYTE: return "writer.writeByte(" + value + ");";
+			case SHORT: return "writer.writeShort(" + value + ");";
+			case CHAR: return "writer.writeShort((short)" + value + ");";
+			case INT: return "writer.writeInt(" + value + ");";
+			case LONG: return "writer.writeLong(" + value + ");";
+			case FLOAT: return "writer.writeFloat(" + value + ");";
+			case DOUBLE: return "writer.writeDouble(" + value + ");";
+			default: break;
+		}
+
+		if(isString(field.type))
+			return "writer.writeString(" + value + ");";
+		if(isEnum(field.type))
+			return "writer.writeVarInt(" + value + ".ordinal());";
+
+		//Null arrays are written as empty, like null Strings are.
+		return "if(" + value + " == null) writer.writeVarInt(0); "
+				+ "else writer.writeVarInt(" + value + ".length).writeBytes(" + value + ");";
+	}
+
+	//Appends the statement that reads a field into target.
+	private void appendRead(StringBuilder source, Field field, String target)
+	{
+		String read;
+
+		switch(field.type.getKind())
+		{
+			case BOOLEAN: read = "reader.readBoolean()"; break;
+			case BYTE: read = "reader.readByte()"; break;
+			case SHORT: read = "reader.readShort()"; break;
+			case CHAR: read = "(char)reader.readShort()"; break;
+			case INT: read = "reader.readInt()"; break;
+			case LONG: read = "reader.readLong()"; break;
+			case FLOAT: read = "reader.readFloat()"; break;
+			case DOUBLE: read = "reader.readDouble()"; break;
+			default: read = null; break;
+		}
+
+		if(read == null && isString(field.type))
+			read = "reader.readString()";
+		else if(read == null && isEnum(field.type))
+			read = "reader.readEnum(" + field.name + "Values)";
+		else if(read == null)
+			read = "reader.readByteArray()";
+
+		source.append("\t\t").append(target).append(" = ").append(read).append(";\n");
+	}
+
+	private boolean isString(TypeMirror type)
+	{
+		return type.getKind() == TypeKind.DECLARED &&
+				((TypeElement)((DeclaredType)type).asElement()).getQualifiedName().contentEquals("java.lang.String");
+	}
+
+	private boolean isEnum(TypeMirror type)
+	{
+		return type.getKind() == TypeKind.DECLARED && ((DeclaredType)type).asElement().getKind() == ElementKind.ENUM;
+	}
+
+	private boolean isByteArray(TypeMirror type)
+	{
+		return type.getKind() == TypeKind.ARRAY && ((ArrayType)type).getComponentType().getKind() == TypeKind.BYTE;
+	}
+
+	//Outer.Inner gets Outer_InnerCodec, in Outer's package.
+	private static String getCodecName(TypeElement type)
+	{
+		String name = type.getSimpleName().toString();
+
+		for(Element enclosing = type.getEnclosingElement(); !(enclosing instanceof PackageElement);
+				enclosing = enclosing.getEnclosingElement())
+			name = enclosing.getSimpleName() + "_" + name;
+
+		return name + "Codec";
+	}
+
+	/**
+	 * Writes the service file, keeping the codecs listed by earlier (incremental) compilations
+	 * as long as their classes still exist.
+	 */
+	private void writeServiceFile()
+	{
+		Set<String> services = readServiceFile();
+		services.addAll(codecs);
+
+		try(Writer writer = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+				SERVICE_FILE).openWriter())
+		{
+			for(String codec : services)
+				writer.write(codec + "\n");
+		}
+		catch(IOException exception)
+		{
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+					"Couldn't write " + SERVICE_FILE + ": " + exception.getMessage());
+		}
+	}
+
+	private Set<String> readServiceFile()
+	{
+		Set<String> services = new LinkedHashSet<>();
+
+		try(BufferedReader reader = new BufferedReader(processingEnv.getFiler().getResource(
+				StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE).openReader(true)))
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				int comment = line.indexOf('#');
+				String codec = (comment >= 0 ? line.substring(0, comment) : line).trim();
+
+				if(!codec.isEmpty() && processingEnv.getElementUtils().getTypeElement(codec) != null)
+					services.add(codec);
+			}
+		}
+		catch(IOException | IllegalArgumentException exception)
+		{
+			//No service file from an earlier compilation.
+		}
+
+		return services;
+	}
+
+	private void error(Element element, String message)
+	{
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
@@ -0,0 +1,101 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer from a BufferPool that is shared by everything holding a reference to
+ * it, such as the Packets sliced from a receive buffer. It starts out with one
+ * reference, held by whoever created it. Every retain() must be matched by a release(),
+ * and the buffer goes back to its pool when the last reference is released.
+ */
+public final class RefCountedBuffer
+{
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final AtomicInteger refCount = new AtomicInteger(1);
+
+	/**
+	 * Wraps a buffer acquired from a pool.
+	 * @param pool The pool the buffer was acquired from.
+	 * @param buffer The buffer.
+	 */
+	public RefCountedBuffer(BufferPool pool, ByteBuffer buffer)
+	{
+		if(pool == null || buffer == null)
+			throw new IllegalArgumentException("pool and buffer must not be null!");
+
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Gets the buffer. Must not be used once every reference has been released.
+	 * @return The buffer.
+	 */
+	public ByteBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Gets the number of references to the buffer.
+	 * @return The number of references, 0 once the buffer has gone back to its pool.
+	 */
+	public int refCount()
+	{
+		return refCount.get();
+	}
+
+	/**
+	 * Adds a reference to the buffer.
+	 * @throws IllegalStateException If the buffer has already gone back to its pool.
+	 */
+	public void retain()
+	{
+		int count;
+
+		do
+		{
+			count = refCount.get();
+
+			if(count <= 0)
+				throw new IllegalStateException("Tried retaining a buffer that was already released!");
+		}
+		while(!refCount.compareAndSet(count, count + 1));
+	}
+
+	/**
+	 * Removes a reference to the buffer, and returns it to its pool if it was the last one.
+	 * @return True if the buffer went back to its pool, false otherwise.
+	 * @throws IllegalStateException If the buffer has already gone back to its pool.
+	 */
+	public boolean release()
+	{
+		int count = refCount.decrementAndGet();
+
+		if(count < 0)
+		{
+			refCount.incrementAndGet();
+			throw new IllegalStateException("Tried releasing a buffer that was already released!");
+		}
+
+		if(count > 0)
+			return false;
+
+		pool.release(buffer);
+		return true;
+	}
+}
@@ -0,0 +1,39 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+/**
+ * The kinds of IAsyncSocketChannel that a ParloRuntime can open.
+ */
+public enum Transport 
+{
+	/**
+	 * AsynchronousSocketChannels sharing the runtime's AsynchronousChannelGroup.
+	 * See ParloSocketChannel.
+	 */
+	AsynchronousIO,
+	
+	/**
+	 * Non-blocking SocketChannels pinned to the runtime's Selector event loops.
+	 * See NioSocketChannel.
+	 */
+	EventLoop,
+	
+	/**
+	 * Blocking SocketChannels, with a reader and a writer thread per connection.
+	 * The threads are virtual threads on Java 21 and later, which are cheap. On Java 17
+	 * they're platform threads, so every connection costs two platform threads, and
+	 * AsynchronousIO or EventLoop scale much better. See VirtualThreadSocketChannel.
+	 */
+	VirtualThreads;
+}
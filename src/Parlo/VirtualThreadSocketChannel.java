@@ -0,0 +1,414 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An IAsyncSocketChannel built on blocking SocketChannels and ServerSocketChannels.
+ * Every connection has a reader thread and a writer thread, which perform blocking
+ * I/O and then invoke the completion handlers. A NetworkClient's read, decode and
+ * dispatch loop therefore runs entirely on its reader thread.
+ * The threads are virtual threads on Java 21 and later, so this scales to a very
+ * large number of connections. On Java 17 it falls back to platform threads, which
+ * means two platform threads per connection, with a stack each. That's only suitable
+ * for a modest number of connections, so use AsynchronousIO or EventLoop there.
+ */
+public class VirtualThreadSocketChannel implements IAsyncSocketChannel
+{
+	private static final ThreadFactory threadFactory =
+			VirtualThreads.newThreadFactory("Parlo-VirtualThread-");
+
+	private SocketChannel channel;
+	private ServerSocketChannel serverChannel;
+	private boolean isServer = false;
+	private final ParloRuntime runtime;
+
+	//Pending operations are run in order, one at a time, by each thread.
+	private final LinkedBlockingQueue<Runnable> readTasks = new LinkedBlockingQueue<>();
+	private final LinkedBlockingQueue<Runnable> writeTasks = new LinkedBlockingQueue<>();
+	private Thread readerThread, writerThread;
+
+	/**
+	 * Creates a new channel.
+	 * @param server Is this a server socket channel?
+	 * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+	 */
+	public VirtualThreadSocketChannel(boolean server, boolean keepAlive) throws IOException
+	{
+		this(server, keepAlive, null);
+	}
+
+	/**
+	 * Creates a new channel in the specified ParloRuntime. The runtime doesn't run the
+	 * channel's threads, but a NetworkClient using the channel uses its timer and pools.
+	 * Channels accepted by a server socket channel share its runtime.
+	 * @param server Is this a server socket channel?
+	 * @param keepAlive Should SO_KEEPALIVE be set? Ignored for server socket channels.
+	 * @param runtime The runtime, or null to use the default runtime.
+	 */
+	public VirtualThreadSocketChannel(boolean server, boolean keepAlive, ParloRuntime runtime) throws IOException
+	{
+		isServer = server;
+		this.runtime = runtime;
+
+		if(!server)
+		{
+			channel = SocketChannel.open();
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+			startThreads();
+		}
+		else
+			serverChannel = ServerSocketChannel.open();
+	}
+
+	/**
+	 * Constructor used for constructing a new instance from accept().
+	 * @param ch The accepted channel.
+	 * @param runtime The runtime of the server socket channel that accepted ch.
+	 */
+	private VirtualThreadSocketChannel(SocketChannel ch, ParloRuntime runtime)
+	{
+		channel = ch;
+		this.runtime = runtime;
+		startThreads();
+	}
+
+	private void startThreads()
+	{
+		readerThread = threadFactory.newThread(() -> runTasks(readTasks));
+		writerThread = threadFactory.newThread(() -> runTasks(writeTasks));
+		readerThread.start();
+		writerThread.start();
+	}
+
+	private void runTasks(LinkedBlockingQueue<Runnable> tasks)
+	{
+		try
+		{
+			while(channel.isOpen() || !tasks.isEmpty())
+			{
+				//A completion handler that throws mustn't end the loop, or every 
+				//read or write queued after it would wait forever.
+				try
+				{
+					tasks.take().run();
+				}
+				catch(RuntimeException exception)
+				{
+					Logger.log("Exception in VirtualThreadSocketChannel completion handler: " + exception, 
+							LogLevel.error);
+				}
+			}
+		}
+		catch(InterruptedException exception)
+		{
+			//The channel was closed.
+		}
+	}
+
+	/**
+	 * Binds the channel's socket to a local address.
+	 * @param local The local address to bind to.
+	 */
+	public void bind(InetSocketAddress local) throws IOException
+	{
+		if(!isServer)
+			channel.bind(local);
+		else
+			serverChannel.bind(local);
+	}
+
+	/**
+	 * Accepts a connection. The blocking accept runs on a new thread.
+	 * @return A Future of type IAsyncSocketChannel, or null if this isn't a server socket channel.
+	 */
+	public Future<IAsyncSocketChannel> accept()
+	{
+		if(!isServer)
+			return null;
+
+		CompletableFuture<IAsyncSocketChannel> future = new CompletableFuture<>();
+
+		threadFactory.newThread(() ->
+		{
+			try
+			{
+				future.complete(new VirtualThreadSocketChannel(serverChannel.accept(), runtime));
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				future.completeExceptionally(exception);
+			}
+		}).start();
+
+		return future;
+	}
+
+	/**
+	 * Connects this channel. The blocking connect runs on the writer thread,
+	 * so nothing can be written before the connection has been established.
+	 * @param remote The remote address to connect to.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		writeTasks.add(() ->
+		{
+			try
+			{
+				channel.connect(remote);
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				handler.failed(exception, attachment);
+				return;
+			}
+
+			handler.completed(null, attachment);
+		});
+	}
+
+	/**
+	 * Returns the socket address that this channel's socket is bound to.
+	 * @return The socket address that this channel's socket is bound to.
+	 */
+	public SocketAddress getLocalAddress() throws IOException
+	{
+		if(!isServer)
+			return channel.getLocalAddress();
+		else
+			return serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * Returns the remote address to which this channel's socket is connected.
+	 * @return The remote address to which this channel's socket is connected,
+	 * or null if this is a server socket channel.
+	 */
+	public SocketAddress getRemoteAddress() throws IOException
+	{
+		if(!isServer)
+			return channel.getRemoteAddress();
+		else
+			return null;
+	}
+
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * @param dst The destination to read into.
+	 * @return A Future of type Integer, or null if this is a server socket channel.
+	 */
+	public Future<Integer> read(ByteBuffer dst)
+	{
+		if(isServer)
+			return null;
+
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+
+		read(dst, null, new CompletionHandler<Integer, Void>()
+		{
+			public void completed(Integer bytesRead, Void attachment)
+			{
+				future.complete(bytesRead);
+			}
+
+			public void failed(Throwable t, Void attachment)
+			{
+				future.completeExceptionally(t);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Reads a sequence of bytes from this channel into the given buffer.
+	 * The blocking read and the handler both run on this channel's reader thread.
+	 * Does nothing if this is a server socket channel.
+	 * @param dst The destination to read into.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the result.
+	 */
+	public <A> void read(ByteBuffer dst, A attachment,
+			CompletionHandler<Integer,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		readTasks.add(() ->
+		{
+			int bytesRead;
+
+			try
+			{
+				bytesRead = channel.read(dst);
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				handler.failed(exception, attachment);
+				return;
+			}
+
+			handler.completed(bytesRead, attachment);
+		});
+	}
+
+	/**
+	 * Writes a sequence of bytes to this channel from the given buffer.
+	 * The blocking write and the handler both run on this channel's writer thread.
+	 * Does nothing if this is a server socket channel.
+	 * @param src The source to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	public <A> void write(ByteBuffer src, A attachment,
+			CompletionHandler<Integer,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		writeTasks.add(() ->
+		{
+			int bytesWritten;
+
+			try
+			{
+				bytesWritten = channel.write(src);
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				handler.failed(exception, attachment);
+				return;
+			}
+
+			handler.completed(bytesWritten, attachment);
+		});
+	}
+
+	/**
+	 * Writes a sequence of bytes to this channel from a subsequence of the given buffers,
+	 * in a single gathering write. The blocking write and the handler both run on this
+	 * channel's writer thread. Does nothing if this is a server socket channel.
+	 * @param srcs The buffers to write from.
+	 * @param offset The index of the first buffer to write from.
+	 * @param length The number of buffers to write from.
+	 * @param attachment The object to attach to the I/O operation. Can be null.
+	 * @param handler The handler for consuming the number of bytes written.
+	 */
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, A attachment,
+			CompletionHandler<Long,? super A> handler)
+	{
+		if(isServer)
+			return;
+
+		writeTasks.add(() ->
+		{
+			long bytesWritten;
+
+			try
+			{
+				bytesWritten = channel.write(srcs, offset, length);
+			}
+			catch(IOException | RuntimeException exception)
+			{
+				handler.failed(exception, attachment);
+				return;
+			}
+
+			handler.completed(bytesWritten, attachment);
+		});
+	}
+
+	/**
+	 * Sets the value of a socket option.
+	 * @param name The name of the socket option to set.
+	 * @param value The value of the socket option to set.
+	 */
+	public <T> void setOption(SocketOption<T> name, T value) throws IOException
+	{
+		if(!isServer)
+			channel.setOption(name, value);
+		else
+			serverChannel.setOption(name, value);
+	}
+
+	/**
+	 * Gets the runtime this channel was opened in.
+	 * @return The runtime, or null if it was created without one.
+	 */
+	public ParloRuntime getRuntime()
+	{
+		return runtime;
+	}
+
+	/**
+	 * Tells whether or not this channels is open.
+	 * @return True if, and only if, this channel is open.
+	 */
+	public boolean isOpen()
+	{
+		if(isServer)
+			return serverChannel.isOpen();
+		else
+			return channel.isOpen();
+	}
+
+	/**
+	 * Shutdown the connection for reading without closing the channel.
+	 */
+	public void shutdownInput() throws IOException
+	{
+		if(!isServer)
+			channel.shutdownInput();
+	}
+
+	/**
+	 * Shutdown the connection for writing without closing the channel.
+	 */
+	public void shutdownOutput() throws IOException
+	{
+		if(!isServer)
+			channel.shutdownOutput();
+	}
+
+	/**
+	 * Closes this channel. Outstanding blocking operations fail with
+	 * AsynchronousCloseException, and the reader and writer threads exit.
+	 */
+	public void close() throws IOException
+	{
+		if(isServer)
+		{
+			serverChannel.close();
+			return;
+		}
+
+		channel.close();
+
+		//Wake the threads up if they're waiting for something to do.
+		readTasks.add(() -> { });
+		writeTasks.add(() -> { });
+	}
+}
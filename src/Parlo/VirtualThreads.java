@@ -0,0 +1,55 @@
+/*This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one at
+http://mozilla.org/MPL/2.0/.
+
+The Original Code is the Parlo library.
+
+The Initial Developer of the Original Code is
+Mats 'Afr0' Vederhus. All Rights Reserved.
+
+Contributor(s): ______________________________________.
+*/
+
+package Parlo;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads used by VirtualThreadSocketChannel.
+ * This is the Java 17 version, which falls back to platform threads. When Parlo 
+ * is built with JDK 21 or later, the version in src-java21 is added to the 
+ * multi-release jar and creates virtual threads instead.
+ */
+public class VirtualThreads 
+{
+	private VirtualThreads() { }
+	
+	/**
+	 * Are virtual threads supported by this version of Parlo and the JVM?
+	 * @return True if they are, false otherwise.
+	 */
+	public static boolean isSupported()
+	{
+		return false;
+	}
+	
+	/**
+	 * Is a thread a virtual thread?
+	 * @param thread The thread.
+	 * @return False, as there are no virtual threads before Java 21.
+	 */
+	public static boolean isVirtual(Thread thread)
+	{
+		return false;
+	}
+	
+	/**
+	 * Creates a factory for threads to run blocking I/O on.
+	 * @param prefix The prefix of the thread names.
+	 * @return A factory for daemon platform threads.
+	 */
+	public static ThreadFactory newThreadFactory(String prefix)
+	{
+		return ParloRuntime.newThreadFactory(prefix);
+	}
+}